@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import main.HistoryStore;
+import main.Message;
+import main.Message.Type;
+import main.RecentCache;
+import main.Server;
+import main.ServerConfig;
+import main.ServerConnection;
+
+/**
+ * Measures serving pages of history, as sent to members who join, with and without the
+ * RecentCache in front of the HistoryStore. Lines are relayed to many conversations, then the
+ * latest page of conversations picked from a small hot set is read over and over, and the time
+ * per page is reported with the cache's counters.
+ *
+ * Usage: java bench.BackfillBenchmark [conversations] [lines per conversation] [page] [seconds per run]
+ * @author Charles (cjfman)
+ *
+ */
+public class BackfillBenchmark {
+	private final static int HOT = 100;
+
+	public static void main(String[] args) throws Exception {
+		int conversations = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int lines = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int page = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 3;
+
+		System.out.println(String.format("%d conversations of %d lines, pages of %d lines", conversations, lines, page));
+		for (long cache:new long[] {0, RecentCache.DEFAULT_BYTES}) {
+			File directory = Files.createTempDirectory("history").toFile();
+			ServerConfig config = new ServerConfig();
+			config.setMode(Server.Mode.NIO);
+			config.setHistoryDirectory(directory.getPath());
+			config.setHistoryPage(page);
+			config.setCacheBytes(cache);
+			Server server = new Server(0, config);
+
+			int[] IDs = new int[conversations];
+			for (int c = 0; c < conversations; c++) {
+				ServerConnection connection = server.openConnection(new CountingTransport());
+				Message login = new Message();
+				login.setType(Type.Login);
+				login.setUser(name(c));
+				connection.handleMessage(login);
+				IDs[c] = server.startConversation(name(c));
+			}
+			for (int i = 0; i < lines; i++)
+				for (int c = 0; c < conversations; c++)
+					server.sendMessage(IDs[c], name(c), "Are we still meeting at the student center at " + i + "?");
+			HistoryStore history = server.getHistory();
+			while (history.getAppended() + history.getDropped() < (long) conversations * lines)
+				Thread.sleep(10);
+
+			// Warm up, then measure
+			read(server, IDs, seconds / 3);
+			long[] result = read(server, IDs, seconds);
+			System.out.print(String.format("cache %-3s %8.2f us/page", cache == 0 ? "off" : "on", result[1] / 1000.0 / result[0]));
+			RecentCache recent = server.getRecent();
+			if (recent != null)
+				System.out.print(String.format("  %d hits %d misses %d evictions %.1fMB",
+						recent.getHits(), recent.getMisses(), recent.getEvictions(), recent.getBytes() / 1e6));
+			System.out.println();
+			server.kill();
+			for (File file:directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Reads the latest page of the hot conversations round robin for a while
+	 * @return the number of pages and the nanoseconds they took
+	 */
+	private static long[] read(Server server, int[] IDs, double seconds) {
+		int hot = Math.min(HOT, IDs.length);
+		long pages = 0;
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 100; i++, pages++)
+				server.historyPage(IDs[(int) (pages % hot)], Long.MAX_VALUE);
+		}
+		return new long[] {pages, System.nanoTime() - start};
+	}
+
+	private static String name(int conversation) {
+		return String.format("user%05d", conversation);
+	}
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import main.ClientModel;
+import main.ClientSocketThread;
+import main.Message;
+import main.Message.Type;
+import main.Server;
+import main.ServerConfig;
+
+/**
+ * Measures what batching costs and saves the client writer. A client in a conversation
+ * queues bursts of typing events, like a user typing fast, and the time until the server
+ * has received all of them is taken. The bursts are sent with every message flushed on
+ * it's own, and with everything queued written in one flush.
+ *
+ * Usage: java bench.ClientBatchBenchmark [bursts] [events per burst]
+ * @author Charles (cjfman)
+ *
+ */
+public class ClientBatchBenchmark {
+	private final static int PORT = 4471;
+
+	public static void main(String[] args) throws Exception {
+		int bursts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		System.out.println(String.format("%d bursts of %d typing events", bursts, size));
+		System.out.println("max batch   events   flushes     ms   us/event");
+		for (int batch:new int[] {1, ClientSocketThread.DEFAULT_MAX_BATCH}) {
+			run(batch, bursts, size);
+		}
+	}
+
+	private static void run(int batch, int bursts, int size) throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.setMode(Server.Mode.NIO);
+		config.setTypingInterval(1000);		// Received events are counted whether or not they are pushed
+		Server server = new Server(PORT, config);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+		Thread.sleep(300);
+
+		BlockingQueue<Message> sendables = new LinkedBlockingQueue<Message>();
+		final CountDownLatch joined = new CountDownLatch(1);
+		final int[] conversation = new int[1];
+		ClientModel model = new ClientModel("typist", sendables) {
+			public void login() {}
+			public void startConversation(Message input) {}
+			public void addToConversation(Message input) {
+				conversation[0] = input.getID();
+				joined.countDown();
+			}
+			public void event(Message input) {}
+		};
+		ClientSocketThread client = new ClientSocketThread(new Socket("localhost", PORT), sendables, model, false, true, true);
+		client.MaxBatch = batch;
+		new Thread(client).start();
+
+		Message login = new Message();
+		login.setType(Type.Login);
+		login.setUser("typist");
+		sendables.add(login);
+		Message start = new Message();
+		start.setType(Type.Start);
+		start.setUser("typist");
+		sendables.add(start);
+		if (!joined.await(5, TimeUnit.SECONDS))
+			throw new IllegalStateException("Could not start a conversation");
+		long flushes = client.getFlushes();
+
+		long events = (long) bursts * size;
+		long time = System.nanoTime();
+		for (int b = 0; b < bursts; b++) {
+			for (int i = 0; i < size; i++) {
+				Message message = new Message();
+				message.setType(Type.Event);
+				message.setID(conversation[0]);
+				message.setCode(i % 2 == 0 ? 703 : 702);
+				sendables.add(message);
+			}
+			Thread.yield();
+		}
+		while (server.getTyping().getReceived() < events)
+			Thread.sleep(1);
+		time = System.nanoTime() - time;
+
+		System.out.println(String.format("%9d %8d %9d %6d %10.2f", batch, events,
+				client.getFlushes() - flushes, time / 1000000, time / 1000.0 / events));
+		client.socket.close();
+		server.kill();
+	}
+}
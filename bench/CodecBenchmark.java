@@ -0,0 +1,90 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import main.Message;
+import main.Message.Type;
+import main.MessageFrames;
+
+/**
+ * Compares the two frame bodies: a Message serialized on it's own and the binary
+ * MessageCodec format. For a few typical messages it reports the bytes per frame and
+ * the time to encode and decode one.
+ *
+ * Usage: java bench.CodecBenchmark [seconds per run]
+ * @author Charles (cjfman)
+ *
+ */
+public class CodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+
+		Message text = new Message();
+		text.setType(Type.Message);
+		text.setID(12);
+		text.setUser("cjfman");
+		text.setStatus("Are we still meeting at the student center at 8?");
+
+		Message typing = new Message();
+		typing.setType(Type.Event);
+		typing.setID(12);
+		typing.setUser("cjfman");
+		typing.setCode(702);
+
+		Message start = new Message();
+		start.setType(Type.Start);
+		start.setID(12);
+		start.setCode(602);
+		start.setFriends(new String[] {"cjfman", "dhrosa", "kemus", "descioli", "andres"});
+
+		System.out.println("message  body        bytes  encode ns  decode ns");
+		Message[] messages = {text, typing, start};
+		String[] names = {"text", "typing", "start"};
+		// Warm up both encodings before measuring
+		for (Message message:messages) {
+			measure(message, false, seconds);
+			measure(message, true, seconds);
+		}
+		for (int i = 0; i < messages.length; i++) {
+			report(names[i], "serialized", measure(messages[i], false, seconds));
+			report(names[i], "binary", measure(messages[i], true, seconds));
+		}
+	}
+
+	private static void report(String message, String body, double[] result) {
+		System.out.println(String.format("%-8s %-10s %6.0f %10.0f %10.0f", message, body, result[0], result[1], result[2]));
+	}
+
+	/**
+	 * Encodes and then decodes the message over and over
+	 * @return the frame length, and the nanoseconds to encode and to decode it
+	 */
+	private static double[] measure(Message message, boolean binary, double seconds) throws IOException {
+		ByteBuffer frame = MessageFrames.encode(message, binary);
+		int length = frame.limit() - MessageFrames.HEADER_LENGTH;
+
+		long sink = 0;
+		long count = 0;
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < end) {
+			sink += MessageFrames.encode(message, binary).limit();
+			count++;
+		}
+		double encode = (double) (System.nanoTime() - start) / count;
+
+		count = 0;
+		start = System.nanoTime();
+		end = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < end) {
+			sink += MessageFrames.decode(frame.array(), MessageFrames.HEADER_LENGTH, length).getCode();
+			count++;
+		}
+		double decode = (double) (System.nanoTime() - start) / count;
+
+		if (sink == 0) System.out.println();	// Keep the work from being optimized away
+		return new double[] {frame.limit(), encode, decode};
+	}
+}
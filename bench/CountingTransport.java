@@ -0,0 +1,38 @@
+package bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Broadcast;
+import main.ConnectionTransport;
+import main.Message;
+
+/**
+ * A transport that counts the frames sent to it and throws them away, so a benchmark measures
+ * the server and not the network
+ * @author Charles (cjfman)
+ *
+ */
+public class CountingTransport implements ConnectionTransport {
+	private final AtomicLong frames = new AtomicLong(0);
+
+	public void send(Message message) {
+		frames.incrementAndGet();
+	}
+
+	public void send(Broadcast broadcast) {
+		frames.incrementAndGet();
+	}
+
+	public void close() {}
+
+	public boolean isClosed() {
+		return false;
+	}
+
+	/**
+	 * @return the number of frames sent so far
+	 */
+	public long getFrames() {
+		return frames.get();
+	}
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import main.Broadcast;
+import main.Message;
+import main.MessageFrames;
+import main.ServerConnection;
+
+/**
+ * Measures the cost of relaying one message to every member of a conversation
+ * in frames, the way the nio server writes them. The old path builds and encodes a
+ * Message for every recipient, the broadcast path builds and encodes it once and
+ * shares the bytes.
+ *
+ * Usage: java bench.FanOutBenchmark [members] [seconds per run]
+ * @author Charles (cjfman)
+ *
+ */
+public class FanOutBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int members = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+
+		System.out.println(String.format("%d members per conversation", members));
+		System.out.println("path          us/relay   bytes allocated/relay");
+		Relay perRecipient = new Relay() {
+			public long relay(int members) throws IOException {
+				long written = 0;
+				for (int i = 0; i < members; i++) {
+					ByteBuffer frame = MessageFrames.encode(ServerConnection.textMessage(7, "cjfman", "Hello World"));
+					written += frame.remaining();
+				}
+				return written;
+			}
+		};
+		Relay broadcast = new Relay() {
+			public long relay(int members) throws IOException {
+				Broadcast broadcast = new Broadcast(ServerConnection.textMessage(7, "cjfman", "Hello World"));
+				long written = 0;
+				for (int i = 0; i < members; i++)
+					written += broadcast.frame(false).remaining();
+				return written;
+			}
+		};
+		// Warm up both paths before measuring
+		measure(perRecipient, members, seconds);
+		measure(broadcast, members, seconds);
+		report("per recipient", measure(perRecipient, members, seconds));
+		report("broadcast", measure(broadcast, members, seconds));
+	}
+
+	private static void report(String name, double[] result) {
+		System.out.println(String.format("%-13s %9.1f %23.0f", name, result[0] / 1000, result[1]));
+	}
+
+	/**
+	 * Relays over and over for a while
+	 * @return the nanoseconds and the bytes allocated per relay
+	 */
+	private static double[] measure(Relay relay, int members, double seconds) throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long sink = 0;
+		long count = 0;
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < end) {
+			sink += relay.relay(members);
+			count++;
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+		if (sink == 0) System.out.println();	// Keep the work from being optimized away
+		return new double[] {(double) elapsed / count, (double) allocated / count};
+	}
+
+	/**
+	 * One way of encoding a message for every member of a conversation
+	 */
+	private interface Relay {
+		/**
+		 * @return the number of bytes that would be written
+		 */
+		public long relay(int members) throws IOException;
+	}
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import main.FriendGraph;
+
+/**
+ * Measures the friend graph: a graph of random friendships is built and saved, then loaded
+ * again the way a restarted server does, and the friend lists of random users are looked up the
+ * way they are at log in. The lookups are timed straight after loading, when the lists are still
+ * in the mapping, and again once they were copied out of it.
+ *
+ * Usage: java bench.FriendGraphBenchmark [users] [friends per user] [lookups]
+ * @author Charles (cjfman)
+ *
+ */
+public class FriendGraphBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int friends = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+		File directory = Files.createTempDirectory("friends").toFile();
+		File file = new File(directory, "friends.graph");
+		Random random = new Random(1);
+
+		long time = System.nanoTime();
+		FriendGraph graph = new FriendGraph(file);
+		for (int u = 0; u < users; u++)
+			for (int f = 0; f < friends; f++)
+				graph.addFriend(name(u), name(random.nextInt(users)));
+		time = System.nanoTime() - time;
+		System.out.println(String.format("built %d users, %d friends in %d ms", graph.size(), graph.getEdges(), time / 1000000));
+
+		time = System.nanoTime();
+		graph.save();
+		time = System.nanoTime() - time;
+		System.out.println(String.format("saved %.1f MB in %d ms", file.length() / 1e6, time / 1000000));
+		graph = null;
+		System.gc();
+
+		time = System.nanoTime();
+		FriendGraph loaded = new FriendGraph(file);
+		time = System.nanoTime() - time;
+		System.out.println(String.format("loaded in %d ms", time / 1000000));
+
+		for (String run:new String[] {"first lookup", "lookup"}) {
+			random = new Random(2);
+			long found = 0;
+			time = System.nanoTime();
+			for (int i = 0; i < lookups; i++)
+				found += loaded.getFriends(name(random.nextInt(users))).length;
+			time = System.nanoTime() - time;
+			System.out.println(String.format("%-12s %6.2f us  (%d friends)", run, time / 1000.0 / lookups, found));
+		}
+
+		file.delete();
+		directory.delete();
+	}
+
+	private static String name(int user) {
+		return "user" + user;
+	}
+}
@@ -0,0 +1,109 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import main.HistoryStore;
+import main.Message;
+import main.Message.Type;
+import main.Server;
+import main.ServerConfig;
+import main.ServerConnection;
+
+/**
+ * Measures what keeping history costs the relay path. Chat lines are relayed through
+ * Server.sendMessage to conversations of a few members, with no history and with a
+ * HistoryStore, and the time per relay is reported. With history the time to read back
+ * the last lines of a conversation is reported as well.
+ *
+ * Usage: java bench.HistoryBenchmark [conversations] [seconds per run] [lines read]
+ * @author Charles (cjfman)
+ *
+ */
+public class HistoryBenchmark {
+	private final static int MEMBERS = 4;
+
+	public static void main(String[] args) throws Exception {
+		int conversations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+		int lines = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		System.out.println(String.format("%d conversations of %d members", conversations, MEMBERS));
+		File directory = Files.createTempDirectory("history").toFile();
+		for (String dir:new String[] {null, directory.getPath()}) {
+			ServerConfig config = new ServerConfig();
+			config.setMode(Server.Mode.NIO);
+			config.setHistoryDirectory(dir);
+			Server server = new Server(0, config);
+			int[] IDs = setUp(server, conversations);
+
+			// Warm up, then measure
+			long warm = relay(server, IDs, seconds / 3)[0];
+			long[] result = relay(server, IDs, seconds);
+			System.out.println(String.format("history %-3s %10d relays %8.2f us/relay", dir == null ? "off" : "on",
+					result[0], result[1] / 1000.0 / result[0]));
+
+			HistoryStore history = server.getHistory();
+			if (history != null) {
+				while (history.getAppended() + history.getDropped() < warm + result[0])
+					Thread.sleep(10);
+				System.out.println(String.format("            %d written in %d batches, %d dropped",
+						history.getAppended(), history.getBatches(), history.getDropped()));
+				int reads = 0;
+				long time = System.nanoTime();
+				for (; System.nanoTime() - time < seconds * 1e9; reads++)
+					history.read(IDs[reads % IDs.length], lines);
+				time = System.nanoTime() - time;
+				System.out.println(String.format("            read last %d lines: %.2f us", lines, time / 1000.0 / reads));
+			}
+			server.kill();
+		}
+		for (File file:directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Logs in the members and starts the conversations
+	 * @return the conversation IDs
+	 */
+	private static int[] setUp(Server server, int conversations) throws IOException {
+		int[] IDs = new int[conversations];
+		for (int c = 0; c < conversations; c++) {
+			for (int m = 0; m < MEMBERS; m++) {
+				ServerConnection connection = server.openConnection(new CountingTransport());
+				Message login = new Message();
+				login.setType(Type.Login);
+				login.setUser(name(c, m));
+				connection.handleMessage(login);
+			}
+			IDs[c] = server.startConversation(name(c, 0));
+			for (int m = 1; m < MEMBERS; m++)
+				server.addToConversation(IDs[c], name(c, m));
+		}
+		return IDs;
+	}
+
+	/**
+	 * Relays lines round robin over the conversations for a while
+	 * @return the number of relays and the nanoseconds they took
+	 */
+	private static long[] relay(Server server, int[] IDs, double seconds) {
+		String text = "Are we still meeting at the student center at 8?";
+		long relays = 0;
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < 100; i++, relays++) {
+				int c = (int) (relays % IDs.length);
+				server.sendMessage(IDs[c], name(c, 0), text);
+			}
+		}
+		return new long[] {relays, System.nanoTime() - start};
+	}
+
+	private static String name(int conversation, int member) {
+		return String.format("user%05d_%d", conversation, member);
+	}
+}
@@ -0,0 +1,131 @@
+package bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import main.ConnectionTransport;
+import main.Message;
+import main.Message.Type;
+import main.Server;
+import main.ServerConnection;
+
+/**
+ * Measures a mass reconnect. Every user logs in and friends the next few users,
+ * all at once from several threads, straight through ServerConnection.handleMessage
+ * so that no sockets are needed. Each login looks up who has friended the user.
+ * The storm is run against the server's friend index, and against a server that
+ * scans every connection on each login the way findFriends used to.
+ *
+ * Usage: java bench.LoginStormBenchmark [friends per user] [threads]
+ * @author Charles (cjfman)
+ *
+ */
+public class LoginStormBenchmark {
+	private final static int[] USERS = {2500, 5000, 10000};
+
+	public static void main(String[] args) throws Exception {
+		int friends = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		System.out.println(String.format("%d friends per user, %d login threads", friends, threads));
+		System.out.println("lookup      users   storm ms   logins/s");
+		// Warm up both servers before measuring
+		storm(new Server(0, false, Server.Mode.NIO), USERS[0], friends, threads);
+		storm(new ScanningServer(0), USERS[0], friends, threads);
+		for (int users:USERS) {
+			report("index", users, storm(new Server(0, false, Server.Mode.NIO), users, friends, threads));
+			report("scan", users, storm(new ScanningServer(0), users, friends, threads));
+		}
+	}
+
+	private static void report(String name, int users, double seconds) {
+		System.out.println(String.format("%-8s %8d %10.0f %10.0f", name, users, seconds * 1000, users / seconds));
+	}
+
+	/**
+	 * Logs in every user at once
+	 * @return the seconds it took until every user was logged in and had sent it's friends list
+	 */
+	private static double storm(final Server server, int users, final int friends, int threads) throws InterruptedException {
+		final ServerConnection[] connections = new ServerConnection[users];
+		for (int i = 0; i < users; i++)
+			connections[i] = server.openConnection(new CountingTransport());
+
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			final int step = threads;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						go.await();
+						for (int i = first; i < connections.length; i += step)
+							login(connections, i, friends);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		long start = System.nanoTime();
+		go.countDown();
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		server.kill();
+		return seconds;
+	}
+
+	/**
+	 * Logs in user i and friends the users after it
+	 */
+	private static void login(ServerConnection[] connections, int i, int friends) throws Exception {
+		Message login = new Message();
+		login.setType(Type.Login);
+		login.setUser(name(i));
+		connections[i].handleMessage(login);
+
+		String[] list = new String[friends];
+		for (int j = 0; j < friends; j++)
+			list[j] = name((i + 1 + j) % connections.length);
+		Message add = new Message();
+		add.setType(Type.Friends);
+		add.setFriends(list);
+		connections[i].handleMessage(add);
+	}
+
+	private static String name(int i) {
+		return String.format("user%05d", i);
+	}
+
+	/**
+	 * Finds friends by checking every connection, the way the server did before the friend index
+	 */
+	private static class ScanningServer extends Server {
+		private final ArrayList<ServerConnection> connections = new ArrayList<ServerConnection>();	// Opened before the storm starts
+
+		public ScanningServer(int port) throws IOException {
+			super(port, false, Server.Mode.NIO);
+		}
+
+		public ServerConnection openConnection(ConnectionTransport transport) {
+			ServerConnection connection = super.openConnection(transport);
+			connections.add(connection);
+			return connection;
+		}
+
+		public ArrayList<String> findFriends(String user) {
+			ArrayList<String> friends = new ArrayList<String>();
+			for (ServerConnection connection:connections) {
+				String friend = connection.getUser();
+				if (friend == null) continue;
+				if (friend.equals(user)) continue;
+				if (connection.isFriend(user))
+					friends.add(friend);
+			}
+			return friends;
+		}
+	}
+}
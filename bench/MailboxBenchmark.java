@@ -0,0 +1,78 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import main.Broadcast;
+import main.Mailbox;
+import main.Message;
+import main.ServerConnection;
+
+/**
+ * Measures the mailbox of undelivered messages. Chat lines are deposited for many users until
+ * a million are queued, then every user's mailbox is drained. The time per deposit and per
+ * delivered message is reported, with the heap the queued messages take, once with the
+ * segments in direct buffers and once mapped from files.
+ * Run it with a small heap, like -Xmx64m, to see that the messages do not live on it.
+ *
+ * Usage: java bench.MailboxBenchmark [messages] [users]
+ * @author Charles (cjfman)
+ *
+ */
+public class MailboxBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+		System.out.println(String.format("%d messages for %d users", messages, users));
+		File directory = Files.createTempDirectory("mailbox").toFile();
+		for (File dir:new File[] {null, directory}) {
+			long heap = heap();
+			Mailbox mailbox = new Mailbox(dir, Mailbox.SEGMENT_BYTES, 1024, Integer.MAX_VALUE, Mailbox.DEFAULT_EXPIRY);
+			long time = System.nanoTime();
+			for (int i = 0; i < messages; i++)
+				mailbox.deposit(name(i % users), line(i));
+			time = System.nanoTime() - time;
+			long queued_heap = heap() - heap;
+			System.out.println(String.format("%-7s deposit %6.2f us  %d segments of %dMB  heap %+.1fMB",
+					dir == null ? "direct" : "mapped", time / 1000.0 / messages, mailbox.getSegments(),
+					Mailbox.SEGMENT_BYTES >> 20, queued_heap / 1e6));
+
+			time = System.nanoTime();
+			int frames = 0;
+			for (int u = 0; u < users; u++) {
+				ArrayList<Message> drained = mailbox.drain(name(u));
+				frames += drained.size();
+			}
+			time = System.nanoTime() - time;
+			System.out.println(String.format("        drain   %6.2f us  %d delivered in %d frames, %d segments left",
+					time / 1000.0 / mailbox.getDelivered(), mailbox.getDelivered(), frames, mailbox.getSegments()));
+			mailbox.close();
+		}
+		for (File file:directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * @return the heap in use after a collection
+	 */
+	private static long heap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static Broadcast line(int i) {
+		return new Broadcast(ServerConnection.textMessage(i % 1000, "sender" + (i % 97), "queued line number " + i));
+	}
+
+	private static String name(int user) {
+		return "user" + user;
+	}
+}
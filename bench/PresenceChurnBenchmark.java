@@ -0,0 +1,113 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Message;
+import main.Message.Type;
+import main.Server;
+import main.ServerConfig;
+import main.ServerConnection;
+
+/**
+ * Measures what a reconnect storm costs a popular user. The friends of one user log
+ * on and off over and over, straight through ServerConnection.handleMessage, and the
+ * frames sent to the popular user are counted. The storm is run with every presence
+ * change pushed on it's own, and with changes coalesced over a window.
+ *
+ * Usage: java bench.PresenceChurnBenchmark [friends] [seconds per run] [window ms]
+ * @author Charles (cjfman)
+ *
+ */
+public class PresenceChurnBenchmark {
+	private final static int THREADS = 4;
+
+	public static void main(String[] args) throws Exception {
+		int friends = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+		long window = args.length > 2 ? Long.parseLong(args[2]) : 100;
+
+		System.out.println(String.format("%d friends logging on and off from %d threads", friends, THREADS));
+		System.out.println("window ms   changes   frames   changes/frame");
+		for (long ms:new long[] {0, window}) {
+			ServerConfig config = new ServerConfig();
+			config.setMode(Server.Mode.NIO);
+			config.setPresenceWindow(ms);
+			long[] result = churn(config, friends, seconds);
+			System.out.println(String.format("%9d %9d %8d %15.1f", ms, result[0], result[1], (double) result[0] / result[1]));
+		}
+	}
+
+	/**
+	 * Logs the friends on and off for a while
+	 * @return the number of presence changes, and the number of frames the popular user got
+	 */
+	private static long[] churn(ServerConfig config, final int friends, double seconds) throws Exception {
+		final Server server = new Server(0, config);
+		CountingTransport popular = new CountingTransport();
+		ServerConnection star = server.openConnection(popular);
+		star.handleMessage(login("popular"));
+
+		// Every friend friends the popular user once, then logs off
+		for (int i = 0; i < friends; i++) {
+			ServerConnection connection = server.openConnection(new CountingTransport());
+			connection.handleMessage(login(name(i)));
+			Message add = new Message();
+			add.setType(Type.Friends);
+			add.setUser("popular");
+			connection.handleMessage(add);
+			connection.handleMessage(logout());
+		}
+		Thread.sleep(500);
+
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong changes = new AtomicLong(0);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		long before = popular.getFrames();
+		for (int t = 0; t < THREADS; t++) {
+			final int first = t;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (!stop.get()) {
+							for (int i = first; i < friends && !stop.get(); i += THREADS) {
+								ServerConnection connection = server.openConnection(new CountingTransport());
+								connection.handleMessage(login(name(i)));
+								connection.handleMessage(logout());
+								changes.addAndGet(2);
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		Thread.sleep((long) (seconds * 1000));
+		stop.set(true);
+		done.await();
+		Thread.sleep(500);	// Let the last window end
+		long frames = popular.getFrames() - before;
+		server.kill();
+		return new long[] {changes.get(), frames};
+	}
+
+	private static Message login(String user) {
+		Message message = new Message();
+		message.setType(Type.Login);
+		message.setUser(user);
+		return message;
+	}
+
+	private static Message logout() {
+		Message message = new Message();
+		message.setType(Type.Logout);
+		return message;
+	}
+
+	private static String name(int i) {
+		return String.format("friend%04d", i);
+	}
+}
@@ -0,0 +1,184 @@
+package bench;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Server;
+import main.ServerConnection;
+import main.SessionRegistry;
+
+/**
+ * Measures how relaying scales with the number of concurrent senders.
+ * Every sender relays messages into it's own conversation, looking up each
+ * member's connection the way Server.sendMessage does, and writing to a
+ * transport that throws the bytes away. The same workload is run against
+ * the SessionRegistry and against the three lock guarded HashMaps it replaced.
+ *
+ * Usage: java bench.RegistryBenchmark [members per conversation] [seconds per run]
+ * @author Charles (cjfman)
+ *
+ */
+public class RegistryBenchmark {
+	private final static int[] SENDERS = {1, 8, 32, 128};
+
+	public static void main(String[] args) throws Exception {
+		int members = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+		Server server = new Server(0);
+		int users = SENDERS[SENDERS.length - 1] * members;
+		ServerConnection[] connections = new ServerConnection[users];
+		for (int i = 0; i < users; i++)
+			connections[i] = new ServerConnection(new CountingTransport(), i, server);
+
+		System.out.println(String.format("%d processors, %d members per conversation", Runtime.getRuntime().availableProcessors(), members));
+		System.out.println("registry    senders  relays/s     scaling");
+		run("concurrent", new ConcurrentRelay(connections, members), seconds);
+		run("locked", new LockedRelay(connections, members), seconds);
+		server.kill();
+	}
+
+	/**
+	 * Runs the relay with every sender count and prints the throughput
+	 * A first run with one sender warms up the JIT and is not reported
+	 */
+	private static void run(String name, Relay relay, double seconds) throws InterruptedException {
+		measure(relay, 1, seconds);
+		double base = 0;
+		for (int senders:SENDERS) {
+			double rate = measure(relay, senders, seconds);
+			if (senders == 1) base = rate;
+			System.out.println(String.format("%-10s %8d %9.0f %10.2fx", name, senders, rate, rate / base));
+		}
+	}
+
+	/**
+	 * Relays from the given number of senders at once for a while
+	 * @return relayed messages per second
+	 */
+	private static double measure(final Relay relay, int senders, double seconds) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong relayed = new AtomicLong(0);
+		final CountDownLatch started = new CountDownLatch(senders);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(senders);
+		for (int i = 0; i < senders; i++) {
+			final int conversation = i;
+			new Thread(new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long count = 0;
+					while (!stop.get()) {
+						relay.relay(conversation);
+						count++;
+					}
+					relayed.addAndGet(count);
+					done.countDown();
+				}
+			}).start();
+		}
+		// Start every sender at once
+		started.await();
+		long start = System.nanoTime();
+		go.countDown();
+		Thread.sleep((long) (seconds * 1000));
+		stop.set(true);
+		done.await();
+		return relayed.get() / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * One way of relaying a message to every member of a conversation
+	 */
+	private interface Relay {
+		public void relay(int conversation);
+	}
+
+	/**
+	 * Relays the way the server does now, through a SessionRegistry
+	 */
+	private static class ConcurrentRelay implements Relay {
+		private final SessionRegistry registry = new SessionRegistry();
+		private final int members;
+
+		public ConcurrentRelay(ServerConnection[] connections, int members) {
+			this.members = members;
+			for (ServerConnection connection:connections) {
+				registry.addConnection(connection);
+				registry.login(connection.getID(), "user" + connection.getID());
+			}
+			for (int i = 0; i < connections.length / members; i++) {
+				registry.openConversation(i, "user" + (i * members));
+				for (int j = 1; j < members; j++)
+					registry.addMember(i, "user" + (i * members + j));
+			}
+		}
+
+		public void relay(int conversation) {
+			String sender = "user" + (conversation * members);
+			for (String contact:registry.members(conversation)) {
+				if (contact.equals(sender)) continue;
+				ServerConnection receiver = registry.lookup(contact);
+				if (receiver == null) continue;
+				try {
+					receiver.receiveMessage(conversation, sender, "Hello");
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Relays the way the server used to, through three HashMaps each guarded by it's own monitor
+	 */
+	private static class LockedRelay implements Relay {
+		private final HashMap<Integer, HashSet<String>> conversations = new HashMap<Integer, HashSet<String>>();
+		private final HashMap<Integer, ServerConnection> connections = new HashMap<Integer, ServerConnection>();
+		private final HashMap<String, Integer> usernames = new HashMap<String, Integer>();
+		private final int size;
+
+		public LockedRelay(ServerConnection[] connections, int members) {
+			this.size = members;
+			for (ServerConnection connection:connections) {
+				this.connections.put(connection.getID(), connection);
+				usernames.put("user" + connection.getID(), connection.getID());
+			}
+			for (int i = 0; i < connections.length / members; i++) {
+				HashSet<String> conversation = new HashSet<String>();
+				for (int j = 0; j < members; j++)
+					conversation.add("user" + (i * members + j));
+				conversations.put(i, conversation);
+			}
+		}
+
+		public void relay(int conversation) {
+			String sender = "user" + (conversation * size);
+			HashSet<String> members;
+			synchronized (conversations) { members = conversations.get(conversation); }
+			synchronized (members) {
+				for (String contact:members) {
+					if (contact.equals(sender)) continue;
+					Integer ID;
+					synchronized (usernames) { ID = usernames.get(contact); }
+					if (ID == null) continue;
+					ServerConnection receiver;
+					synchronized (connections) { receiver = connections.get(ID); }
+					if (receiver == null) continue;
+					try {
+						receiver.receiveMessage(conversation, sender, "Hello");
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+}
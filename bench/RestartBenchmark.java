@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import main.RecordingTransport;
+import main.Server;
+import main.ServerConfig;
+import main.StateLog;
+
+/**
+ * Measures how long a restarted server takes until it serves again. Conversations are started
+ * and filled with distinct users, and every user friends a few others. The server is then
+ * restarted from the log alone, and again from a snapshot and the changes logged after it, and
+ * the time until the server is built and has handed a user that logs in it's conversation is reported.
+ * While the snapshot is taken, conversations keep being started and left, and the slowest change
+ * is reported against the slowest one without a snapshot running.
+ *
+ * Usage: java -Xmx3g bench.RestartBenchmark [conversations] [members per conversation] [friends per user] [changes after the snapshot]
+ * @author Charles (cjfman)
+ *
+ */
+public class RestartBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int conversations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int members = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int friends = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int tail = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+		int users = conversations * members;
+
+		File directory = Files.createTempDirectory("state").toFile();
+		File file = new File(directory, "state.log");
+		ServerConfig config = new ServerConfig();
+		config.setStateLog(file.getPath(), StateLog.Durability.NONE);
+		config.setSnapshotInterval(0);
+		config.setMailbox(false, null);
+
+		long time = System.nanoTime();
+		Server server = new Server(0, config);
+		int[] IDs = new int[conversations];
+		for (int c = 0; c < conversations; c++) {
+			IDs[c] = server.startConversation(name(c * members));
+			for (int m = 1; m < members; m++)
+				server.addToConversation(IDs[c], name(c * members + m));
+		}
+		for (int u = 0; u < users; u++)
+			for (int f = 1; f <= friends; f++)
+				server.indexFriend(name(u), name((u + f * 7919) % users));
+		System.out.println(String.format("built %d users, %d conversations in %d ms, log %.1f MB",
+				users, conversations, (System.nanoTime() - time) / 1000000, file.length() / 1e6));
+		server.kill();
+
+		server = restart("log only", config, file, users);
+
+		// Changes keep coming while the snapshot is taken
+		long quiet = changes(server, 1000, null);
+		final Server running = server;
+		Thread snapshot = new Thread(new Runnable() {
+			public void run() {
+				try {
+					long time = System.nanoTime();
+					int count = running.snapshot();
+					System.out.println(String.format("snapshot of %d conversations in %d ms", count, (System.nanoTime() - time) / 1000000));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		snapshot.start();
+		long busy = changes(server, Integer.MAX_VALUE, snapshot);
+		snapshot.join();
+		System.out.println(String.format("slowest change %.2f ms without a snapshot, %.2f ms during it", quiet / 1e6, busy / 1e6));
+		System.out.println(String.format("snapshot %.1f MB, graph %.1f MB",
+				new File(file.getPath() + ".snapshot").length() / 1e6, new File(file.getPath() + ".graph").length() / 1e6));
+
+		for (int i = 0; i < tail; i++)
+			server.addToConversation(IDs[i % conversations], "late" + i);
+		server.kill();
+		server = restart("snapshot", config, file, users);
+		server.kill();
+
+		for (File left:directory.listFiles())
+			left.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Starts a server on the log and times it until a user who logs in is handed it's conversation
+	 */
+	private static Server restart(String run, ServerConfig config, File file, int users) throws Exception {
+		System.gc();
+		long log = file.length() + new File(file.getPath() + ".old").length();
+		long time = System.nanoTime();
+		Server server = new Server(0, config);
+		long built = System.nanoTime() - time;
+		RecordingTransport transport = new RecordingTransport();
+		transport.login(server, name(users / 2));
+		if (transport.find(602) == null)
+			throw new IllegalStateException("The conversation was not restored");
+		long serving = System.nanoTime() - time;
+		System.out.println(String.format("restart from %-8s (log %6.1f MB): built in %5d ms, serving in %5d ms",
+				run, log / 1e6, built / 1000000, serving / 1000000));
+		return server;
+	}
+
+	/**
+	 * Starts and leaves conversations until count changes were made or the thread ends
+	 * @return the nanoseconds the slowest change took
+	 */
+	private static long changes(Server server, int count, Thread until) {
+		long slowest = 0;
+		for (int i = 0; i < count && (until == null || until.isAlive()); i++) {
+			long time = System.nanoTime();
+			Integer ID = server.startConversation("busy");
+			server.leaveConversation(ID, "busy");
+			slowest = Math.max(slowest, System.nanoTime() - time);
+		}
+		return slowest;
+	}
+
+	private static String name(int user) {
+		return "user" + user;
+	}
+}
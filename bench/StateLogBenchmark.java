@@ -0,0 +1,86 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Server;
+import main.ServerConfig;
+import main.StateLog;
+
+/**
+ * Measures what logging changes to the server's state costs. Threads start conversations, add a
+ * member and leave them again as fast as they can, without a log and then under every durability
+ * mode, and the changes a second are reported with the number of times the log was forced to disk.
+ * Every change waits until it is durable, as the response to the request that made it would.
+ * Under BATCHED the forces are shared by the threads, so it's throughput grows with the threads
+ * while PER_OP stays at one change per fsync.
+ *
+ * Usage: java bench.StateLogBenchmark [threads] [seconds per run]
+ * @author Charles (cjfman)
+ *
+ */
+public class StateLogBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+
+		System.out.println(String.format("%d threads, 4 changes a conversation", threads));
+		String[] modes = {"off", "NONE", "BATCHED", "PER_OP"};
+		for (String mode:modes) {
+			File directory = Files.createTempDirectory("state").toFile();
+			File file = new File(directory, "state.log");
+			ServerConfig config = new ServerConfig();
+			if (!mode.equals("off"))
+				config.setStateLog(file.getPath(), StateLog.Durability.valueOf(mode));
+			config.setMailbox(false, null);
+			final Server server = new Server(0, config);
+			final StateLog log = server.getStateLog();
+
+			final AtomicLong changes = new AtomicLong(0);
+			final long end = System.nanoTime() + (long) (seconds * 1e9);
+			Thread[] workers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final String user = "user" + t;
+				final String friend = "friend" + t;
+				workers[t] = new Thread(new Runnable() {
+					public void run() {
+						while (System.nanoTime() < end) {
+							Integer ID = server.startConversation(user);
+							if (ID == null) continue;
+							sync(log);
+							server.addToConversation(ID, friend);
+							sync(log);
+							server.leaveConversation(ID, friend);
+							sync(log);
+							server.leaveConversation(ID, user);
+							sync(log);
+							changes.addAndGet(4);
+						}
+					}
+				});
+			}
+			long time = System.nanoTime();
+			for (Thread worker:workers)
+				worker.start();
+			for (Thread worker:workers)
+				worker.join();
+			time = System.nanoTime() - time;
+
+			System.out.print(String.format("%-8s %10.0f changes/s", mode, changes.get() / (time / 1e9)));
+			if (log != null)
+				System.out.print(String.format("  %d forces  %.1f changes/force  %.1f MB",
+						log.getForces(), log.getForces() == 0 ? 0.0 : log.getAppended() * 1.0 / log.getForces(), file.length() / 1e6));
+			System.out.println();
+			server.kill();
+			file.delete();
+			directory.delete();
+		}
+	}
+
+	private static void sync(StateLog log) {
+		if (log != null)
+			log.sync();
+	}
+}
@@ -0,0 +1,230 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import main.Message;
+import main.Message.Type;
+
+/**
+ * Compares the platform thread and virtual thread connection modes of the server.
+ * For each mode a server process is started on port 4444, filled with idle logged in
+ * connections until it refuses one, and then a number of sender/receiver pairs relay messages through it.
+ * Reports the number of connections held, the server's resident set size and the
+ * p50/p99 relay latency.
+ *
+ * Usage: java bench.ThreadModeBenchmark [idle connections] [pairs] [messages per pair]
+ * @author Charles (cjfman)
+ *
+ */
+public class ThreadModeBenchmark {
+	private final static int PORT = 4444;
+
+	public static void main(String[] args) throws Exception {
+		int idle = args.length > 0 ? Integer.parseInt(args[0]) : 2000;	// Including the pairs
+		int pairs = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+		System.out.println("mode       connections  rss(MB)  p50(us)  p99(us)");
+		run("threads", "", idle, pairs, messages);
+		run("virtual", "--virtual", idle, pairs, messages);
+	}
+
+	/**
+	 * Runs the benchmark against a server started with the given flag
+	 */
+	private static void run(String name, String flag, int idle, int pairs, int messages) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("main.Server");
+		if (flag.length() > 0) command.add(flag);
+		Process process = new ProcessBuilder(command).inheritIO().start();
+
+		List<Client> clients = new ArrayList<Client>();
+		try {
+			waitForServer();
+
+			// Start the conversations used for measuring
+			Client[] senders = new Client[pairs];
+			Client[] receivers = new Client[pairs];
+			for (int i = 0; i < pairs; i++) {
+				senders[i] = new Client("send" + i);
+				receivers[i] = new Client("recv" + i);
+				clients.add(senders[i]);
+				clients.add(receivers[i]);
+				senders[i].start(receivers[i]);
+			}
+
+			// Fill the server with idle users, stopping at the first refused connection
+			for (int i = 0; i < idle - 2 * pairs; i++) {
+				try {
+					clients.add(new Client("idle" + i));
+				} catch (Exception e) {
+					break;
+				}
+			}
+
+			// Relay messages from every pair at once
+			final long[][] latencies = new long[pairs][];
+			Thread[] threads = new Thread[pairs];
+			for (int i = 0; i < pairs; i++) {
+				final Client sender = senders[i];
+				final Client receiver = receivers[i];
+				final int index = i;
+				final int count = messages;
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						latencies[index] = relay(sender, receiver, count);
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread thread:threads)
+				thread.join();
+
+			long[] all = new long[pairs * messages];
+			for (int i = 0; i < pairs; i++)
+				System.arraycopy(latencies[i], 0, all, i * messages, messages);
+			Arrays.sort(all);
+			System.out.println(String.format("%-10s %11d %8d %8d %8d", name, clients.size(),
+					rss(process.pid()) / 1024, all[all.length / 2] / 1000, all[(int) (all.length * 0.99)] / 1000));
+		} finally {
+			for (Client client:clients)
+				client.close();
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	/**
+	 * Sends messages from sender to receiver one at a time
+	 * @return the latency of every message in nanoseconds
+	 */
+	private static long[] relay(Client sender, Client receiver, int count) {
+		long[] latencies = new long[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				long start = System.nanoTime();
+				Message message = new Message();
+				message.setType(Type.Message);
+				message.setID(sender.conversation);
+				message.setStatus("Hello " + i);
+				sender.send(message);
+				receiver.readType(Type.Message);
+				latencies[i] = System.nanoTime() - start;
+				sender.readType(Type.Message);	// Delivery receipt
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return latencies;
+	}
+
+	/**
+	 * Waits until the server accepts connections
+	 */
+	private static void waitForServer() throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket("localhost", PORT).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("Server did not start");
+	}
+
+	/**
+	 * Reads the resident set size of a process on Linux
+	 * @return the rss in kB, or -1 if it could not be read
+	 */
+	private static long rss(long pid) {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmRSS:"))
+						return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+		}
+		return -1;
+	}
+
+	/**
+	 * A logged in client that talks the object stream protocol
+	 */
+	private static class Client {
+		private final String user;
+		private final Socket socket;
+		private final ObjectInputStream in;
+		private final ObjectOutputStream out;
+		private Integer conversation;
+
+		public Client(String user) throws Exception {
+			this.user = user;
+			socket = new Socket("localhost", PORT);
+			socket.setTcpNoDelay(true);
+			in = new ObjectInputStream(socket.getInputStream());
+			in.readObject();	// Welcome
+			out = new ObjectOutputStream(socket.getOutputStream());
+			Message message = new Message();
+			message.setType(Type.Login);
+			message.setUser(user);
+			send(message);
+			readType(Type.Login);
+		}
+
+		/**
+		 * Starts a conversation with another client
+		 */
+		public void start(Client other) throws Exception {
+			Message message = new Message();
+			message.setType(Type.Start);
+			message.setUser(other.user);
+			send(message);
+			Message started = readType(Type.Start);
+			conversation = started.getID();
+			other.readType(Type.Start);
+		}
+
+		public void send(Message message) throws IOException {
+			out.writeObject(message);
+			out.flush();
+		}
+
+		/**
+		 * Reads messages until one of the given type arrives
+		 */
+		public Message readType(Type type) throws Exception {
+			while (true) {
+				Message message = (Message) in.readObject();
+				if (message.getType() == type) return message;
+				if (message.getType() == Type.Error)
+					throw new IllegalStateException(message.toString());
+			}
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.Message;
+import main.Message.Type;
+import main.Server;
+import main.ServerConfig;
+import main.ServerConnection;
+import main.TypingAggregator;
+
+/**
+ * Measures the frames a conversation gets while it's members type. Every member sends
+ * typing (703) and entered text (702) events as fast as it can, through Server.pushTyping,
+ * and the frames sent to the members are counted. The burst is run with every event
+ * pushed, and with events throttled to one per user per interval.
+ *
+ * Usage: java bench.TypingBurstBenchmark [members] [seconds per run] [interval ms]
+ * @author Charles (cjfman)
+ *
+ */
+public class TypingBurstBenchmark {
+	public static void main(String[] args) throws Exception {
+		int members = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+		long interval = args.length > 2 ? Long.parseLong(args[2]) : 250;
+
+		System.out.println(String.format("%d members typing in one conversation", members));
+		System.out.println("interval ms     events     frames   delivered   suppressed");
+		for (long ms:new long[] {0, interval}) {
+			burst(members, seconds, ms);
+		}
+	}
+
+	private static void burst(final int members, double seconds, long interval) throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.setMode(Server.Mode.NIO);
+		config.setTypingInterval(interval);
+		final Server server = new Server(0, config);
+		CountingTransport[] transports = new CountingTransport[members];
+		for (int i = 0; i < members; i++) {
+			transports[i] = new CountingTransport();
+			ServerConnection connection = server.openConnection(transports[i]);
+			Message login = new Message();
+			login.setType(Type.Login);
+			login.setUser(name(i));
+			connection.handleMessage(login);
+		}
+		final int ID = server.startConversation(name(0));
+		for (int i = 1; i < members; i++)
+			server.addToConversation(ID, name(i));
+		long before = frames(transports);
+
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final AtomicLong events = new AtomicLong(0);
+		final CountDownLatch done = new CountDownLatch(members);
+		for (int t = 0; t < members; t++) {
+			final String user = name(t);
+			new Thread(new Runnable() {
+				public void run() {
+					int code = 703;
+					while (!stop.get()) {
+						Message message = new Message();
+						message.setType(Type.Event);
+						message.setUser(user);
+						message.setID(ID);
+						message.setCode(code);
+						server.pushTyping(ID, message);
+						events.incrementAndGet();
+						code = code == 703 ? 702 : 703;
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		Thread.sleep((long) (seconds * 1000));
+		stop.set(true);
+		done.await();
+		Thread.sleep(500);	// Let the held back events be pushed
+		long frames = frames(transports) - before;
+
+		TypingAggregator typing = server.getTyping();
+		long delivered = typing == null ? events.get() : typing.getDelivered();
+		long suppressed = typing == null ? 0 : typing.getSuppressed();
+		System.out.println(String.format("%11d %10d %10d %11d %12d", interval, events.get(), frames, delivered, suppressed));
+		server.kill();
+	}
+
+	private static long frames(CountingTransport[] transports) {
+		long frames = 0;
+		for (CountingTransport transport:transports)
+			frames += transport.getFrames();
+		return frames;
+	}
+
+	private static String name(int i) {
+		return String.format("member%03d", i);
+	}
+}
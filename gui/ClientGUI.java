@@ -10,12 +10,11 @@ import java.awt.event.MouseListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
-import javax.swing.DefaultListModel;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -31,6 +30,8 @@ import javax.swing.ListSelectionModel;
 
 import main.ClientConversation;
 import main.ClientMessageSender;
+import main.FriendPresence;
+import main.TimerWheel;
 import main.Message;
 
 /**
@@ -38,11 +39,11 @@ import main.Message;
  * @author descioli
  */
 public class ClientGUI extends JPanel {
-    private JList friendsList;
-    private DefaultListModel friendsListModel;
-    private JList OfflineFriends;
-    private DefaultListModel offlineFriendsModel;
-    private ConcurrentLinkedQueue<Message> sendables;
+    private JList<String> friendsList;
+    private FriendListModel friendsListModel;
+    private JList<String> OfflineFriends;
+    private FriendListModel offlineFriendsModel;
+    private BlockingQueue<Message> sendables;
     private String user;
     private NewMsgDialog newMsgDialog;
     private JFrame friendsFrame;
@@ -51,7 +52,10 @@ public class ClientGUI extends JPanel {
     private JTabbedPane convosTabPane;
     private HashMap<Integer, ConvoGUI> convos;
 
-    public ClientGUI(ConcurrentLinkedQueue<Message> sendables, String user) {
+    private FriendPresence friends;
+    private final TimerWheel timer; // Typing timeouts of every conversation
+
+    public ClientGUI(BlockingQueue<Message> sendables, String user) {
         super();
 
         // Create and setup the window
@@ -60,38 +64,50 @@ public class ClientGUI extends JPanel {
 
         this.user = user;
         this.sendables = sendables;
-        this.friendsListModel = new DefaultListModel();
         this.friendsFrame = frame;
+        // The GUI's own copy of the friends, changed only on the event thread
+        this.friends = new FriendPresence();
+        this.friends.setListener(new FriendPresence.Listener() {
+            public void friendAdded(boolean online, int index, String friend) {
+                (online ? friendsListModel : offlineFriendsModel).added(index);
+            }
+            public void friendRemoved(boolean online, int index, String friend) {
+                (online ? friendsListModel : offlineFriendsModel).removed(index);
+            }
+        });
         this.convos = new HashMap<Integer, ConvoGUI>();
+        this.timer = new TimerWheel();
 
         frame.setJMenuBar(setupMenu());
 
         newMsgDialog = new NewMsgDialog(this.friendsFrame);
         newMsgDialog.pack();
 
-        this.friendsListModel = new DefaultListModel();
+        this.friendsListModel = new FriendListModel(friends, true);
 
 //        this.setBorder(BorderFactory.createCompoundBorder(
 //                BorderFactory.createEmptyBorder(eb, eb, eb, eb),
 //                BorderFactory.createEtchedBorder()));
         // Create the list and put it in a scroll pane.
-        friendsList = new JList(friendsListModel);
+        friendsList = new JList<String>(friendsListModel);
         friendsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         friendsList.setSelectedIndex(0);
         // friendsList.addSelectionListener(this);
         friendsList.setVisibleRowCount(5);
+        friendsList.setCellRenderer(new MyListRenderer());
         JScrollPane listScrollPane = new JScrollPane(friendsList);
 
-        this.offlineFriendsModel = new DefaultListModel();
+        this.offlineFriendsModel = new FriendListModel(friends, false);
 
 //        this.setBorder(BorderFactory.createCompoundBorder(
 //                BorderFactory.createEmptyBorder(eb, eb, eb, eb),
 //                BorderFactory.createEtchedBorder()));
         // Create the list and put it in a scroll pane.
-        OfflineFriends = new JList(offlineFriendsModel);
+        OfflineFriends = new JList<String>(offlineFriendsModel);
         OfflineFriends.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         OfflineFriends.setSelectedIndex(0);
         OfflineFriends.setVisibleRowCount(5);
+        OfflineFriends.setCellRenderer(new MyListRenderer());
         JScrollPane offlinelistScrollPane = new JScrollPane(OfflineFriends);
 
         // Creating and setting up the conversations window
@@ -116,7 +132,7 @@ public class ClientGUI extends JPanel {
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2) {
                     int index = friendsList.locationToIndex(e.getPoint());
-                    String User = (String) friendsListModel.get(index);
+                    String User = friendsListModel.getElementAt(index);
                     newMessageFromList(User);
                 }
             }
@@ -238,7 +254,7 @@ public class ClientGUI extends JPanel {
      * @param conv
      */
     public void createNewConversation(int ID, ClientConversation conv) {
-        ConvoGUI convoGUI = new ConvoGUI(conv, this.sendables, this.user, ID);
+        ConvoGUI convoGUI = new ConvoGUI(conv, this.sendables, this.user, ID, this.timer);
         this.convosTabPane.addTab(Integer.toString(ID), convoGUI);
         convoGUI.requestFocus();
         convosTabPane.setTabComponentAt(this.convosTabPane.getTabCount() - 1,
@@ -249,20 +265,14 @@ public class ClientGUI extends JPanel {
     }
 
     /**
-     * Refreshes the Online and Offline friends lists.
+     * Lists a friend as online or offline, updating only the rows of the
+     * Online and Offline friends lists that changed.
      * 
-     * @param friends
-     * @param offlineFriends
+     * @param friend
+     * @param online
      */
-    public void fireChanges(String[] friends, String[] offlineFriends) {
-        this.friendsListModel.clear();
-        for (String friend : friends) {
-            this.friendsListModel.addElement(friend);
-        }
-        this.offlineFriendsModel.clear();
-        for (String offlinefriend : offlineFriends) {
-            this.offlineFriendsModel.addElement(offlinefriend);
-        }
+    public void setFriendOnline(String friend, boolean online) {
+        this.friends.setOnline(friend, online);
     }
 
     /**
@@ -271,7 +281,22 @@ public class ClientGUI extends JPanel {
      * @param ID
      */
     public void updateConvoUsers(Integer ID) {
-        this.convos.get(ID).updateUsers();
+        if (this.convos.containsKey(ID)) {
+            this.convos.get(ID).updateUsers();
+        }
+    }
+
+    /**
+     * Called when one user joins, leaves or changes status in a conversation
+     * 
+     * @param ID
+     * @param User
+     */
+    public void updateConvoUser(Integer ID, String User) {
+        // The tab may have been closed since the change
+        if (this.convos.containsKey(ID)) {
+            this.convos.get(ID).updateUser(User);
+        }
     }
 
     /**
@@ -280,7 +305,9 @@ public class ClientGUI extends JPanel {
      * @param ID
      */
     public void updateConvoText(Integer ID) {
-        this.convos.get(ID).updateText();
+        if (this.convos.containsKey(ID)) {
+            this.convos.get(ID).updateText();
+        }
     }
 
     /**
@@ -293,7 +320,10 @@ public class ClientGUI extends JPanel {
         if (this.convosTabPane.getTabCount() == 0) {
             convosFrame.setVisible(false);
         }
-        this.convos.remove(ID);
+        ConvoGUI convo = this.convos.remove(ID);
+        if (convo != null) {
+            convo.close();
+        }
         Message n = ClientMessageSender.CreateLeftMessage(ID, this.user);
         this.sendables.add(n);
     }
@@ -9,11 +9,7 @@ import java.awt.event.FocusListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.BlockingQueue;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -24,11 +20,14 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultCaret;
 
 import main.ClientConversation;
 import main.ClientMessageSender;
 import main.Message;
+import main.TimerWheel;
 
 /**
  * GUI for individual conversation windows
@@ -37,43 +36,39 @@ import main.Message;
 public class ConvoGUI extends JPanel implements KeyListener {
 
     private JTable talkers;
-    private MyTableModel tm;
+    private ParticipantTableModel tm;
     private JScrollPane talkerScrollPane;
     private JTextArea convoText;
     private JScrollPane convoScrollPane;
     private JTextArea msgText;
     private JButton addFriend;
+    private JButton older;
     //private JScrollPane msgScrollPane;
 
-    private ConcurrentLinkedQueue<Message> sendables;
+    private BlockingQueue<Message> sendables;
     private String user;
     private int ID;
     public ClientConversation clientConvo;
     private boolean typing;
-    private ScheduledExecutorService timer;
-    private ScheduledFuture<?> typingCheck;
+    private TimerWheel timer; // Shared by every conversation
+    private TimerWheel.Timeout typingCheck;
+    private long shown = 0; // Number of the next conversation line to show
+    private long rewrites = 0; // Times older lines were put in front when the text box was last filled
 
     public ConvoGUI(ClientConversation clientConvo,
-            ConcurrentLinkedQueue<Message> sendables, String user, int ID) {
+            BlockingQueue<Message> sendables, String user, int ID, TimerWheel timer) {
         super(false);
 
         this.sendables = sendables;
         this.user = user;
         this.ID = ID;
         this.clientConvo = clientConvo;
-        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.timer = timer;
 
         BorderLayout layout = new BorderLayout();
         this.setLayout(layout);
         
-        String[] users = clientConvo.UserStatus.keySet().toArray(new String[0]);
-        String[][] data = new String[users.length][2];
-        for (int i = 0; i < users.length; i++) {
-            data[i][0] = users[i];
-            data[i][1] = clientConvo.UserStatus.get(users[i]);
-        }
-        Object[] colNames = { "In conversation", "Status" };
-        this.tm = new MyTableModel(data, colNames);
+        this.tm = new ParticipantTableModel(clientConvo.UserStatus);
         
         this.talkers = new JTable(tm);
         this.convoText = new JTextArea();
@@ -89,6 +84,8 @@ public class ConvoGUI extends JPanel implements KeyListener {
         msgText.setLineWrap(true);
         msgText.setWrapStyleWord(true);
         this.addFriend = new JButton("Add Friend");
+        this.older = new JButton("Older");
+        this.older.setEnabled(false);
 
         this.talkerScrollPane = new JScrollPane(talkers);
         this.talkerScrollPane.setPreferredSize(new Dimension(350,80));
@@ -102,6 +99,8 @@ public class ConvoGUI extends JPanel implements KeyListener {
         topPane.add(this.talkerScrollPane);
         topPane.add(Box.createRigidArea(new Dimension(10,10)));
         topPane.add(this.addFriend);
+        topPane.add(Box.createRigidArea(new Dimension(10,10)));
+        topPane.add(this.older);
         
         this.add(topPane, BorderLayout.PAGE_START);
         
@@ -123,6 +122,13 @@ public class ConvoGUI extends JPanel implements KeyListener {
             }
         });
         
+        this.older.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                sendHistoryMsg();
+            }
+        });
+        
         this.addFocusListener(new FocusListener(){
             public void focusGained(FocusEvent e){
                 msgText.requestFocusInWindow();
@@ -146,6 +152,19 @@ public class ConvoGUI extends JPanel implements KeyListener {
         }
     }
     
+    /**
+     * Asks the server for the lines said before the oldest one we have
+     */
+    public void sendHistoryMsg() {
+        long before = this.clientConvo.OlderBefore();
+        if (before > 0) {
+            Message request = ClientMessageSender.CreateHistoryMessage(this.ID, this.user, before);
+            this.sendables.add(request);
+        }
+        // Asked once, until the page comes back
+        this.older.setEnabled(false);
+    }
+    
     /**
      * Sends a message with the text given to the server, with the conversation ID.
      * @param text
@@ -195,7 +214,7 @@ public class ConvoGUI extends JPanel implements KeyListener {
                 sendMsg(msgText.getText());
                 // If a timer had been started, cancel it
                 if(this.typingCheck!=null){
-                    this.typingCheck.cancel(true);
+                    this.typingCheck.cancel();
                 }
                 this.typing= false;
                 msgText.setText("");
@@ -218,48 +237,83 @@ public class ConvoGUI extends JPanel implements KeyListener {
         }
         // If the timer had been started before, cancel it
         if(this.typingCheck!=null){
-            this.typingCheck.cancel(true);
+            this.typingCheck.cancel();
         }
         // Restart the timer
         typingCheck = this.timer.schedule(new Runnable() {
             public void run(){
                 // Once the timer finishes, send a messages
                 // based on if the text is empty or not
-                if(msgText.getText()==null ||
-                        msgText.getText().equals("")){
-                    sendCleared();
-                } else{
-                    sendEntered();
-                }
-                typing = false;
+                // The text box is read on the event thread
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if(msgText.getText()==null ||
+                                msgText.getText().equals("")){
+                            sendCleared();
+                        } else{
+                            sendEntered();
+                        }
+                        typing = false;
+                    }
+                });
             }
-        }, 1, TimeUnit.SECONDS);
+        }, 1000);
     }
 
     /**
-     * Refreshes the user table whenever there is a new status, or user (rebuilds the whole table)
+     * Called when the tab is closed, drops the pending typing timeout
      */
-    public void updateUsers() {
-        // Looks through the hashmap keys (the hashmap is User -> Status
-        String[] users = clientConvo.UserStatus.keySet().toArray(new String[0]);
-        String[][] data = new String[users.length][2];
-        for (int i = 0; i < clientConvo.UserStatus.size(); i++) {
-            // Place every user next to their status
-            data[i][0] = users[i];
-            data[i][1] = clientConvo.UserStatus.get(users[i]);
+    public void close() {
+        if(this.typingCheck!=null){
+            this.typingCheck.cancel();
         }
-        
-        // Set the tableModel
-        String[] colNames = { "In conversation", "Status" };
-        this.tm = new MyTableModel(data, colNames);
-        this.talkers.setModel(tm);
+    }
+
+    /**
+     * Refreshes the user table, touching only the rows whose user or status changed
+     */
+    public void updateUsers() {
+        this.tm.updateAll(clientConvo.UserStatus);
+    }
+
+    /**
+     * Refreshes one user's row whenever there is a new status, or the user joined or left
+     * @param User
+     */
+    public void updateUser(String User) {
+        this.tm.update(User, clientConvo.UserStatus.get(User));
     }
 
     /**
      * Updates the text box for conversations
+     * Only the new lines are appended to the text box. Once it holds a quarter more lines than the
+     * conversation keeps, the oldest are removed, so the text box stays bounded as well.
+     * When older lines were put in front, the text box is filled again from the start.
      */
     public void updateText() {
-        this.convoText.setText(this.clientConvo.buff.toString());
+        long rewrites = this.clientConvo.Rewrites();
+        if (rewrites != this.rewrites) {
+            this.rewrites = rewrites;
+            StringBuilder text = new StringBuilder();
+            this.shown = this.clientConvo.LinesSince(0, text);
+            this.convoText.setText(text.toString());
+            this.older.setEnabled(this.clientConvo.OlderBefore() > 0);
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        this.shown = this.clientConvo.LinesSince(this.shown, text);
+        if (text.length() == 0) {
+            return;
+        }
+        this.convoText.append(text.toString());
+        int excess = this.convoText.getLineCount() - this.clientConvo.MaxLines;
+        if (excess > this.clientConvo.MaxLines / 4) {
+            try {
+                this.convoText.replaceRange(null, 0, this.convoText.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
     }
     
 }
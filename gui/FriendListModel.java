@@ -0,0 +1,60 @@
+package gui;
+
+import javax.swing.AbstractListModel;
+
+import main.FriendPresence;
+
+/**
+ * A list model showing either the online or the offline friends of a FriendPresence, in
+ * sorted order. It holds no copy of the names; ClientGUI tells it which row was added or
+ * removed and the list repaints only that row.
+ * It is only used on the event thread: the FriendPresence it shows is ClientGUI's own copy,
+ * which is changed on the event thread too, never the ClientModel's.
+ * 
+ * @author descioli
+ * 
+ */
+public class FriendListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    private final FriendPresence presence;
+    private final boolean online;
+
+    /**
+     * @param presence
+     *            - the friends to show
+     * @param online
+     *            - true to show the online friends, false for the offline ones
+     */
+    public FriendListModel(FriendPresence presence, boolean online) {
+        this.presence = presence;
+        this.online = online;
+    }
+
+    @Override
+    public int getSize() {
+        return this.presence.size(this.online);
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return this.presence.get(this.online, index);
+    }
+
+    /**
+     * Called after a friend was added to the list
+     * 
+     * @param index
+     */
+    public void added(int index) {
+        fireIntervalAdded(this, index, index);
+    }
+
+    /**
+     * Called after a friend was removed from the list
+     * 
+     * @param index
+     */
+    public void removed(int index) {
+        fireIntervalRemoved(this, index, index);
+    }
+}
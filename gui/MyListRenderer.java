@@ -12,17 +12,26 @@ import javax.swing.ListCellRenderer;
  * @author descioli
  *
  */
-public class MyListRenderer extends JLabel implements ListCellRenderer{
+public class MyListRenderer extends JLabel implements ListCellRenderer<Object>{
 
     public MyListRenderer(){
         setOpaque(true);
     }
     
     @Override
-    public Component getListCellRendererComponent(JList list, Object value,
+    public Component getListCellRendererComponent(JList<?> list, Object value,
             int index, boolean isSelected, boolean cellHasFocus) {
-        // TODO Auto-generated method stub
-        return null;
+        setText(value == null ? "" : value.toString());
+        if (isSelected) {
+            setBackground(list.getSelectionBackground());
+            setForeground(list.getSelectionForeground());
+        } else {
+            setBackground(list.getBackground());
+            setForeground(list.getForeground());
+        }
+        setEnabled(list.isEnabled());
+        setFont(list.getFont());
+        return this;
     }
 
 }
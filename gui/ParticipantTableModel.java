@@ -0,0 +1,139 @@
+package gui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Uneditable table of the users in a conversation and their status.
+ * Rows stay in the order users joined, and an index from user to row lets a status
+ * change update just that row, so the table only repaints what changed.
+ * 
+ * @author descioli
+ * 
+ */
+public class ParticipantTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final String[] COLUMN_NAMES = { "In conversation", "Status" };
+
+    private final ArrayList<String> users;
+    private final ArrayList<String> statuses;
+    private final HashMap<String, Integer> rows; // User -> row
+
+    /**
+     * Constructs a table holding every user of a conversation
+     * 
+     * @param userStatus
+     *            - every user mapped to it's status
+     */
+    public ParticipantTableModel(Map<String, String> userStatus) {
+        this.users = new ArrayList<String>();
+        this.statuses = new ArrayList<String>();
+        this.rows = new HashMap<String, Integer>();
+        for (Entry<String, String> entry : userStatus.entrySet()) {
+            this.rows.put(entry.getKey(), this.users.size());
+            this.users.add(entry.getKey());
+            this.statuses.add(entry.getValue());
+        }
+    }
+
+    /**
+     * Adds a user, or changes the status of one that is already in the table.
+     * Fires an insert or an update of that one row.
+     * 
+     * @param user
+     * @param status
+     */
+    public void setStatus(String user, String status) {
+        Integer row = this.rows.get(user);
+        if (row == null) {
+            row = this.users.size();
+            this.rows.put(user, row);
+            this.users.add(user);
+            this.statuses.add(status);
+            fireTableRowsInserted(row, row);
+        } else if (!status.equals(this.statuses.get(row))) {
+            this.statuses.set(row, status);
+            fireTableCellUpdated(row, 1);
+        }
+    }
+
+    /**
+     * Removes a user from the table. Fires a delete of that row.
+     * 
+     * @param user
+     */
+    public void removeUser(String user) {
+        Integer row = this.rows.remove(user);
+        if (row == null) {
+            return;
+        }
+        this.users.remove((int) row);
+        this.statuses.remove((int) row);
+        // The rows below moved up by one
+        for (int i = row; i < this.users.size(); i++) {
+            this.rows.put(this.users.get(i), i);
+        }
+        fireTableRowsDeleted(row, row);
+    }
+
+    /**
+     * Brings one user's row up to date
+     * 
+     * @param user
+     * @param status
+     *            - the user's status, or null if the user left
+     */
+    public void update(String user, String status) {
+        if (status == null) {
+            removeUser(user);
+        } else {
+            setStatus(user, status);
+        }
+    }
+
+    /**
+     * Brings every row up to date, firing events only for the rows that changed
+     * 
+     * @param userStatus
+     *            - every user mapped to it's status
+     */
+    public void updateAll(Map<String, String> userStatus) {
+        for (String user : this.users.toArray(new String[0])) {
+            if (!userStatus.containsKey(user)) {
+                removeUser(user);
+            }
+        }
+        for (Entry<String, String> entry : userStatus.entrySet()) {
+            setStatus(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return this.users.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int col) {
+        return COLUMN_NAMES[col];
+    }
+
+    @Override
+    public Object getValueAt(int row, int col) {
+        return col == 0 ? this.users.get(row) : this.statuses.get(row);
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int col) {
+        return false;
+    }
+}
@@ -0,0 +1,185 @@
+package gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import main.ClientConversation;
+import main.Message;
+
+/**
+ * Hands updates from the socket thread to the GUI. The socket thread only marks what changed:
+ * new conversations, conversations with new text, users whose status changed and friends who
+ * went online or offline. The GUI is brought up to date on the Swing event thread, at most
+ * once per frame interval, so a burst of hundreds of messages costs one repaint instead of
+ * hundreds. Repeated changes to the same thing within a frame are applied once.
+ * 
+ * @author descioli
+ * 
+ */
+public class UpdateDispatcher {
+    public static final int DEFAULT_INTERVAL = 16; // Milliseconds, about 60 frames a second
+
+    private final int interval;
+    private ClientGUI gui; // Only touched on the event thread
+    private long lastFlush = 0;
+    private final Timer timer;
+    private final Runnable flusher;
+
+    // Changes marked since the last flush, guarded by this
+    private boolean scheduled = false;
+    private ArrayList<Integer> started = new ArrayList<Integer>();
+    private HashMap<Integer, ClientConversation> conversations = new HashMap<Integer, ClientConversation>();
+    private LinkedHashSet<Integer> text = new LinkedHashSet<Integer>();
+    private LinkedHashMap<Integer, LinkedHashSet<String>> users = new LinkedHashMap<Integer, LinkedHashSet<String>>();
+    private LinkedHashMap<String, Boolean> friends = new LinkedHashMap<String, Boolean>();
+
+    /**
+     * Creates the GUI on the event thread
+     * 
+     * @param sendables
+     * @param user
+     * @param interval
+     *            - least milliseconds between two updates of the GUI
+     */
+    public UpdateDispatcher(final BlockingQueue<Message> sendables, final String user, int interval) {
+        this.interval = interval;
+        this.flusher = new Runnable() {
+            public void run() {
+                flushWhenDue();
+            }
+        };
+        this.timer = new Timer(interval, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        this.timer.setRepeats(false);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                gui = new ClientGUI(sendables, user);
+            }
+        });
+    }
+
+    /**
+     * A conversation was started, it gets a tab on the next update
+     * 
+     * @param ID
+     * @param conv
+     */
+    public synchronized void conversationStarted(int ID, ClientConversation conv) {
+        this.started.add(ID);
+        this.conversations.put(ID, conv);
+        schedule();
+    }
+
+    /**
+     * A conversation has new text
+     * 
+     * @param ID
+     */
+    public synchronized void textChanged(int ID) {
+        this.text.add(ID);
+        schedule();
+    }
+
+    /**
+     * A user joined, left or changed status in a conversation
+     * 
+     * @param ID
+     * @param user
+     */
+    public synchronized void userChanged(int ID, String user) {
+        LinkedHashSet<String> changed = this.users.get(ID);
+        if (changed == null) {
+            changed = new LinkedHashSet<String>();
+            this.users.put(ID, changed);
+        }
+        changed.add(user);
+        schedule();
+    }
+
+    /**
+     * A friend was added, or went online or offline
+     * 
+     * @param friend
+     * @param online
+     */
+    public synchronized void friendChanged(String friend, boolean online) {
+        this.friends.put(friend, online);
+        schedule();
+    }
+
+    /**
+     * Asks the event thread for an update, unless one is already coming. Must hold the lock
+     */
+    private void schedule() {
+        if (!this.scheduled) {
+            this.scheduled = true;
+            SwingUtilities.invokeLater(this.flusher);
+        }
+    }
+
+    /**
+     * Updates the GUI now, or starts the timer if the last update was less than a frame ago
+     * Runs on the event thread
+     */
+    private void flushWhenDue() {
+        long wait = this.lastFlush + this.interval - System.currentTimeMillis();
+        if (wait > 0) {
+            this.timer.setInitialDelay((int) wait);
+            this.timer.restart();
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Applies every change marked since the last update. Runs on the event thread
+     */
+    private void flush() {
+        ArrayList<Integer> started;
+        HashMap<Integer, ClientConversation> conversations;
+        LinkedHashSet<Integer> text;
+        LinkedHashMap<Integer, LinkedHashSet<String>> users;
+        LinkedHashMap<String, Boolean> friends;
+        synchronized (this) {
+            this.scheduled = false;
+            started = this.started;
+            conversations = this.conversations;
+            text = this.text;
+            users = this.users;
+            friends = this.friends;
+            this.started = new ArrayList<Integer>();
+            this.conversations = new HashMap<Integer, ClientConversation>();
+            this.text = new LinkedHashSet<Integer>();
+            this.users = new LinkedHashMap<Integer, LinkedHashSet<String>>();
+            this.friends = new LinkedHashMap<String, Boolean>();
+        }
+        this.lastFlush = System.currentTimeMillis();
+
+        for (Integer ID : started) {
+            this.gui.createNewConversation(ID, conversations.get(ID));
+        }
+        for (Integer ID : text) {
+            this.gui.updateConvoText(ID);
+        }
+        for (Entry<Integer, LinkedHashSet<String>> entry : users.entrySet()) {
+            for (String user : entry.getValue()) {
+                this.gui.updateConvoUser(entry.getKey(), user);
+            }
+        }
+        for (Entry<String, Boolean> entry : friends.entrySet()) {
+            this.gui.setFriendOnline(entry.getKey(), entry.getValue());
+        }
+    }
+}
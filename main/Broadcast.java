@@ -0,0 +1,86 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A message that is sent to many clients, like a chat line relayed to a conversation or a
+ * presence event pushed to every friend. The same Message is handed to every recipient, and
+ * transports that write frames encode it only once and share the bytes.
+ * The message must not be changed after the broadcast is created.
+ * @author Charles (cjfman)
+ *
+ */
+public class Broadcast {
+	private final Message message;
+	private volatile byte[] serialized;	// Frame with a serialized body, encoded on first use
+	private volatile byte[] binary;		// Frame with a MessageCodec body, encoded on first use
+	private volatile boolean superseded = false;
+
+	/**
+	 * @param message: the message to broadcast
+	 */
+	public Broadcast(Message message) {
+		this.message = message;
+	}
+
+	/**
+	 * @return the broadcast message
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * Marks the message as out of date. Transports skip it if it has not been written yet
+	 */
+	public void supersede() {
+		superseded = true;
+	}
+
+	/**
+	 * @return true if a newer message has taken the place of this one
+	 */
+	public boolean isSuperseded() {
+		return superseded;
+	}
+
+	/**
+	 * Encodes the message the first time it is called for an encoding
+	 * @param binary: true for a MessageCodec body, false for a serialized body
+	 * @return a read only view of the encoded frame, positioned at it's start
+	 * @throws IOException
+	 */
+	public ByteBuffer frame(boolean binary) throws IOException {
+		return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the encoded frame to a blocking stream
+	 * @param out
+	 * @param binary: true for a MessageCodec body, false for a serialized body
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, boolean binary) throws IOException {
+		out.write(bytes(binary));
+	}
+
+	private byte[] bytes(boolean binary) throws IOException {
+		byte[] encoded = binary ? this.binary : serialized;
+		if (encoded == null) {
+			synchronized (this) {
+				encoded = binary ? this.binary : serialized;
+				if (encoded == null) {
+					ByteBuffer frame = MessageFrames.encode(message, binary);
+					encoded = frame.array();	// The frame fills it's whole array
+					if (binary)
+						this.binary = encoded;
+					else
+						serialized = encoded;
+				}
+			}
+		}
+		return encoded;
+	}
+}
@@ -8,7 +8,8 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.swing.GroupLayout;
 import javax.swing.JButton;
@@ -27,7 +28,7 @@ public class Client {
      */
     public static void main(String[] args) {
         // Start the shared queue (for all client threads) for sending messages out.
-        ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>();
+        BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>();
 
         // Start the dummy gui for username input
         UsernameInput main = new UsernameInput(messages);
@@ -46,8 +47,26 @@ public class Client {
         ClientModel model = new ClientModel(Username, messages);
         try {
             // The IP is defaulted to localhost (would be hardcoded in a real application as well)
+            // Pass --nio when the server is running in nio mode, or --binary when it talks in binary frames
+            // --batch=n and --linger=ms tune how outgoing messages are batched into one flush
+            boolean framed = false;
+            boolean binary = false;
+            int batch = ClientSocketThread.DEFAULT_MAX_BATCH;
+            long linger = ClientSocketThread.DEFAULT_LINGER;
+            for (String arg : args) {
+                if (arg.equals("--nio"))
+                    framed = true;
+                else if (arg.equals("--binary"))
+                    framed = binary = true;
+                else if (arg.startsWith("--batch="))
+                    batch = Integer.parseInt(arg.substring("--batch=".length()));
+                else if (arg.startsWith("--linger="))
+                    linger = Long.parseLong(arg.substring("--linger=".length()));
+            }
             ClientSocketThread dealer = new ClientSocketThread(new Socket(
-                    "localhost", 4444), messages, model, false);
+                    "localhost", 4444), messages, model, false, framed, binary);
+            dealer.MaxBatch = batch;
+            dealer.Linger = linger;
             dealer.run();
         } catch (MalformedURLException e) {
             e.printStackTrace();
@@ -64,9 +83,9 @@ class UsernameInput extends JFrame {
     private JLabel enterUser;
     private JTextField userText;
     private JButton loginButton;
-    private ConcurrentLinkedQueue<Message> sendables;
+    private BlockingQueue<Message> sendables;
 
-    public UsernameInput(ConcurrentLinkedQueue<Message> sendables) {
+    public UsernameInput(BlockingQueue<Message> sendables) {
         super();
 
         enterUser = new JLabel("Enter a username:");
@@ -1,20 +1,33 @@
 package main;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Keeps track of the text, Users and status of a conversation.
+ * Only the most recent MaxLines lines of text are kept, in a ring, so a conversation that runs
+ * for days uses the same memory as a short one.
  * @author Andres
  *
  */
 public class ClientConversation {
-    public StringBuffer buff;
+    public static final int MAX_LINES = 1000;
+    public final int MaxLines;
+    private final String[] lines;
+    private long added; // Number of lines ever added, the next line's number
+    private long rewrites; // Number of times older lines were put in front, the lines were renumbered each time
+    private long oldest; // Sequence number of the oldest line from the history, 0 if none came, 1 if there is none older
     public ConcurrentHashMap<String,String> UserStatus;
     
     public ClientConversation(String[] Users) {
-        this.buff = new StringBuffer();
+        this(Users, MAX_LINES);
+    }
+    
+    public ClientConversation(String[] Users, int MaxLines) {
+        this.MaxLines = MaxLines;
+        this.lines = new String[MaxLines];
+        this.added = 0;
+        this.rewrites = 0;
+        this.oldest = 0;
         this.UserStatus = new ConcurrentHashMap<String,String>();
         for (String i : Users) {
             this.UserStatus.put(i,"");
@@ -32,8 +45,77 @@ public class ClientConversation {
         this.UserStatus.remove(User);
     }
     
-    public void UpdateConversation(String User, String Message) {
-        this.buff.append("\n" + User + ": " + Message);
+    public synchronized void UpdateConversation(String User, String Message) {
+        this.lines[(int) (this.added % this.lines.length)] = "\n" + User + ": " + Message;
+        this.added++;
+    }
+    
+    /**
+     * Appends the text of the lines added since a line number, skipping lines that are no longer kept.
+     * @param From, the number of the first line wanted
+     * @param Text, the lines are appended to it
+     * @return the number of lines ever added, which is where the next call should start
+     */
+    public synchronized long LinesSince(long From, StringBuilder Text) {
+        long first = Math.max(From, this.added - this.lines.length);
+        for (long i = first; i < this.added; i++) {
+            Text.append(this.lines[(int) (i % this.lines.length)]);
+        }
+        return this.added;
+    }
+    
+    /**
+     * Puts a page of lines said earlier in front of the kept lines, as many of the newest of them
+     * as there is room for. The kept lines are renumbered, so whoever shows them starts over when
+     * Rewrites changes.
+     * @param Lines, the page's lines, oldest first
+     * @param Oldest, the sequence number of the page's first line, 1 if there is none older
+     */
+    public synchronized void PrependHistory(Message[] Lines, long Oldest) {
+        int kept = (int) Math.min(this.added, this.lines.length);
+        int room = Math.min(Lines.length, this.lines.length - kept);
+        String[] newer = new String[kept];
+        for (int i = 0; i < kept; i++) {
+            newer[i] = this.lines[(int) ((this.added - kept + i) % this.lines.length)];
+        }
+        long first = this.added - kept;
+        for (int i = 0; i < room; i++) {
+            Message line = Lines[Lines.length - room + i];
+            this.lines[(int) ((first + i) % this.lines.length)] = "\n" + line.User + ": " + line.Status;
+        }
+        for (int i = 0; i < kept; i++) {
+            this.lines[(int) ((first + room + i) % this.lines.length)] = newer[i];
+        }
+        this.added += room;
+        this.oldest = Oldest;
+        this.rewrites++;
+    }
+    
+    /**
+     * @return the number of times older lines were put in front of the kept ones
+     */
+    public synchronized long Rewrites() {
+        return this.rewrites;
+    }
+    
+    /**
+     * @return the sequence number older lines must be asked for before, or 0 if there are none
+     * or no room left for them
+     */
+    public synchronized long OlderBefore() {
+        if (this.oldest <= 1 || this.added >= this.lines.length) {
+            return 0;
+        }
+        return this.oldest;
+    }
+    
+    /**
+     * @return the text of every line that is still kept
+     */
+    public String Text() {
+        StringBuilder text = new StringBuilder();
+        LinesSince(0, text);
+        return text.toString();
     }
     
     public void ChangeStatus(String User, String Status) {
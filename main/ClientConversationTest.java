@@ -0,0 +1,89 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the transcript kept by ClientConversation
+ * @author Andres
+ *
+ */
+public class ClientConversationTest {
+
+    @Test
+    public void testLinesSince() {
+        ClientConversation convo = new ClientConversation(new String[] {"Andres"});
+        convo.UpdateConversation("Andres", "Hi");
+        StringBuilder text = new StringBuilder();
+        long next = convo.LinesSince(0, text);
+        assertEquals(1, next);
+        assertEquals("\nAndres: Hi", text.toString());
+        
+        // Only the new line is returned
+        convo.UpdateConversation("Charles", "Hey");
+        text = new StringBuilder();
+        next = convo.LinesSince(next, text);
+        assertEquals(2, next);
+        assertEquals("\nCharles: Hey", text.toString());
+        
+        // Nothing new
+        text = new StringBuilder();
+        assertEquals(2, convo.LinesSince(next, text));
+        assertEquals(0, text.length());
+    }
+    
+    @Test
+    public void testBounded() {
+        ClientConversation convo = new ClientConversation(new String[] {"Andres"}, 3);
+        for (int i = 0; i < 10; i++) {
+            convo.UpdateConversation("Andres", Integer.toString(i));
+        }
+        assertEquals("\nAndres: 7\nAndres: 8\nAndres: 9", convo.Text());
+        
+        // Lines that are no longer kept are skipped
+        StringBuilder text = new StringBuilder();
+        assertEquals(10, convo.LinesSince(2, text));
+        assertEquals("\nAndres: 7\nAndres: 8\nAndres: 9", text.toString());
+    }
+    
+    @Test
+    public void testPrependHistory() {
+        ClientConversation convo = new ClientConversation(new String[] {"Andres"}, 4);
+        convo.UpdateConversation("Andres", "new");
+        assertEquals(0, convo.OlderBefore());
+        
+        // Older lines go in front, and the next page is asked for before the first of them
+        convo.PrependHistory(new Message[] {line("Charles", "b"), line("Andres", "c")}, 7);
+        assertEquals("\nCharles: b\nAndres: c\nAndres: new", convo.Text());
+        assertEquals(1, convo.Rewrites());
+        assertEquals(7, convo.OlderBefore());
+        
+        // Only the newest lines of a page fit
+        convo.PrependHistory(new Message[] {line("Charles", "x"), line("Charles", "a")}, 5);
+        assertEquals("\nCharles: a\nCharles: b\nAndres: c\nAndres: new", convo.Text());
+        assertEquals(0, convo.OlderBefore());
+        
+        // New lines still follow
+        convo.UpdateConversation("Andres", "newer");
+        StringBuilder text = new StringBuilder();
+        assertEquals(5, convo.LinesSince(4, text));
+        assertEquals("\nAndres: newer", text.toString());
+    }
+    
+    @Test
+    public void testEmptyHistory() {
+        ClientConversation convo = new ClientConversation(new String[] {"Andres"});
+        convo.PrependHistory(new Message[] {line("Charles", "first")}, 2);
+        assertEquals(2, convo.OlderBefore());
+        
+        // An empty page means there is nothing older
+        convo.PrependHistory(new Message[0], 1);
+        assertEquals(0, convo.OlderBefore());
+        assertEquals("\nCharles: first", convo.Text());
+    }
+    
+    private static Message line(String User, String Text) {
+        return ClientMessageSender.CreateSentMessage(1, User, Text);
+    }
+}
@@ -17,6 +17,22 @@ public class ClientMessageSender {
         return n;
     }
     
+    /**
+     * Asks for a page of a conversation's history
+     * @param Before the sequence number the lines must be older than, 0 for the latest lines
+     */
+    public static Message CreateHistoryMessage(int ID, String User, long Before) {
+        Message n = new Message();
+        n.setID(ID);
+        n.setUser(User);
+        n.setCode(Server.HISTORY_PAGE);
+        if (Before > 0) {
+            n.setStatus(Long.toString(Before));
+        }
+        n.setType(Type.Message);
+        return n;
+    }
+    
     public static Message CreateStatusMessage(String User, String Status) {
         Message n = new Message();
         n.setStatus(Status);
@@ -1,41 +1,47 @@
 package main;
 
-import gui.ClientGUI;
+import gui.UpdateDispatcher;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
 /**
  * Interprets received messsages and keeps track of conversations and who is online.
  * @author Andres
  *
  */
 public class ClientModel {
-    private ArrayList<String> FriendsList;
-    private ArrayList<String> OfflineFriends;
+    private final FriendPresence Friends;
     private final String user;
-    private ClientGUI GUI;
-    private ConcurrentLinkedQueue<Message> sendables;
+    private UpdateDispatcher GUI; // Passes changes to the GUI on the Swing event thread
+    private BlockingQueue<Message> sendables;
     private HashMap<Integer,ClientConversation> Conversations;
     public boolean Debug = false; // Used for testing in JUnit
     public ArrayList<String> Tester = new ArrayList<String>();
     
-    public ClientModel(String user, ConcurrentLinkedQueue<Message> sendables) {
+    public ClientModel(String user, BlockingQueue<Message> sendables) {
         this.user = user;
-        this.FriendsList = new ArrayList<String>();
+        this.Friends = new FriendPresence();
         this.GUI = null;
         this.Conversations = new HashMap<Integer,ClientConversation>();
         this.sendables = sendables;
-        this.OfflineFriends = new ArrayList<String>();
     }
     
     /**
      * On first login packet, start the client-side GUI and set it.
      */
     public void login() {
-        ClientGUI GUI = new ClientGUI(this.sendables,this.user);
+        final UpdateDispatcher GUI = new UpdateDispatcher(this.sendables,this.user,UpdateDispatcher.DEFAULT_INTERVAL);
         this.GUI = GUI;
+        // The GUI keeps it's own friends lists, it is told which friends changed
+        this.Friends.setListener(new FriendPresence.Listener() {
+            public void friendAdded(boolean online, int index, String friend) {
+                GUI.friendChanged(friend, online);
+            }
+            public void friendRemoved(boolean online, int index, String friend) {
+            }
+        });
         if (Debug) {
             Tester.add("Login");
         }
@@ -63,40 +69,25 @@ public class ClientModel {
         
         // Add a user (may be offline)
         else if (input.getCode() == 301) {
-            if (!this.OfflineFriends.contains(input.User)) {
-                this.OfflineFriends.add(input.User);
-                ChangedFriendsList();
-            }
+            this.Friends.addFriend(input.User);
         }
         // Add multiple users ( may also be offline)
         else if (input.getCode() == 302) {
             for (String i: input.Friends) {
-                if (!this.OfflineFriends.contains(i)) {
-                    this.OfflineFriends.add(i); 
-                }
+                this.Friends.addFriend(i);
             }
-            ChangedFriendsList();
         }
         
         // Single user add, is online!
         else if (input.getCode() == 304 | input.getCode() == 305) {
-            if (!this.FriendsList.contains(input.User)) {
-                this.FriendsList.add(input.User);
-                if (this.OfflineFriends.contains(input.User)) {
-                    this.OfflineFriends.remove(input.User);
-                }
-                ChangedFriendsList(); 
-            }
+            this.Friends.setOnline(input.User, true);
         }
         
         // Many user add, are online!
         else if (input.getCode() == 305) {
             for (String i: input.Friends) {
-                if (!this.FriendsList.contains(i)) {
-                    this.FriendsList.add(i); 
-                }
+                this.Friends.setOnline(i, true);
             }
-            ChangedFriendsList();
         }
         
         if (Debug) {
@@ -121,11 +112,10 @@ public class ClientModel {
             }
             ClientConversation Conv = new ClientConversation(Users);
             Conversations.put(input.getID(),Conv);
-            GUI.createNewConversation(input.getID(),Conv);
+            GUI.conversationStarted(input.getID(),Conv);
             // Check if the user in the conversation isn't your friend and adds them automatically
-            if (!this.FriendsList.contains(input.User)) {
-                this.FriendsList.add(input.User);
-                ChangedFriendsList();
+            if (!this.Friends.isOnline(input.User)) {
+                this.Friends.setOnline(input.User, true);
                 this.sendables.add(ClientMessageSender.CreateFriendAddMessage(input.User));   
             }
         }
@@ -133,12 +123,11 @@ public class ClientModel {
         else if (input.getCode() == 602) {
             ClientConversation Conv = new ClientConversation(input.Friends);
             Conversations.put(input.getID(),Conv);
-            GUI.createNewConversation(input.getID(),Conv);
+            GUI.conversationStarted(input.getID(),Conv);
             // Check if any of the users in the conversation aren't your friend and adds them automatically
             for (String friend : input.Friends) {
-                if (!this.FriendsList.contains(friend)) {
-                    this.FriendsList.add(friend);
-                    ChangedFriendsList();
+                if (!this.Friends.isOnline(friend)) {
+                    this.Friends.setOnline(friend, true);
                     this.sendables.add(ClientMessageSender.CreateFriendAddMessage(friend));   
                 }
             }
@@ -154,7 +143,7 @@ public class ClientModel {
         else if (input.User != this.user) {
             if (Conversations.containsKey(input.ConversationID)) {
                 Conversations.get(input.ConversationID).UpdateConversation(input.User,input.Status);
-                GUI.updateConvoText(input.ConversationID);
+                GUI.textChanged(input.ConversationID);
                 if (Debug) {
                     Tester.add("Update: " + input.Status);
                 }
@@ -167,12 +156,53 @@ public class ClientModel {
         }
     }
     
+    /**
+     * Shows a page of a conversation's history in front of the lines we have, sent when we join
+     * a conversation, when it is given back after the server restarted, or when we ask for older lines
+     * @param input
+     */
+    public void history(Message input) {
+        ClientConversation Conv = Conversations.get(input.ConversationID);
+        if (Conv != null) {
+            // The status holds the sequence number of the page's first line, an empty page has nothing older
+            long Oldest = 1;
+            if (input.Batch.length > 0 && input.Status != null && input.Status.length() > 0) {
+                Oldest = Long.parseLong(input.Status);
+            }
+            Conv.PrependHistory(input.Batch, Oldest);
+            GUI.textChanged(input.ConversationID);
+        }
+        if (Debug) {
+            Tester.add("History: " + input.Batch.length);
+        }
+    }
+    
+    /**
+     * Shows the messages the server kept for us while we were away. Conversations we are no
+     * longer in get a window with the sender, so the messages can still be read.
+     * @param input
+     */
+    public void mailbox(Message input) {
+        for (Message line : input.Batch) {
+            if (line.ConversationID != null && !Conversations.containsKey(line.ConversationID)) {
+                String[] Users = {line.User};
+                ClientConversation Conv = new ClientConversation(Users);
+                Conversations.put(line.ConversationID,Conv);
+                GUI.conversationStarted(line.ConversationID,Conv);
+            }
+            updateConversation(line);
+        }
+        if (Debug) {
+            Tester.add("Mailbox: " + input.Batch.length);
+        }
+    }
+    
     public void addToConversation(Message input) {
         //Adding a single person to a conversation
         if (input.getCode() == 601) {
             if (Conversations.containsKey(input.ConversationID)) {
                 Conversations.get(input.ConversationID).AddUser(input.User);
-                GUI.updateConvoUsers(input.ConversationID);
+                GUI.userChanged(input.ConversationID, input.User);
                 if (Debug) {
                     Tester.add("Add: " + input.User);
                 }
@@ -188,7 +218,7 @@ public class ClientModel {
             if (Conversations.containsKey(input.ConversationID)) {
                 for (String friend : input.Friends) {
                     Conversations.get(input.ConversationID).AddUser(friend);
-                    GUI.updateConvoUsers(input.ConversationID);
+                    GUI.userChanged(input.ConversationID, friend);
                     if (Debug) {
                         Tester.add("Add: " + input.Friends);
                     }
@@ -215,31 +245,36 @@ public class ClientModel {
         }
         //Friend online
         else if (input.getCode() == 700) {
-            if (!this.FriendsList.contains(input.User)) {
-                this.FriendsList.add(input.User);
-                if (this.OfflineFriends.contains(input.User)) {
-                    this.OfflineFriends.remove(input.User);
-                }
-                ChangedFriendsList();
-            }
+            this.Friends.setOnline(input.User, true);
             if (Debug) {
                 Tester.add("Event: " + input.User);
             }
         }
         //Friend offline
         else if (input.getCode() == 701) {
-            this.FriendsList.remove(input.User);
-            this.OfflineFriends.add(input.User);
-            ChangedFriendsList();
+            this.Friends.setOnline(input.User, false);
             if (Debug) {
                 Tester.add("Event: " + input.User);
             }
         }
+        //Presence digest: "+user" came online, "-user" went offline
+        else if (input.getCode() == 706) {
+            for (String change: input.Friends) {
+                String friend = change.substring(1);
+                if (friend.equals(this.user)) {
+                    continue;
+                }
+                this.Friends.setOnline(friend, change.startsWith("+"));
+                if (Debug) {
+                    Tester.add("Event: " + friend);
+                }
+            }
+        }
         //User entered text
         else if (input.getCode() == 702) {
             if (Conversations.containsKey(input.ConversationID)) {
                 Conversations.get(input.ConversationID).ChangeStatus(input.User, "User has entered text.");
-                GUI.updateConvoUsers(input.ConversationID);
+                GUI.userChanged(input.ConversationID, input.User);
                 if (Debug) {
                     Tester.add("Event: " + input.User);
                 }
@@ -249,7 +284,7 @@ public class ClientModel {
         else if (input.getCode() == 703) {
             if (Conversations.containsKey(input.ConversationID)) {
                 Conversations.get(input.ConversationID).ChangeStatus(input.User, "User is typing");
-                GUI.updateConvoUsers(input.ConversationID);
+                GUI.userChanged(input.ConversationID, input.User);
                 if (Debug) {
                     Tester.add("Event: " + input.User);
                 }
@@ -259,7 +294,7 @@ public class ClientModel {
         else if (input.getCode() == 704) {
             if (Conversations.containsKey(input.ConversationID)) {
                 Conversations.get(input.ConversationID).RemoveUser(input.User);
-                GUI.updateConvoUsers(input.ConversationID);
+                GUI.userChanged(input.ConversationID, input.User);
             }
             if (Debug) {
                 Tester.add("Event: " + input.User);
@@ -269,7 +304,7 @@ public class ClientModel {
         else if (input.getCode() == 705) {
             if (Conversations.containsKey(input.ConversationID)) {
                 Conversations.get(input.ConversationID).ChangeStatus(input.User, "");
-                GUI.updateConvoUsers(input.ConversationID);
+                GUI.userChanged(input.ConversationID, input.User);
                 if (Debug) {
                     Tester.add("Event: " + input.User);
                 }
@@ -277,12 +312,6 @@ public class ClientModel {
         }
     }
     
-    public void ChangedFriendsList() {
-        String[] newList = this.FriendsList.toArray(new String[0]);
-        String[] newOfflineList = this.OfflineFriends.toArray(new String[0]);
-        this.GUI.fireChanges(newList, newOfflineList);
-    }
-    
     public void status(Message input) {
         //Not yet implemented
     }
@@ -8,7 +8,8 @@ import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.junit.Test;
 
@@ -23,7 +24,7 @@ public class ClientModelTest {
         ObjectInputStream in;
         ObjectOutputStream out = null;
         
-        ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>(); 
+        BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>(); 
         ClientModel model = new ClientModel("Andres", messages);
         model.Debug = true;
         
@@ -66,7 +67,7 @@ public class ClientModelTest {
         ObjectInputStream in;
         ObjectOutputStream out = null;
         
-        ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>(); 
+        BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>(); 
         ClientModel model = new ClientModel("Andres", messages);
         model.Debug = true;
         
@@ -126,7 +127,7 @@ public class ClientModelTest {
         ObjectInputStream in;
         ObjectOutputStream out = null;
         
-        ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>(); 
+        BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>(); 
         ClientModel model = new ClientModel("Andres", messages);
         model.Debug = true;
         
@@ -201,7 +202,7 @@ public class ClientModelTest {
         ObjectInputStream in;
         ObjectOutputStream out = null;
         
-        ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<Message>(); 
+        BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>(); 
         ClientModel model = new ClientModel("Andres", messages);
         model.Debug = true;
         
@@ -1,77 +1,214 @@
 package main;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import main.Message.Type;
 import gui.ErrorWindow;
 /**
- * This is the Client Model end that talks to the server, it is contact with the rest of the client through the ArrayDeque that gets filled with
+ * This is the Client Model end that talks to the server, it is contact with the rest of the client through the BlockingQueue that gets filled with
  * outgoing messages.
  * @author Andres
  *
  */
 public class ClientSocketThread implements Runnable{
-    private ConcurrentLinkedQueue<Message> sendables;
+    public final static int DEFAULT_MAX_BATCH = 64;
+    public final static long DEFAULT_LINGER = 0;
+    private final static int BUFFER_SIZE = 8192;
+    
+    private BlockingQueue<Message> sendables;
     public final Socket socket;
     public final ClientModel model;
     public boolean Debug = false;
+    public final boolean Framed; // Talk the length prefixed protocol of a server running in nio mode
+    public final boolean Binary; // Write frames in the binary MessageCodec format instead of serializing
+    public int MaxBatch = DEFAULT_MAX_BATCH; // Most messages written with one flush
+    public long Linger = DEFAULT_LINGER; // Milliseconds to wait for more messages before flushing a batch, 0 flushes what is queued
+    private volatile long flushes = 0;
+    private volatile long sent = 0;
+    private ObjectInputStream in;
+    private MessageOutputStream out;
+    private DataInputStream framedIn;
+    private DataOutputStream framedOut;
+    
+    public ClientSocketThread(Socket port, BlockingQueue<Message> deque, ClientModel model, boolean Debug) {
+        this(port, deque, model, Debug, false);
+    }
+    
+    public ClientSocketThread(Socket port, BlockingQueue<Message> deque, ClientModel model, boolean Debug, boolean Framed) {
+        this(port, deque, model, Debug, Framed, false);
+    }
     
-    public ClientSocketThread(Socket port, ConcurrentLinkedQueue<Message> deque, ClientModel model, boolean Debug) {
+    public ClientSocketThread(Socket port, BlockingQueue<Message> deque, ClientModel model, boolean Debug, boolean Framed, boolean Binary) {
         this.socket = port;
         this.sendables = deque;
         this.model = model;
         this.Debug = Debug;
+        this.Framed = Framed || Binary;
+        this.Binary = Binary;
     }
     
     /**
-     * Deals with sending messages from the deque and receiving messages from the server.
+     * Reads messages from the server and hands them to the model until the connection is closed.
+     * Messages from the queue are sent by a writer thread that waits on the queue, so neither
+     * thread spins while the client is idle.
      */
     @Override
     public void run() {
-        ObjectInputStream in = null;
-        ObjectOutputStream out = null;
         try {
-            in = new ObjectInputStream(this.socket.getInputStream());
-            out = new ObjectOutputStream(this.socket.getOutputStream());
+            if (this.Framed) {
+                framedIn = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                framedOut = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), BUFFER_SIZE));
+            }
+            else {
+                in = new ObjectInputStream(this.socket.getInputStream());
+                out = new MessageOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), BUFFER_SIZE));
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            close();
+            return;
         }
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, "client-writer");
+        writer.setDaemon(true);
+        writer.start();
         try {
+            // Blocks until the next message arrives, or the connection is closed
             while (true) {
-                // If there is something to send, send it.
-                if (!this.sendables.isEmpty()) {
-                    Message output = this.sendables.remove();
+                Message line = read();
+                if (this.Debug) {
+                    System.out.println("Received" + line);
+                }
+                HandleRequest(line);
+            }
+        } catch (EOFException e) {
+            // Server closed the connection
+        } catch (IOException e) {
+            if (!this.socket.isClosed()) {
+                e.printStackTrace();
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+        } finally {
+            close();
+            writer.interrupt();
+        }
+    }
+    
+    /**
+     * Sends the messages from the queue as they are added, until the connection is closed.
+     * Everything that is queued, up to MaxBatch messages, is written with a single flush, so a
+     * burst of typing events goes out in as few TCP segments as possible.
+     */
+    private void send() {
+        try {
+            while (true) {
+                Message output = this.sendables.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.Linger);
+                int batch = 0;
+                while (output != null) {
                     if (this.Debug) {
-                       System.out.println("Sending" + output);
+                        System.out.println("Sending" + output);
                     }
-                    out.writeObject(output);
-                    out.flush();
-                }
-                // If there is something to read, read it, then go to the HandleRequest function
-                if (this.socket.getInputStream().available() > 0) {
-                    Message line = (Message) in.readObject();   
-                    if (line.equals(null)) {
+                    write(output);
+                    batch++;
+                    if (batch >= this.MaxBatch) {
                         break;
                     }
-                    else {
-                        HandleRequest(line);
-                    }
-                    if (this.Debug) {
-                        System.out.println("Received" + line);
+                    output = this.sendables.poll();
+                    if (output == null && this.Linger > 0) {
+                        output = this.sendables.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
                     }
                 }
+                flush();
+                this.sent += batch;
+                this.flushes++;
             }
-            out.close();
-            in.close();
-            this.socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (Throwable e) {
+        } catch (InterruptedException e) {
+            // Reader is done
+        } catch (IOException e) {
+            if (!this.socket.isClosed()) {
                 e.printStackTrace();
             }
+            close();
+        }
+    }
+    
+    /**
+     * Closes the socket, which also stops a blocked reader.
+     */
+    private void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Writes a message to the server in whichever protocol this thread talks.
+     * The message stays buffered until flush is called.
+     * @param output
+     * @throws IOException
+     */
+    private void write(Message output) throws IOException {
+        if (this.Framed) {
+            MessageFrames.write(framedOut, output, this.Binary);
+        }
+        else {
+            out.append(output);
+        }
+    }
+    
+    /**
+     * Sends the written messages to the server.
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        if (this.Framed) {
+            framedOut.flush();
+        }
+        else {
+            out.flush();
+        }
+    }
+    
+    /**
+     * @return the number of messages sent to the server
+     */
+    public long getSent() {
+        return this.sent;
+    }
+    
+    /**
+     * @return the number of flushes the messages were sent with
+     */
+    public long getFlushes() {
+        return this.flushes;
+    }
+    
+    /**
+     * Blocks until the next message from the server has been read.
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private Message read() throws IOException, ClassNotFoundException {
+        if (this.Framed) {
+            return MessageFrames.read(framedIn);
+        }
+        return (Message) in.readObject();
     }
     
     private void HandleRequest(Message input) {
@@ -90,7 +227,17 @@ public class ClientSocketThread implements Runnable{
             model.startConversation(input);
             break;
         case Message:
-            model.updateConversation(input);
+            if (input.Batch != null && input.getCode() == Server.HISTORY_PAGE) {
+                // Lines said before we joined
+                model.history(input);
+            }
+            else if (input.Batch != null) {
+                // Messages kept for us while we were away
+                model.mailbox(input);
+            }
+            else {
+                model.updateConversation(input);
+            }
             break;
         case Add:
             model.addToConversation(input);
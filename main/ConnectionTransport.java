@@ -0,0 +1,38 @@
+package main;
+
+import java.io.IOException;
+
+/**
+ * The way a ServerConnection talks to its client. The blocking server gives every
+ * connection a SocketTransport read by the connection's own thread, while the nio
+ * server gives it a transport owned by one of its event loops
+ * @author Charles (cjfman)
+ *
+ */
+public interface ConnectionTransport {
+
+	/**
+	 * Sends a message to the client
+	 * @param message: the message to be sent
+	 * @throws IOException
+	 */
+	public void send(Message message) throws IOException;
+
+	/**
+	 * Sends a message that is also sent to other clients
+	 * @param broadcast: the shared message, which must not be changed
+	 * @throws IOException
+	 */
+	public void send(Broadcast broadcast) throws IOException;
+
+	/**
+	 * Closes the connection to the client
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+	/**
+	 * @return true if the connection to the client has been closed
+	 */
+	public boolean isClosed();
+}
@@ -0,0 +1,281 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The friend lists of every user the server has seen, kept after they log off and saved to a file.
+ *
+ * Every username is interned to an int, and a user's friends are a sorted array of those ints, so
+ * a friend list costs four bytes a friend and is looked up without touching the friend's names.
+ *
+ * The file is laid out as:
+ *   int MAGIC, int users, long friends, then every username as a short of it's UTF-8 length and the bytes,
+ *   then every user's number of friends, then all the friend lists one after the other
+ * It is memory mapped when the graph is loaded. Only the names and counts are read up front, a
+ * friend list is copied out of the mapping the first time it is used.
+ * The file is rewritten whole: the graph is copied under it's monitor and written to a
+ * temporary file outside of it, which then takes the place of the old one.
+ * @author Charles (cjfman)
+ *
+ */
+public class FriendGraph {
+	public final static int MAGIC = 0x46524e44;		// "FRND"
+	private final static int[] NONE = new int[0];
+
+	private final File file;			// Null keeps the graph in memory only
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final ArrayList<String> names = new ArrayList<String>();
+	private int[][] friends = new int[16][];		// Null for a list not copied out of the mapping yet
+	private int[] counts = new int[16];
+	private IntBuffer mapped;			// The friend lists of the loaded file
+	private int[] mapped_offsets;		// Where every loaded user's list starts in mapped
+	private long edges = 0;
+	private boolean dirty = false;
+
+	/**
+	 * Creates an empty graph that is kept in memory only
+	 */
+	public FriendGraph() {
+		this.file = null;
+	}
+
+	/**
+	 * Loads the graph saved in a file, or starts an empty one if there is no file yet
+	 * @param file
+	 * @throws IOException if the file is not a friend graph
+	 */
+	public FriendGraph(File file) throws IOException {
+		this.file = file;
+		if (file.exists())
+			load();
+	}
+
+	/**
+	 * Records that user has friended friend
+	 * @param user
+	 * @param friend
+	 * @return true if friend was not on user's list yet
+	 */
+	public synchronized boolean addFriend(String user, String friend) {
+		int id = intern(user);
+		int other = intern(friend);
+		int[] list = list(id);
+		int count = counts[id];
+		int index = Arrays.binarySearch(list, 0, count, other);
+		if (index >= 0)
+			return false;
+		index = -index - 1;
+		if (count == list.length) {
+			int[] copy = new int[Math.max(4, count * 2)];
+			System.arraycopy(list, 0, copy, 0, count);
+			list = copy;
+			friends[id] = list;
+		}
+		System.arraycopy(list, index, list, index + 1, count - index);
+		list[index] = other;
+		counts[id]++;
+		edges++;
+		dirty = true;
+		return true;
+	}
+
+	/**
+	 * @param user
+	 * @return every user on the friend list of user, sorted by when they were first seen
+	 */
+	public synchronized String[] getFriends(String user) {
+		Integer id = ids.get(user);
+		if (id == null)
+			return new String[0];
+		int[] list = list(id);
+		String[] result = new String[counts[id]];
+		for (int i = 0; i < result.length; i++)
+			result[i] = names.get(list[i]);
+		return result;
+	}
+
+	/**
+	 * @param user
+	 * @param friend
+	 * @return true if friend is on the friend list of user
+	 */
+	public synchronized boolean isFriend(String user, String friend) {
+		Integer id = ids.get(user);
+		Integer other = ids.get(friend);
+		if (id == null || other == null)
+			return false;
+		return Arrays.binarySearch(list(id), 0, counts[id], other) >= 0;
+	}
+
+	/**
+	 * @return the number of users in the graph
+	 */
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/**
+	 * @return the number of friends on all the lists
+	 */
+	public synchronized long getEdges() {
+		return edges;
+	}
+
+	/**
+	 * Writes the graph to it's file if it changed since it was last written
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (file == null)
+			return;
+		synchronized (file) {		// One save at a time, the graph is not locked while writing
+			write();
+		}
+	}
+
+	private void write() throws IOException {
+		String[] users;
+		int[] lengths;
+		int[][] lists;
+		long total;
+		synchronized (this) {
+			if (!dirty)
+				return;
+			dirty = false;
+			users = names.toArray(new String[names.size()]);
+			lengths = Arrays.copyOf(counts, users.length);
+			lists = new int[users.length][];
+			for (int id = 0; id < users.length; id++)
+				lists[id] = friends[id] == null ? mappedList(id) : Arrays.copyOf(friends[id], counts[id]);
+			total = edges;
+		}
+
+		byte[][] encoded = new byte[users.length][];
+		long size = 4 + 4 + 8 + (long) users.length * 4 + total * 4;
+		for (int id = 0; id < users.length; id++) {
+			encoded[id] = users[id].getBytes(StandardCharsets.UTF_8);
+			size += 2 + encoded[id].length;
+		}
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			out.putInt(MAGIC);
+			out.putInt(users.length);
+			out.putLong(total);
+			for (byte[] name:encoded) {
+				out.putShort((short) name.length);
+				out.put(name);
+			}
+			IntBuffer ints = out.asIntBuffer();
+			ints.put(lengths);
+			for (int[] list:lists)
+				ints.put(list);
+			out.force();
+		} finally {
+			raf.close();
+		}
+		if (!temporary.renameTo(file)) {
+			synchronized (this) {
+				dirty = true;
+			}
+			throw new IOException("Can not replace " + file);
+		}
+	}
+
+	/**
+	 * Maps the file and reads the names. The friend lists stay in the mapping until they are used
+	 */
+	private void load() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer in;
+		try {
+			// The mapping stays valid after the file is closed, or replaced by a newer save
+			in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (in.remaining() < 16 || in.getInt() != MAGIC)
+			throw new IOException(file + " is not a friend graph");
+		int users = in.getInt();
+		edges = in.getLong();
+		byte[] name = new byte[256];
+		for (int id = 0; id < users; id++) {
+			int length = in.getShort() & 0xFFFF;
+			if (name.length < length)
+				name = new byte[length];
+			in.get(name, 0, length);
+			String user = new String(name, 0, length, StandardCharsets.UTF_8);
+			ids.put(user, id);
+			names.add(user);
+		}
+		if (in.remaining() < (long) users * 4 + edges * 4)
+			throw new IOException(file + " is truncated");
+		IntBuffer ints = in.slice().asIntBuffer();
+		counts = new int[Math.max(16, users)];
+		ints.get(counts, 0, users);
+		mapped = ints.slice();
+		mapped_offsets = new int[users];
+		int offset = 0;
+		for (int id = 0; id < users; id++) {
+			mapped_offsets[id] = offset;
+			offset += counts[id];
+		}
+		friends = new int[counts.length][];
+	}
+
+	/**
+	 * @return the id of a username, giving it the next one if it is new. Must hold the monitor
+	 */
+	private int intern(String user) {
+		Integer id = ids.get(user);
+		if (id != null)
+			return id;
+		int next = names.size();
+		ids.put(user, next);
+		names.add(user);
+		if (next == counts.length) {
+			counts = Arrays.copyOf(counts, next * 2);
+			friends = Arrays.copyOf(friends, next * 2);
+		}
+		friends[next] = NONE;
+		dirty = true;
+		return next;
+	}
+
+	/**
+	 * @return the friend list of a user, which may be longer than it's count. Must hold the monitor
+	 */
+	private int[] list(int id) {
+		int[] list = friends[id];
+		if (list == null) {
+			list = mappedList(id);
+			friends[id] = list;
+		}
+		return list;
+	}
+
+	/**
+	 * @return the list of a user as it is in the mapping, or NONE if the user was not loaded. Must hold the monitor
+	 */
+	private int[] mappedList(int id) {
+		if (mapped_offsets == null || id >= mapped_offsets.length)
+			return NONE;
+		int[] list = new int[counts[id]];
+		IntBuffer view = mapped.duplicate();
+		view.position(mapped_offsets[id]);
+		view.get(list);
+		return list;
+	}
+}
@@ -0,0 +1,102 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for FriendGraph
+ * @author Charles (cjfman)
+ */
+public class FriendGraphTest {
+	private File directory;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("friends").toFile();
+		file = new File(directory, "friends.graph");
+	}
+
+	@After
+	public void tearDown() {
+		for (File file:directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Friends are kept once, and only in the direction they were added
+	 */
+	@Test
+	public void testAddFriend() {
+		FriendGraph graph = new FriendGraph();
+		assertTrue(graph.addFriend("cjfman", "dhrosa"));
+		assertTrue(graph.addFriend("cjfman", "kemus"));
+		assertFalse(graph.addFriend("cjfman", "dhrosa"));
+		assertTrue(graph.addFriend("kemus", "cjfman"));
+
+		assertArrayEquals(new String[] {"dhrosa", "kemus"}, graph.getFriends("cjfman"));
+		assertTrue(graph.isFriend("kemus", "cjfman"));
+		assertFalse(graph.isFriend("dhrosa", "cjfman"));
+		assertEquals(0, graph.getFriends("nobody").length);
+		assertEquals(3, graph.size());
+		assertEquals(3, graph.getEdges());
+	}
+
+	/**
+	 * A saved graph loads back whole, and keeps changing after it was loaded
+	 */
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		FriendGraph graph = new FriendGraph(file);
+		for (int i = 0; i < 1000; i++)
+			for (int j = 1; j <= i % 7; j++)
+				graph.addFriend("user" + i, "user" + ((i + j) % 1000));
+		graph.save();
+
+		FriendGraph loaded = new FriendGraph(file);
+		assertEquals(1000, loaded.size());
+		assertEquals(graph.getEdges(), loaded.getEdges());
+		for (int i = 0; i < 1000; i += 37)
+			assertArrayEquals(graph.getFriends("user" + i), loaded.getFriends("user" + i));
+
+		assertTrue(loaded.addFriend("user6", "user500"));
+		assertTrue(loaded.addFriend("newcomer", "user6"));
+		loaded.save();
+		loaded = new FriendGraph(file);
+		assertTrue(loaded.isFriend("user6", "user500"));
+		assertTrue(loaded.isFriend("user6", "user7"));
+		assertArrayEquals(new String[] {"user6"}, loaded.getFriends("newcomer"));
+	}
+
+	/**
+	 * A user who logs back in, to the same or a restarted server, gets it's friends without asking
+	 */
+	@Test
+	public void testLogin() throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.setFriendsFile(file.getPath());
+		Server server = new Server(0, config);
+		ServerConnection connection = new RecordingTransport().login(server, "cjfman");
+		connection.handleMessage(ClientMessageSender.CreateFriendAddMessage("dhrosa"));
+		connection.handleMessage(ClientMessageSender.CreateLogoutMessage("cjfman"));
+
+		RecordingTransport transport = new RecordingTransport();
+		transport.login(server, "cjfman");
+		assertArrayEquals(new String[] {"dhrosa"}, transport.find(302).getFriends());
+		server.kill();
+
+		server = new Server(0, config);
+		transport = new RecordingTransport();
+		transport.login(server, "cjfman");
+		assertArrayEquals(new String[] {"dhrosa"}, transport.find(302).getFriends());
+		server.kill();
+	}
+}
@@ -0,0 +1,90 @@
+package main;
+
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reverse index of the friend lists of the logged in users. For every user it keeps
+ * who has friended them, so finding the friends of someone who logs in takes time
+ * proportional to their followers instead of a scan of every connection.
+ *
+ * Like the conversations of the SessionRegistry, every entry is guarded by it's own
+ * monitor, and an entry that becomes empty is retired and removed from the map.
+ * @author Charles (cjfman)
+ *
+ */
+public class FriendIndex {
+	private final ConcurrentHashMap<String, Followers> index;	// Maps a username to the users who friended it
+
+	public FriendIndex() {
+		index = new ConcurrentHashMap<String, Followers>();
+	}
+
+	/**
+	 * Records that user has friended friend
+	 * @param user
+	 * @param friend
+	 */
+	public void addFriend(String user, String friend) {
+		while (true) {
+			Followers followers = index.get(friend);
+			if (followers == null) {
+				followers = new Followers();
+				Followers current = index.putIfAbsent(friend, followers);
+				if (current != null) followers = current;
+			}
+			synchronized (followers) {
+				if (followers.retired) continue;	// Removed after it was looked up
+				followers.users.add(user);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Forgets that user has friended friend
+	 * @param user
+	 * @param friend
+	 */
+	public void removeFriend(String user, String friend) {
+		Followers followers = index.get(friend);
+		if (followers == null) return;
+		synchronized (followers) {
+			followers.users.remove(user);
+			if (followers.users.isEmpty() && !followers.retired) {
+				followers.retired = true;
+				index.remove(friend, followers);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the whole friend list of a user
+	 * @param user
+	 * @param friends
+	 */
+	public void removeFriends(String user, String[] friends) {
+		for (String friend:friends)
+			removeFriend(user, friend);
+	}
+
+	/**
+	 * @param friend
+	 * @return every user who has friended friend
+	 */
+	public String[] friendedBy(String friend) {
+		Followers followers = index.get(friend);
+		if (followers == null) return new String[0];
+		synchronized (followers) {
+			return followers.users.toArray(new String[followers.users.size()]);
+		}
+	}
+
+	/**
+	 * The users who have friended one user
+	 */
+	private static class Followers {
+		private final HashSet<String> users = new HashSet<String>();
+		private boolean retired = false;
+	}
+}
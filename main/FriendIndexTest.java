@@ -0,0 +1,49 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for FriendIndex
+ * @author Charles (cjfman)
+ */
+public class FriendIndexTest {
+
+	/**
+	 * Followers are found by the user they friended, and forgotten again
+	 */
+	@Test
+	public void testFriendedBy() {
+		FriendIndex index = new FriendIndex();
+		index.addFriend("cjfman", "dhrosa");
+		index.addFriend("kemus", "dhrosa");
+		index.addFriend("cjfman", "kemus");
+
+		String[] followers = index.friendedBy("dhrosa");
+		Arrays.sort(followers);
+		assertArrayEquals(new String[] {"cjfman", "kemus"}, followers);
+		assertArrayEquals(new String[] {"cjfman"}, index.friendedBy("kemus"));
+		assertEquals(0, index.friendedBy("cjfman").length);
+
+		index.removeFriends("cjfman", new String[] {"dhrosa", "kemus"});
+		assertArrayEquals(new String[] {"kemus"}, index.friendedBy("dhrosa"));
+		assertEquals(0, index.friendedBy("kemus").length);
+	}
+
+	/**
+	 * A user can be friended again after every follower was removed
+	 */
+	@Test
+	public void testReuseAfterEmpty() {
+		FriendIndex index = new FriendIndex();
+		index.addFriend("cjfman", "dhrosa");
+		index.removeFriend("cjfman", "dhrosa");
+		index.removeFriend("cjfman", "dhrosa");
+		assertEquals(0, index.friendedBy("dhrosa").length);
+		index.addFriend("kemus", "dhrosa");
+		assertArrayEquals(new String[] {"kemus"}, index.friendedBy("dhrosa"));
+	}
+}
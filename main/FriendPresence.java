@@ -0,0 +1,107 @@
+package main;
+
+import java.util.HashMap;
+
+/**
+ * Keeps track of which friends are online and which are offline, each group in sorted order.
+ * Every change is passed on to a Listener as the rows added to or removed from the two lists,
+ * so a view can update just those rows. A friend going online or offline is removed from one
+ * list and added to the other. Every change takes O(log n).
+ * @author Andres
+ *
+ */
+public class FriendPresence {
+    private final HashMap<String, Boolean> friends; // Friend -> online
+    private final SortedNameSet online;
+    private final SortedNameSet offline;
+    private Listener listener;
+    
+    /**
+     * Is told about every row added to or removed from the lists
+     */
+    public interface Listener {
+        public void friendAdded(boolean online, int index, String friend);
+        public void friendRemoved(boolean online, int index, String friend);
+    }
+    
+    public FriendPresence() {
+        this.friends = new HashMap<String, Boolean>();
+        this.online = new SortedNameSet();
+        this.offline = new SortedNameSet();
+        this.listener = null;
+    }
+    
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Adds a friend whose presence is not known yet, it is listed as offline
+     * Nothing changes if the friend is already listed
+     * @param friend
+     */
+    public void addFriend(String friend) {
+        if (!this.friends.containsKey(friend)) {
+            setOnline(friend, false);
+        }
+    }
+    
+    /**
+     * Lists a friend as online or offline, adding the friend if needed
+     * @param friend
+     * @param isOnline
+     */
+    public void setOnline(String friend, boolean isOnline) {
+        Boolean was = this.friends.put(friend, isOnline);
+        if (was != null) {
+            if (was == isOnline) {
+                return;
+            }
+            int index = list(was).remove(friend);
+            if (this.listener != null) {
+                this.listener.friendRemoved(was, index, friend);
+            }
+        }
+        int index = list(isOnline).add(friend);
+        if (this.listener != null) {
+            this.listener.friendAdded(isOnline, index, friend);
+        }
+    }
+    
+    /**
+     * @param friend
+     * @return true if the friend is listed as online
+     */
+    public boolean isOnline(String friend) {
+        return Boolean.TRUE.equals(this.friends.get(friend));
+    }
+    
+    /**
+     * @param friend
+     * @return true if the friend is listed at all
+     */
+    public boolean contains(String friend) {
+        return this.friends.containsKey(friend);
+    }
+    
+    /**
+     * @param isOnline, which list
+     * @return the number of friends in the list
+     */
+    public int size(boolean isOnline) {
+        return list(isOnline).size();
+    }
+    
+    /**
+     * @param isOnline, which list
+     * @param index
+     * @return the friend at a position in the list
+     */
+    public String get(boolean isOnline, int index) {
+        return list(isOnline).get(index);
+    }
+    
+    private SortedNameSet list(boolean isOnline) {
+        return isOnline ? this.online : this.offline;
+    }
+}
@@ -0,0 +1,71 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for FriendPresence and the SortedNameSet it keeps the lists in
+ * @author Andres
+ *
+ */
+public class FriendPresenceTest {
+
+    @Test
+    public void testDeltas() {
+        FriendPresence presence = new FriendPresence();
+        final ArrayList<String> deltas = new ArrayList<String>();
+        presence.setListener(new FriendPresence.Listener() {
+            public void friendAdded(boolean online, int index, String friend) {
+                deltas.add((online ? "+on " : "+off ") + index + " " + friend);
+            }
+            public void friendRemoved(boolean online, int index, String friend) {
+                deltas.add((online ? "-on " : "-off ") + index + " " + friend);
+            }
+        });
+        presence.addFriend("Louis");
+        presence.addFriend("Charles");
+        presence.addFriend("Louis");
+        presence.setOnline("Louis", true);
+        presence.setOnline("Louis", true);
+        presence.setOnline("Andres", true);
+        presence.setOnline("Louis", false);
+        assertEquals("[+off 0 Louis, +off 0 Charles, -off 1 Louis, +on 0 Louis, +on 0 Andres, -on 1 Louis, +off 1 Louis]",
+                deltas.toString());
+        assertTrue(presence.isOnline("Andres"));
+        assertFalse(presence.isOnline("Louis"));
+        assertEquals(1, presence.size(true));
+        assertEquals("Charles", presence.get(false, 0));
+        assertEquals("Louis", presence.get(false, 1));
+    }
+    
+    @Test
+    public void testSortedNameSet() {
+        SortedNameSet set = new SortedNameSet();
+        TreeSet<String> expected = new TreeSet<String>();
+        Random random = new Random(6005);
+        for (int i = 0; i < 20000; i++) {
+            String name = "user" + random.nextInt(500);
+            if (random.nextBoolean()) {
+                int index = set.add(name);
+                assertEquals(expected.add(name) ? expected.headSet(name).size() : -1, index);
+            }
+            else {
+                int index = expected.contains(name) ? expected.headSet(name).size() : -1;
+                assertEquals(index, set.remove(name));
+                expected.remove(name);
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        int i = 0;
+        for (String name : expected) {
+            assertEquals(name, set.get(i));
+            assertEquals(i, set.indexOf(name));
+            i++;
+        }
+    }
+}
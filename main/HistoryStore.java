@@ -0,0 +1,524 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable history of the text messages relayed to every conversation.
+ *
+ * Messages are appended to one log of memory mapped segment files. Every conversation's
+ * messages are chained through the log: each record holds the position of the previous record
+ * of the same conversation, so the last messages of a conversation are read by following the
+ * chain straight through the mapped pages. Every conversation also keeps a sparse index of
+ * every INDEX_INTERVAL'th record, so a page of messages older than some sequence number is
+ * found without walking the whole chain.
+ *
+ * Every message gets the next sequence number of it's conversation when it is appended, but it
+ * is encoded and written by a background appender, which writes everything that queued up in
+ * one go and forces it to disk once, so the relay path never waits for the disk. When a
+ * segment fills up a new one is started, and the oldest segments are deleted once there are
+ * more than the retention limit.
+ *
+ * A record is laid out as:
+ *   int length, int conversation, long sequence, long previous record, MessageCodec body
+ * The length is written last, so a record torn by a crash reads as the end of the log.
+ * A sequence of -1 marks a conversation that was closed, earlier records of it's ID are ignored.
+ * @author Charles (cjfman)
+ *
+ */
+public class HistoryStore {
+	public final static int SEGMENT_BYTES = 16 << 20;
+	public final static int MAX_SEGMENTS = 64;
+	public final static int INDEX_INTERVAL = 16;
+	private final static int HEADER = 4 + 4 + 8 + 8;
+	private final static int MAX_QUEUED = 1 << 16;
+	private final static int MAX_BATCH = 1024;
+	private final static Pending CLOSE = new Pending(0, -1, null, null);	// Queued by close to stop the appender
+
+	private final File directory;
+	private final int segment_bytes;
+	private final int max_segments;
+	private final boolean force;		// Force every batch to disk
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();	// Oldest first, guarded by itself
+	private final HashMap<Integer, Chain> chains = new HashMap<Integer, Chain>();	// Guarded by itself
+	private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>(MAX_QUEUED);
+	private final Thread appender;
+	private volatile boolean closed = false;
+
+	private final AtomicLong appended = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+
+	/**
+	 * A message read back from the store
+	 */
+	public static class Record {
+		public final long sequence;
+		public final Message message;
+
+		Record(long sequence, Message message) {
+			this.sequence = sequence;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Opens the store with the default segment size and retention, forcing every batch to disk
+	 * @param directory: holds the segment files, created if needed
+	 * @throws IOException
+	 */
+	public HistoryStore(File directory) throws IOException {
+		this(directory, SEGMENT_BYTES, MAX_SEGMENTS, true);
+	}
+
+	/**
+	 * Opens the store, reading back whatever an earlier server left in the directory
+	 * @param directory: holds the segment files, created if needed
+	 * @param segment_bytes: size of a segment file
+	 * @param max_segments: the oldest segments are deleted when there are more than this
+	 * @param force: true to force every batch of appends to disk
+	 * @throws IOException
+	 */
+	public HistoryStore(File directory, int segment_bytes, int max_segments, boolean force) throws IOException {
+		if (segment_bytes < 1024 || max_segments < 1)
+			throw new IllegalArgumentException("Segments must be at least 1KB and at least one must be kept");
+		this.directory = directory;
+		this.segment_bytes = segment_bytes;
+		this.max_segments = max_segments;
+		this.force = force;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can not create " + directory);
+		recover();
+		appender = new Thread(new Runnable() {
+			public void run() {
+				append();
+			}
+		}, "history-appender");
+		appender.setDaemon(true);
+		appender.start();
+	}
+
+	/**
+	 * Queues a message to be appended to a conversation's history
+	 * @param ID: the conversation
+	 * @param message: must not be changed afterwards
+	 * @return the message's sequence number in the conversation, or -1 if the store is too far behind
+	 */
+	public long append(int ID, Message message) {
+		Chain chain = chain(ID, true);
+		synchronized (chain) {
+			// Sequence numbers are handed out in the order the records are queued
+			long sequence = chain.next_sequence;
+			if (closed || !queue.offer(new Pending(ID, sequence, message, chain))) {
+				dropped.incrementAndGet();
+				return -1;
+			}
+			chain.next_sequence++;
+			return sequence;
+		}
+	}
+
+	/**
+	 * Forgets a conversation that was closed. It's ID starts a new history if it is used again
+	 * @param ID
+	 */
+	public void remove(int ID) {
+		Chain chain;
+		synchronized (chains) {
+			chain = chains.remove(ID);
+		}
+		if (chain == null)
+			return;
+		synchronized (chain) {
+			chain.removed = true;		// Records still queued for it are not written
+		}
+		if (!queue.offer(new Pending(ID, -1, null, null)))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * Reads the last messages of a conversation
+	 * @param ID
+	 * @param count: the most messages to read
+	 * @return the messages, oldest first
+	 */
+	public ArrayList<Record> read(int ID, int count) throws IOException {
+		return read(ID, Long.MAX_VALUE, count);
+	}
+
+	/**
+	 * Reads the messages of a conversation that came before a sequence number
+	 * @param ID
+	 * @param before: only messages with a lower sequence number are read
+	 * @param count: the most messages to read
+	 * @return the messages, oldest first. Messages that were appended but not written yet are left out
+	 */
+	public ArrayList<Record> read(int ID, long before, int count) throws IOException {
+		ArrayList<Record> records = new ArrayList<Record>();
+		Chain chain = chain(ID, false);
+		if (chain == null || count <= 0)
+			return records;
+		long position;
+		synchronized (chain) {
+			position = chain.start(before);
+		}
+		byte[] body = new byte[256];
+		while (position >= 0 && records.size() < count) {
+			ByteBuffer page = page(position);
+			if (page == null)
+				break;		// Deleted by retention
+			int length = page.getInt();
+			page.getInt();
+			long sequence = page.getLong();
+			long previous = page.getLong();
+			if (sequence < before) {
+				int size = length - (HEADER - 4);
+				if (body.length < size)
+					body = new byte[size];
+				page.get(body, 0, size);
+				records.add(new Record(sequence, MessageCodec.decode(body, 0, size)));
+			}
+			position = previous;
+		}
+		Collections.reverse(records);
+		return records;
+	}
+
+	/**
+	 * @return the number of messages written to the log
+	 */
+	public long getAppended() {
+		return appended.get();
+	}
+
+	/**
+	 * @return the number of messages left out because the appender was too far behind
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of batches written, each forced to disk at most once
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Writes whatever is queued and stops the appender
+	 */
+	public void close() {
+		// The appender is stopped through the queue rather than interrupted, an interrupt
+		// while a new segment is mapped would leave it's file empty
+		closed = true;
+		try {
+			queue.put(CLOSE);
+			appender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Looks up a conversation's chain
+	 * @param create: true to start a new chain if there is none
+	 */
+	private Chain chain(int ID, boolean create) {
+		synchronized (chains) {
+			Chain chain = chains.get(ID);
+			if (chain == null && create) {
+				chain = new Chain();
+				chains.put(ID, chain);
+			}
+			return chain;
+		}
+	}
+
+	/**
+	 * The appender thread: writes every queued record, then forces the batch to disk once
+	 */
+	private void append() {
+		ArrayList<Pending> batch = new ArrayList<Pending>();
+		boolean stop = false;
+		while (!stop) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+			Segment first = null;
+			try {
+				for (Pending pending:batch) {
+					if (pending == CLOSE) {
+						stop = true;
+						continue;
+					}
+					Segment segment = write(pending);
+					if (first == null)
+						first = segment;
+				}
+				if (force && first != null)
+					force(first);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			batches.incrementAndGet();
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes a record at the end of the log, starting a new segment if it does not fit
+	 * @return the segment written to
+	 */
+	private Segment write(Pending pending) throws IOException {
+		byte[] body = pending.message == null ? new byte[0] : MessageCodec.encode(pending.message);
+		int length = HEADER + body.length;
+		if (length > segment_bytes) {
+			dropped.incrementAndGet();
+			return null;
+		}
+		Chain chain = pending.chain;	// Null for the tombstone of a closed conversation
+		if (chain != null) {
+			synchronized (chain) {
+				if (chain.removed)
+					return null;
+			}
+		}
+		Segment segment = last();
+		if (segment == null || segment.position + length > segment_bytes)
+			segment = roll(segment);
+
+		long position = segment.base + segment.position;
+		ByteBuffer page = segment.map.duplicate();
+		page.position(segment.position + 4);
+		page.putInt(pending.ID);
+		page.putLong(pending.sequence);
+		page.putLong(chain == null ? -1 : chain.last);
+		page.put(body);
+		segment.map.putInt(segment.position, length - 4);
+		segment.position += length;
+		if (chain != null) {
+			long floor;
+			synchronized (segments) {
+				floor = segments.get(0).base;
+			}
+			synchronized (chain) {
+				chain.add(pending.sequence, position, floor);
+			}
+		}
+		appended.incrementAndGet();
+		return segment;
+	}
+
+	/**
+	 * Forces a segment and every later one to disk
+	 */
+	private void force(Segment from) {
+		Segment[] recent;
+		synchronized (segments) {
+			int index = segments.indexOf(from);
+			if (index < 0)
+				index = 0;
+			recent = segments.subList(index, segments.size()).toArray(new Segment[0]);
+		}
+		for (Segment segment:recent)
+			segment.map.force();
+	}
+
+	private Segment last() {
+		synchronized (segments) {
+			return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		}
+	}
+
+	/**
+	 * Starts a new segment after the current one, then deletes the oldest ones past the retention limit
+	 */
+	private Segment roll(Segment current) throws IOException {
+		long base = current == null ? 0 : current.base + segment_bytes;
+		Segment segment = new Segment(new File(directory, name(base)), base);
+		synchronized (segments) {
+			segments.add(segment);
+			while (segments.size() > max_segments) {
+				Segment oldest = segments.remove(0);
+				if (!oldest.file.delete())
+					oldest.file.deleteOnExit();
+			}
+		}
+		return segment;
+	}
+
+	/**
+	 * @return a view of the log positioned at a record, or null if it's segment was deleted
+	 */
+	private ByteBuffer page(long position) {
+		Segment segment;
+		synchronized (segments) {
+			if (segments.isEmpty())
+				return null;
+			long index = (position - segments.get(0).base) / segment_bytes;
+			if (position < segments.get(0).base || index >= segments.size())
+				return null;
+			segment = segments.get((int) index);
+		}
+		ByteBuffer page = segment.map.duplicate();
+		page.position((int) (position - segment.base));
+		return page;
+	}
+
+	/**
+	 * Maps the segments left by an earlier server and rebuilds every conversation's chain
+	 */
+	private void recover() throws IOException {
+		String[] names = directory.list();
+		Arrays.sort(names);
+		for (String name:names) {
+			if (!name.endsWith(".log"))
+				continue;
+			long base = Long.parseLong(name.substring(0, name.length() - 4));
+			File file = new File(directory, name);
+			if (file.length() != segment_bytes)
+				throw new IOException(String.format("%s is not %d bytes, the segment size can not change", file, segment_bytes));
+			Segment segment = new Segment(file, base);
+			ByteBuffer page = segment.map.duplicate();
+			while (page.remaining() >= HEADER) {
+				int start = page.position();
+				int length = page.getInt();
+				if (length <= 0 || length > page.remaining()) {
+					// End of the log, or a record torn by a crash. The next record goes in it's place
+					page.position(start);
+					break;
+				}
+				int ID = page.getInt();
+				long sequence = page.getLong();
+				page.position(start + 4 + length);
+				if (sequence < 0) {
+					chains.remove(ID);
+					continue;
+				}
+				Chain chain = chain(ID, true);
+				chain.add(sequence, base + start, 0);
+				chain.next_sequence = sequence + 1;
+			}
+			segment.position = page.position();
+			segments.add(segment);
+		}
+	}
+
+	private static String name(long base) {
+		return String.format("%020d.log", base);
+	}
+
+	/**
+	 * A message waiting for the appender, or the tombstone of a closed conversation
+	 */
+	private static class Pending {
+		private final int ID;
+		private final long sequence;
+		private final Message message;
+		private final Chain chain;
+
+		private Pending(int ID, long sequence, Message message, Chain chain) {
+			this.ID = ID;
+			this.sequence = sequence;
+			this.message = message;
+			this.chain = chain;
+		}
+	}
+
+	/**
+	 * One mapped segment file
+	 */
+	private class Segment {
+		private final File file;
+		private final long base;		// Position of the segment's first byte in the log
+		private final MappedByteBuffer map;
+		private int position = 0;		// Where the next record goes, only used by the appender
+
+		private Segment(File file, long base) throws IOException {
+			this.file = file;
+			this.base = base;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// The mapping stays valid after the file is closed
+				map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment_bytes);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Where a conversation's records are: the last one, and every INDEX_INTERVAL'th one
+	 */
+	private static class Chain {
+		private long next_sequence = 1;
+		private long last = -1;			// Position of the last record written
+		private long last_sequence = 0;
+		private long[] index_sequences = new long[4];
+		private long[] index_positions = new long[4];
+		private int index_size = 0;
+		private int since_index = INDEX_INTERVAL;	// Records written since the last one indexed
+		private boolean removed = false;
+
+		/**
+		 * Links a record that was just written
+		 * @param floor: records before this position have been deleted
+		 */
+		private void add(long sequence, long position, long floor) {
+			last = position;
+			last_sequence = sequence;
+			if (++since_index < INDEX_INTERVAL)
+				return;
+			since_index = 0;
+			if (index_size == index_sequences.length) {
+				// Drop the entries of deleted records before growing
+				int dead = 0;
+				while (dead < index_size && index_positions[dead] < floor)
+					dead++;
+				index_size -= dead;
+				System.arraycopy(index_sequences, dead, index_sequences, 0, index_size);
+				System.arraycopy(index_positions, dead, index_positions, 0, index_size);
+			}
+			if (index_size == index_sequences.length) {
+				index_sequences = Arrays.copyOf(index_sequences, index_size * 2);
+				index_positions = Arrays.copyOf(index_positions, index_size * 2);
+			}
+			index_sequences[index_size] = sequence;
+			index_positions[index_size] = position;
+			index_size++;
+		}
+
+		/**
+		 * @return the position to follow the chain back from to find the records before a sequence number
+		 */
+		private long start(long before) {
+			if (before > last_sequence)
+				return last;
+			// The first indexed record at or after before, at most INDEX_INTERVAL records past it
+			int low = 0;
+			int high = index_size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (index_sequences[middle] < before)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low < index_size ? index_positions[low] : last;
+		}
+	}
+}
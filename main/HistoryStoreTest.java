@@ -0,0 +1,206 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for HistoryStore
+ * @author Charles (cjfman)
+ */
+public class HistoryStoreTest {
+	private File directory;
+	private HistoryStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("history").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		if (store != null)
+			store.close();
+		for (File file:directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * The last messages of a conversation and pages of older ones are read back in order
+	 */
+	@Test
+	public void testReadPages() throws Exception {
+		store = new HistoryStore(directory, 64 * 1024, 8, false);
+		for (int i = 1; i <= 100; i++) {
+			assertEquals(i, store.append(1, ServerConnection.textMessage(1, "cjfman", "one " + i)));
+			store.append(2, ServerConnection.textMessage(2, "dhrosa", "two " + i));
+		}
+		written(200);
+
+		ArrayList<HistoryStore.Record> last = store.read(1, 3);
+		assertEquals(3, last.size());
+		assertEquals(98, last.get(0).sequence);
+		assertEquals("one 100", last.get(2).message.getStatus());
+
+		ArrayList<HistoryStore.Record> page = store.read(2, 40, 5);
+		assertEquals(5, page.size());
+		assertEquals(35, page.get(0).sequence);
+		assertEquals("two 39", page.get(4).message.getStatus());
+		assertEquals("dhrosa", page.get(4).message.getUser());
+
+		assertEquals(2, store.read(1, 3, 10).size());
+		assertEquals(0, store.read(3, 10).size());
+	}
+
+	/**
+	 * A restarted store reads back the history and keeps counting sequence numbers
+	 */
+	@Test
+	public void testRecover() throws Exception {
+		store = new HistoryStore(directory, 4096, 100, true);
+		for (int i = 1; i <= 300; i++)
+			store.append(7, ServerConnection.textMessage(7, "cjfman", "line " + i));
+		store.append(8, ServerConnection.textMessage(8, "kemus", "closed"));
+		store.remove(8);
+		written(301);
+		store.close();
+		assertTrue(directory.list().length > 1);	// Rolled to new segments
+
+		store = new HistoryStore(directory, 4096, 100, true);
+		ArrayList<HistoryStore.Record> page = store.read(7, 150, 2);
+		assertEquals("line 148", page.get(0).message.getStatus());
+		assertEquals("line 149", page.get(1).message.getStatus());
+		assertEquals(301, store.append(7, ServerConnection.textMessage(7, "cjfman", "after")));
+		assertEquals(0, store.read(8, 10).size());
+	}
+
+	/**
+	 * Lines appended after every restart are all read back after the next one
+	 */
+	@Test
+	public void testRecoverTwice() throws Exception {
+		for (int i = 1; i <= 3; i++) {
+			store = new HistoryStore(directory, 4096, 100, true);
+			assertEquals(i, store.append(7, ServerConnection.textMessage(7, "cjfman", "line " + i)));
+			store.close();
+		}
+
+		store = new HistoryStore(directory, 4096, 100, true);
+		ArrayList<HistoryStore.Record> all = store.read(7, 10);
+		assertEquals(3, all.size());
+		for (int i = 0; i < 3; i++)
+			assertEquals("line " + (i + 1), all.get(i).message.getStatus());
+	}
+
+	/**
+	 * The oldest segments are deleted, reads stop where the history was cut off
+	 */
+	@Test
+	public void testRetention() throws Exception {
+		store = new HistoryStore(directory, 4096, 2, false);
+		for (int i = 1; i <= 1000; i++)
+			store.append(1, ServerConnection.textMessage(1, "cjfman", "line " + i));
+		written(1000);
+		assertEquals(2, directory.list().length);
+		ArrayList<HistoryStore.Record> all = store.read(1, 1000);
+		assertTrue(all.size() < 1000);
+		assertEquals(1000, all.get(all.size() - 1).sequence);
+		assertEquals(1000 - all.size() + 1, all.get(0).sequence);
+	}
+
+	/**
+	 * A member who joins gets the latest page in one frame, and older pages when asking for them
+	 */
+	@Test
+	public void testBackfill() throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.setHistoryDirectory(directory.getPath());
+		config.setHistoryPage(20);
+		Server server = new Server(0, config);
+		try {
+			store = server.getHistory();
+			new RecordingTransport().login(server, "cjfman");
+			int ID = server.startConversation("cjfman");
+			for (int i = 1; i <= 50; i++)
+				server.sendMessage(ID, "cjfman", "line " + i);
+			written(50);
+
+			RecordingTransport transport = new RecordingTransport();
+			ServerConnection member = transport.login(server, "dhrosa");
+			server.addToConversation(ID, "dhrosa");
+			Message page = transport.find(Server.HISTORY_PAGE);
+			assertEquals(20, page.Batch.length);
+			assertEquals("line 31", page.Batch[0].getStatus());
+			assertEquals("line 50", page.Batch[19].getStatus());
+			assertEquals("31", page.getStatus());
+
+			transport.clear();
+			member.handleMessage(ClientMessageSender.CreateHistoryMessage(ID, "dhrosa", 11));
+			page = transport.find(Server.HISTORY_PAGE);
+			assertEquals(10, page.Batch.length);
+			assertEquals("line 1", page.Batch[0].getStatus());
+
+			transport.clear();
+			member.handleMessage(ClientMessageSender.CreateHistoryMessage(ID, "dhrosa", 1));
+			assertEquals(0, transport.find(Server.HISTORY_PAGE).Batch.length);
+		} finally {
+			store = null;
+			server.kill();
+		}
+	}
+
+	/**
+	 * A member who logs in after a restart gets the latest page of every conversation given back
+	 */
+	@Test
+	public void testRejoinBackfill() throws Exception {
+		File state = Files.createTempDirectory("state").toFile();
+		ServerConfig config = new ServerConfig();
+		config.setHistoryDirectory(directory.getPath());
+		config.setStateLog(new File(state, "state.log").getPath(), StateLog.Durability.BATCHED);
+		try {
+			Server server = new Server(0, config);
+			store = server.getHistory();
+			int ID = server.startConversation("cjfman");
+			server.addToConversation(ID, "dhrosa");
+			for (int i = 1; i <= 3; i++)
+				server.sendMessage(ID, "cjfman", "line " + i);
+			written(3);
+			server.kill();
+			store = null;
+
+			server = new Server(0, config);
+			store = server.getHistory();
+			RecordingTransport transport = new RecordingTransport();
+			transport.login(server, "dhrosa");
+			assertEquals(ID, transport.find(602).getID());
+			Message page = transport.find(Server.HISTORY_PAGE);
+			assertEquals(ID, page.getID());
+			assertEquals(3, page.Batch.length);
+			assertEquals("line 1", page.Batch[0].getStatus());
+			store = null;
+			server.kill();
+		} finally {
+			for (File file:state.listFiles())
+				file.delete();
+			state.delete();
+		}
+	}
+
+	/**
+	 * Waits for the appender to write a number of messages
+	 */
+	private void written(long count) throws InterruptedException {
+		for (int i = 0; i < 500 && store.getAppended() < count; i++)
+			Thread.sleep(10);
+		assertEquals(count, store.getAppended());
+	}
+}
@@ -0,0 +1,164 @@
+package main;
+
+/**
+ * Hands out connection and conversation IDs in constant time.
+ *
+ * An ID is made of a slot index in the low bits and the slot's generation in the bits
+ * above it. Released slots go on a FIFO free list and their generation is bumped, so a
+ * recycled slot comes back under a different ID and messages addressed to the old ID
+ * can't reach whatever now uses the slot. FIFO reuse spreads releases over every free
+ * slot, which keeps any one slot's generation from wrapping around quickly.
+ *
+ * The first ID of every slot is the plain index, so a fresh allocator counts up from 0.
+ * @author Charles (cjfman)
+ *
+ */
+public class IdAllocator {
+	private final static int INITIAL_SLOTS = 64;
+
+	private final int capacity;
+	private final int index_bits;
+	private final int index_mask;
+	private final int generation_mask;
+
+	private int[] generations;	// Current generation of every slot that has been handed out
+	private long[] live;		// Bitmap of the slots currently in use
+	private int[] free;			// Ring buffer of released slots
+	private int free_head = 0;
+	private int free_count = 0;
+	private int used = 0;		// Number of slots that have ever been handed out
+	private int allocated = 0;
+
+	/**
+	 * Creates an allocator for up to capacity IDs in use at the same time
+	 * @param capacity: must be at least 1 and at most 2^30
+	 */
+	public IdAllocator(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Bad capacity " + capacity);
+		this.capacity = capacity;
+		this.index_bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(capacity - 1));
+		this.index_mask = (1 << index_bits) - 1;
+		this.generation_mask = (1 << (31 - index_bits)) - 1;
+		int slots = Math.min(capacity, INITIAL_SLOTS);
+		generations = new int[slots];
+		free = new int[slots];
+		live = new long[(slots + 63) / 64];
+	}
+
+	/**
+	 * Allocates an unused ID
+	 * @return the new ID, or -1 if every ID is in use
+	 */
+	public synchronized int allocate() {
+		int index;
+		if (free_count > 0) {
+			// Reuse the slot that has been free the longest
+			index = free[free_head];
+			free_head = (free_head + 1) % free.length;
+			free_count--;
+		}
+		else if (used < capacity) {
+			// Hand out a new slot
+			if (used == generations.length) grow();
+			index = used++;
+		}
+		else {
+			return -1;
+		}
+		live[index >> 6] |= 1L << index;
+		allocated++;
+		return (generations[index] << index_bits) | index;
+	}
+
+	/**
+	 * Releases an ID so it's slot can be reused under a new generation
+	 * @param ID
+	 * @return true if the ID was in use, false if it was stale or never allocated
+	 */
+	public synchronized boolean release(int ID) {
+		if (!isLive(ID)) return false;
+		int index = ID & index_mask;
+		live[index >> 6] &= ~(1L << index);
+		generations[index] = (generations[index] + 1) & generation_mask;
+		free[(free_head + free_count) % free.length] = index;
+		free_count++;
+		allocated--;
+		return true;
+	}
+
+	/**
+	 * Allocates a specific ID, as when state is rebuilt after a restart
+	 * @param ID
+	 * @return true if the ID was claimed, false if it's slot is in use or out of range
+	 */
+	public synchronized boolean claim(int ID) {
+		if (ID < 0) return false;
+		int index = ID & index_mask;
+		if (index >= capacity) return false;
+		if (index >= used) {
+			// The slots skipped over are free
+			while (generations.length <= index) grow();
+			for (int skipped = used; skipped < index; skipped++) {
+				free[(free_head + free_count) % free.length] = skipped;
+				free_count++;
+			}
+			used = index + 1;
+		}
+		else {
+			if ((live[index >> 6] & (1L << index)) != 0) return false;
+			// Take the slot off the free ring, keeping the order of the others
+			int kept = 0;
+			for (int i = 0; i < free_count; i++) {
+				int slot = free[(free_head + i) % free.length];
+				if (slot != index)
+					free[(free_head + kept++) % free.length] = slot;
+			}
+			free_count = kept;
+		}
+		generations[index] = (ID >>> index_bits) & generation_mask;
+		live[index >> 6] |= 1L << index;
+		allocated++;
+		return true;
+	}
+
+	/**
+	 * @param ID
+	 * @return true if the ID is currently allocated, including it's generation
+	 */
+	public synchronized boolean isLive(int ID) {
+		if (ID < 0) return false;
+		int index = ID & index_mask;
+		if (index >= used) return false;
+		if ((live[index >> 6] & (1L << index)) == 0) return false;
+		return generations[index] == (ID >>> index_bits);
+	}
+
+	/**
+	 * @return the number of IDs currently in use
+	 */
+	public synchronized int size() {
+		return allocated;
+	}
+
+	/**
+	 * Doubles the slot tables, up to the capacity
+	 * The free ring is unrolled so that it starts at 0 in the new array
+	 */
+	private void grow() {
+		int slots = (int) Math.min((long) capacity, 2L * generations.length);
+		int[] newGenerations = new int[slots];
+		System.arraycopy(generations, 0, newGenerations, 0, used);
+		generations = newGenerations;
+
+		int[] newFree = new int[slots];
+		for (int i = 0; i < free_count; i++)
+			newFree[i] = free[(free_head + i) % free.length];
+		free = newFree;
+		free_head = 0;
+
+		long[] newLive = new long[(slots + 63) / 64];
+		System.arraycopy(live, 0, newLive, 0, live.length);
+		live = newLive;
+	}
+}
@@ -0,0 +1,117 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for IdAllocator
+ * @author Charles (cjfman)
+ */
+public class IdAllocatorTest {
+
+	/**
+	 * A fresh allocator hands out 0, 1, 2... like the old linear search did
+	 */
+	@Test
+	public void testSequentialIDs() {
+		IdAllocator allocator = new IdAllocator(1000);
+		for (int i = 0; i < 200; i++)
+			assertEquals(i, allocator.allocate());
+		assertEquals(200, allocator.size());
+	}
+
+	/**
+	 * A released slot comes back under a new ID, and the old ID is no longer live
+	 */
+	@Test
+	public void testGenerations() {
+		IdAllocator allocator = new IdAllocator(4);
+		int first = allocator.allocate();
+		assertTrue(allocator.release(first));
+		assertFalse(allocator.isLive(first));
+
+		// Use up the fresh slots so the released one is reused
+		allocator.allocate();
+		allocator.allocate();
+		allocator.allocate();
+		int recycled = allocator.allocate();
+		assertNotEquals(first, recycled);
+		assertTrue(recycled > 0);
+		assertTrue(allocator.isLive(recycled));
+		assertFalse(allocator.isLive(first));
+
+		// Stale and double releases are refused
+		assertFalse(allocator.release(first));
+		assertTrue(allocator.release(recycled));
+		assertFalse(allocator.release(recycled));
+	}
+
+	/**
+	 * The allocator refuses to go over capacity, and frees slots on release
+	 */
+	@Test
+	public void testCapacity() {
+		IdAllocator allocator = new IdAllocator(100);
+		int[] IDs = new int[100];
+		for (int i = 0; i < 100; i++)
+			IDs[i] = allocator.allocate();
+		assertEquals(-1, allocator.allocate());
+
+		assertTrue(allocator.release(IDs[42]));
+		int ID = allocator.allocate();
+		assertTrue(ID >= 0);
+		assertEquals(-1, allocator.allocate());
+	}
+
+	/**
+	 * Released slots are reused first in first out
+	 */
+	@Test
+	public void testFifoReuse() {
+		IdAllocator allocator = new IdAllocator(3);
+		int a = allocator.allocate();
+		int b = allocator.allocate();
+		int c = allocator.allocate();
+		allocator.release(b);
+		allocator.release(a);
+		allocator.release(c);
+		assertEquals(b & 3, allocator.allocate() & 3);
+		assertEquals(a & 3, allocator.allocate() & 3);
+		assertEquals(c & 3, allocator.allocate() & 3);
+	}
+
+	/**
+	 * IDs stay positive however many times a slot is recycled
+	 */
+	@Test
+	public void testGenerationWrap() {
+		IdAllocator allocator = new IdAllocator(1 << 30);
+		for (int i = 0; i < 10; i++) {
+			int ID = allocator.allocate();
+			assertTrue(ID >= 0);
+			assertTrue(allocator.release(ID));
+		}
+	}
+
+	/**
+	 * Claimed IDs are live, and the slots skipped over or released are still handed out
+	 */
+	@Test
+	public void testClaim() {
+		IdAllocator allocator = new IdAllocator(1000);
+		int recycled = (3 << 10) | 100;		// Slot 100 in it's fourth generation
+		assertTrue(allocator.claim(recycled));
+		assertTrue(allocator.isLive(recycled));
+		assertFalse(allocator.claim(recycled));
+		assertFalse(allocator.claim(100));
+		assertEquals(1, allocator.size());
+
+		assertEquals(0, allocator.allocate());
+		assertTrue(allocator.claim(1));
+		assertEquals(2, allocator.allocate());
+		for (int i = 3; i < 100; i++)
+			assertEquals(i, allocator.allocate());
+		assertEquals(101, allocator.allocate());
+	}
+}
@@ -0,0 +1,406 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import main.Message.Type;
+
+/**
+ * Keeps the messages that could not be delivered to a user until the user logs in again.
+ *
+ * Messages are kept outside of the heap, in one log of segments that are either direct buffers
+ * or, when a directory is given, memory mapped files. Each user's messages are chained through
+ * the log: every record holds the position of the next record of the same user, and the user's
+ * box only holds the positions of it's first and last records and how many there are. So a
+ * queued message costs the heap nothing, and a million of them cost a few tens of megabytes
+ * of buffers.
+ *
+ * A box holds at most quota messages, the oldest one is dropped when a new one does not fit.
+ * Messages older than the expiry are dropped instead of being delivered. A segment is released
+ * once every record in it was delivered or dropped, and the oldest segments are given up when
+ * there are more than the limit, dropping the messages still in them.
+ *
+ * A record is laid out as:
+ *   int length, long next record, long time deposited, MessageCodec body
+ * The mailbox does not outlive the server, files left by an earlier one are deleted.
+ * @author Charles (cjfman)
+ *
+ */
+public class Mailbox {
+	public final static int BATCH = 402;				// Code of the frames that deliver a mailbox
+	public final static int SEGMENT_BYTES = 4 << 20;
+	public final static int MAX_SEGMENTS = 64;
+	public final static int DEFAULT_QUOTA = 500;
+	public final static long DEFAULT_EXPIRY = 7L * 24 * 60 * 60 * 1000;	// Milliseconds
+	public final static int MAX_BATCH = 256;			// Messages in one frame
+	private final static int MAX_BATCH_BYTES = MessageFrames.MAX_FRAME_LENGTH / 2;
+	private final static int HEADER = 4 + 8 + 8;
+
+	private final File directory;		// Null keeps the segments in direct buffers
+	private final int segment_bytes;
+	private final int max_segments;
+	private final int quota;
+	private final long expiry;			// Milliseconds
+
+	// Everything below is guarded by the mailbox
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();	// Oldest first
+	private final HashMap<String, Box> boxes = new HashMap<String, Box>();
+	private long next_base = 0;
+	private long queued = 0;
+	private long deposited = 0;
+	private long delivered = 0;
+	private long dropped = 0;
+	private long expired = 0;
+
+	/**
+	 * Opens a mailbox with the default segments in direct buffers
+	 * @param quota: the most messages kept for a user
+	 * @param expiry_ms: how long a message is kept
+	 */
+	public Mailbox(int quota, long expiry_ms) throws IOException {
+		this(null, SEGMENT_BYTES, MAX_SEGMENTS, quota, expiry_ms);
+	}
+
+	/**
+	 * Opens a mailbox
+	 * @param directory: holds the segment files, created if needed. Null keeps the segments in direct buffers
+	 * @param segment_bytes: size of a segment
+	 * @param max_segments: the oldest segments are given up when there are more than this
+	 * @param quota: the most messages kept for a user
+	 * @param expiry_ms: how long a message is kept
+	 * @throws IOException
+	 */
+	public Mailbox(File directory, int segment_bytes, int max_segments, int quota, long expiry_ms) throws IOException {
+		if (segment_bytes < 1024 || max_segments < 1 || quota < 1)
+			throw new IllegalArgumentException("Segments must be at least 1KB, and at least one segment and message must be kept");
+		this.directory = directory;
+		this.segment_bytes = segment_bytes;
+		this.max_segments = max_segments;
+		this.quota = quota;
+		this.expiry = expiry_ms;
+		if (directory != null) {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Can not create " + directory);
+			for (File file:directory.listFiles())
+				if (file.getName().endsWith(".box"))
+					file.delete();
+		}
+	}
+
+	/**
+	 * Keeps a message for a user who could not be reached
+	 * @param user
+	 * @param broadcast: the message
+	 * @return true if the message was kept
+	 */
+	public boolean deposit(String user, Broadcast broadcast) {
+		ByteBuffer frame;
+		try {
+			frame = broadcast.frame(true);
+		} catch (IOException e) {
+			return false;
+		}
+		frame.position(4);		// Only the body is kept
+		int length = HEADER + frame.remaining();
+		if (length > segment_bytes)
+			return false;
+		long time = System.currentTimeMillis();
+
+		synchronized (this) {
+			Segment segment;
+			try {
+				segment = tail(length, time);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			long position = segment.base + segment.position;
+			ByteBuffer page = segment.page(segment.position);
+			page.putInt(length - 4);
+			page.putLong(-1);
+			page.putLong(time);
+			page.put(frame);
+			segment.position += length;
+			segment.live++;
+			segment.newest = time;
+
+			Box box = boxes.get(user);
+			if (box == null) {
+				box = new Box();
+				boxes.put(user, box);
+			}
+			if (box.count == 0) {
+				box.first = position;
+			}
+			else {
+				// Link the new record after the user's last one
+				Segment previous = segment(box.last);
+				if (previous != null)
+					previous.map.putLong((int) (box.last - previous.base) + 4, position);
+			}
+			box.last = position;
+			box.count++;
+			queued++;
+			deposited++;
+			if (box.count > quota) {
+				dropFirst(box);
+				dropped++;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Takes every message kept for a user
+	 * @param user
+	 * @return the frames delivering the messages, oldest first, none if there are no messages.
+	 * Every frame is a Message of code BATCH holding at most MAX_BATCH messages in it's Batch
+	 */
+	public ArrayList<Message> drain(String user) {
+		ArrayList<Message> frames = new ArrayList<Message>();
+		ArrayList<Message> batch = new ArrayList<Message>();
+		int batch_bytes = 0;
+		synchronized (this) {
+			Box box = boxes.remove(user);
+			if (box == null)
+				return frames;
+			long oldest = System.currentTimeMillis() - expiry;
+			byte[] body = new byte[256];
+			while (box.count > 0) {
+				Segment segment = segment(box.first);
+				ByteBuffer page = segment.page((int) (box.first - segment.base));
+				int size = page.getInt() - (HEADER - 4);
+				page.getLong();
+				long time = page.getLong();
+				if (time < oldest) {
+					expired++;
+					dropFirst(box);
+					continue;
+				}
+				if (body.length < size)
+					body = new byte[size];
+				page.get(body, 0, size);
+				try {
+					batch.add(MessageCodec.decode(body, 0, size));
+					delivered++;
+				} catch (IOException e) {
+					dropped++;
+				}
+				batch_bytes += size;
+				dropFirst(box);
+				if (batch.size() == MAX_BATCH || batch_bytes >= MAX_BATCH_BYTES) {
+					frames.add(frame(batch));
+					batch.clear();
+					batch_bytes = 0;
+				}
+			}
+		}
+		if (!batch.isEmpty())
+			frames.add(frame(batch));
+		return frames;
+	}
+
+	/**
+	 * @return the number of messages waiting to be delivered
+	 */
+	public synchronized long getQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return the number of messages that were kept
+	 */
+	public synchronized long getDeposited() {
+		return deposited;
+	}
+
+	/**
+	 * @return the number of messages that were delivered
+	 */
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return the number of messages dropped because a box or the log was full
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the number of messages dropped because they were too old
+	 */
+	public synchronized long getExpired() {
+		return expired;
+	}
+
+	/**
+	 * @return the number of segments in use
+	 */
+	public synchronized int getSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Drops every message and releases the segments
+	 */
+	public synchronized void close() {
+		boxes.clear();
+		queued = 0;
+		while (!segments.isEmpty())
+			release(segments.remove(0));
+	}
+
+	/**
+	 * Builds a frame delivering a batch of messages
+	 */
+	private static Message frame(ArrayList<Message> batch) {
+		Message message = new Message();
+		message.setType(Type.Message);
+		message.setCode(BATCH);
+		message.Batch = batch.toArray(new Message[batch.size()]);
+		return message;
+	}
+
+	/**
+	 * Unlinks the first record of a box, releasing it's segment if nothing else in it is waiting.
+	 * Must hold the monitor
+	 */
+	private void dropFirst(Box box) {
+		Segment segment = segment(box.first);
+		long next = segment.map.getLong((int) (box.first - segment.base) + 4);
+		box.count--;
+		box.first = next;
+		queued--;
+		if (--segment.live == 0 && segment != segments.get(segments.size() - 1)) {
+			segments.remove(segment);
+			release(segment);
+		}
+	}
+
+	/**
+	 * @return the segment a record is written to, starting a new one if the record does not fit.
+	 * Must hold the monitor
+	 */
+	private Segment tail(int length, long time) throws IOException {
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment != null && segment.position + length <= segment_bytes)
+			return segment;
+		if (segment != null && segment.live == 0) {
+			// Nothing in the full segment is waiting, so it is started over
+			segment.position = 0;
+			return segment;
+		}
+		// Segments with nothing but expired records are given up before they are needed
+		while (segments.size() > 1 && segments.get(0).newest < time - expiry)
+			evict(segments.get(0), true);
+		if (segments.size() >= max_segments)
+			evict(segments.get(0), false);
+		segment = new Segment(next_base);
+		next_base += segment_bytes;
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Gives up the oldest segment. The boxes with messages in it drop them, every box's first
+	 * message is the oldest of the box, so only the fronts of the boxes are checked.
+	 * Must hold the monitor
+	 * @param expiring: true if every message in the segment is too old
+	 */
+	private void evict(Segment oldest, boolean expiring) {
+		long end = oldest.base + segment_bytes;
+		Iterator<Box> iterator = boxes.values().iterator();
+		while (iterator.hasNext()) {
+			Box box = iterator.next();
+			while (box.count > 0 && box.first >= oldest.base && box.first < end) {
+				dropFirst(box);
+				if (expiring)
+					expired++;
+				else
+					dropped++;
+			}
+			if (box.count == 0)
+				iterator.remove();
+		}
+		if (segments.remove(oldest))
+			release(oldest);
+	}
+
+	/**
+	 * @return the segment holding a position, or null if it was released. Must hold the monitor
+	 */
+	private Segment segment(long position) {
+		if (segments.isEmpty())
+			return null;
+		long index = (position - segments.get(0).base) / segment_bytes;
+		// Released segments leave gaps, so the guess is only a starting point
+		int i = (int) Math.min(Math.max(index, 0), segments.size() - 1);
+		while (i > 0 && segments.get(i).base > position)
+			i--;
+		Segment segment = segments.get(i);
+		return position >= segment.base && position < segment.base + segment_bytes ? segment : null;
+	}
+
+	/**
+	 * Gives a segment's memory back. Must hold the monitor
+	 */
+	private void release(Segment segment) {
+		if (segment.file != null && !segment.file.delete())
+			segment.file.deleteOnExit();
+	}
+
+	/**
+	 * The messages waiting for one user
+	 */
+	private static class Box {
+		private long first;		// Position of the oldest record
+		private long last;		// Position of the newest record
+		private int count = 0;
+	}
+
+	/**
+	 * One segment of the log
+	 */
+	private class Segment {
+		private final File file;		// Null for a direct buffer
+		private final long base;		// Position of the segment's first byte in the log
+		private final ByteBuffer map;
+		private int position = 0;		// Where the next record goes
+		private int live = 0;			// Records still waiting to be delivered
+		private long newest;			// When the last record was written
+
+		private Segment(long base) throws IOException {
+			this.base = base;
+			if (directory == null) {
+				file = null;
+				map = ByteBuffer.allocateDirect(segment_bytes);
+				return;
+			}
+			file = new File(directory, String.format("%020d.box", base));
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// The mapping stays valid after the file is closed
+				map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment_bytes);
+			} finally {
+				raf.close();
+			}
+		}
+
+		/**
+		 * @return a view of the segment positioned at an offset
+		 */
+		private ByteBuffer page(int offset) {
+			ByteBuffer page = map.duplicate();
+			page.position(offset);
+			return page;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for Mailbox
+ * @author Charles (cjfman)
+ */
+public class MailboxTest {
+	private File directory;
+	private Mailbox mailbox;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("mailbox").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		if (mailbox != null)
+			mailbox.close();
+		for (File file:directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Every user gets it's own messages once, oldest first, split into batches
+	 */
+	@Test
+	public void testDrain() throws IOException {
+		mailbox = new Mailbox(directory, 64 * 1024, 8, 1000, 60000);
+		for (int i = 0; i < 300; i++) {
+			mailbox.deposit("cjfman", text(1, "one " + i));
+			if (i % 3 == 0)
+				mailbox.deposit("dhrosa", text(2, "two " + i));
+		}
+		assertEquals(400, mailbox.getQueued());
+
+		ArrayList<String> lines = lines(mailbox.drain("cjfman"));
+		assertEquals(300, lines.size());
+		for (int i = 0; i < 300; i++)
+			assertEquals("one " + i, lines.get(i));
+		assertEquals(2, mailbox.drain("dhrosa").get(0).Batch[1].getID());
+		assertEquals(0, mailbox.drain("cjfman").size());
+		assertEquals(0, mailbox.getQueued());
+		assertEquals(400, mailbox.getDelivered());
+		assertEquals(1, mailbox.getSegments());
+	}
+
+	/**
+	 * A full box drops it's oldest messages
+	 */
+	@Test
+	public void testQuota() throws IOException {
+		mailbox = new Mailbox(directory, 64 * 1024, 8, 10, 60000);
+		for (int i = 0; i < 25; i++)
+			mailbox.deposit("cjfman", text(1, "line " + i));
+		ArrayList<String> lines = lines(mailbox.drain("cjfman"));
+		assertEquals(10, lines.size());
+		assertEquals("line 15", lines.get(0));
+		assertEquals("line 24", lines.get(9));
+		assertEquals(15, mailbox.getDropped());
+	}
+
+	/**
+	 * Old messages are not delivered, and segments holding only old messages are given up
+	 */
+	@Test
+	public void testExpiry() throws Exception {
+		mailbox = new Mailbox(directory, 4 * 1024, 64, 1000, 100);
+		for (int i = 0; i < 200; i++)
+			mailbox.deposit("cjfman", text(1, "old " + i));
+		int segments = mailbox.getSegments();
+		assertTrue(segments > 1);
+		Thread.sleep(200);
+		mailbox.deposit("dhrosa", text(2, "new"));
+		for (int i = 0; i < 200; i++)
+			mailbox.deposit("kemus", text(3, "new " + i));
+		assertTrue(mailbox.getSegments() <= segments + 1);
+
+		assertEquals(0, mailbox.drain("cjfman").size());
+		assertEquals(200, mailbox.getExpired());
+		assertEquals(1, lines(mailbox.drain("dhrosa")).size());
+		assertEquals(200, lines(mailbox.drain("kemus")).size());
+	}
+
+	/**
+	 * When the log is full the oldest segment is given up, it's messages are dropped
+	 */
+	@Test
+	public void testFullLog() throws IOException {
+		mailbox = new Mailbox(null, 4 * 1024, 4, 10000, 60000);
+		for (int i = 0; i < 2000; i++)
+			mailbox.deposit(i % 2 == 0 ? "cjfman" : "dhrosa", text(1, "line " + i));
+		assertEquals(4, mailbox.getSegments());
+		assertTrue(mailbox.getDropped() > 0);
+
+		ArrayList<String> lines = lines(mailbox.drain("cjfman"));
+		assertEquals(mailbox.getQueued() + lines.size() + mailbox.getDropped(), 2000);
+		assertEquals("line 1998", lines.get(lines.size() - 1));
+	}
+
+	private static Broadcast text(int ID, String text) {
+		return new Broadcast(ServerConnection.textMessage(ID, "kemus", text));
+	}
+
+	/**
+	 * @return the text of every message in the frames, checking that they are batches
+	 */
+	private static ArrayList<String> lines(ArrayList<Message> frames) {
+		ArrayList<String> lines = new ArrayList<String>();
+		for (Message frame:frames) {
+			assertEquals(Mailbox.BATCH, frame.getCode());
+			assertTrue(frame.Batch.length <= Mailbox.MAX_BATCH);
+			for (Message message:frame.Batch)
+				lines.add(message.getStatus());
+		}
+		return lines;
+	}
+}
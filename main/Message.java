@@ -29,6 +29,8 @@ public class Message implements Serializable {
     public String[] Friends = new String[0]; // Used to send entire friend lists
                                              // over (or everyone who is online
                                              // depending on what we decide)
+    public Message[] Batch = null; // Messages delivered together in one frame,
+                                   // such as a mailbox kept while the user was away
 
     /**
      * This constructor is for sending messages to the server
@@ -123,6 +125,8 @@ public class Message implements Serializable {
     		}
     		res += "}";
     	}
+    	if (Batch != null)
+    		res += ", Batch: " + Batch.length + " messages";
     	res += " }";
     	return res;
     }
@@ -0,0 +1,230 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import main.Message.Type;
+
+/**
+ * A compact binary encoding of a Message, used as the body of a frame instead of Java serialization.
+ *
+ * A body is laid out as
+ *   version byte, type tag byte, flags byte, then the fields named by the flags in this order:
+ *   code (zigzag varint), conversation ID (zigzag varint), user, status, friends, batch
+ * Strings are a varint of the UTF-8 length plus one followed by the bytes, with 0 standing for null.
+ * Friends is a varint of the count plus one followed by the strings, with 0 standing for null.
+ * Batch is a varint of the count followed by every message as a varint of it's length and it's body.
+ * Fields still holding the defaults of a new Message are left out.
+ *
+ * The version byte can never be 0xAC, the first byte of a Java serialization stream, so a frame
+ * body can be told apart from a serialized Message by it's first byte.
+ * @author Charles (cjfman)
+ *
+ */
+public class MessageCodec {
+	public final static int VERSION = 1;
+
+	// Tags are part of the wire format. New types must be added at the end
+	private final static Type[] TAGS = {Type.Login, Type.Logout, Type.Friends, Type.Start, Type.Status,
+		Type.Event, Type.Add, Type.Message, Type.Response, Type.Error};
+	private final static int NO_TYPE = 0xFF;
+
+	private final static int HAS_CODE = 1;
+	private final static int HAS_ID = 1 << 1;
+	private final static int HAS_USER = 1 << 2;
+	private final static int HAS_STATUS = 1 << 3;
+	private final static int HAS_FRIENDS = 1 << 4;
+	private final static int HAS_BATCH = 1 << 5;
+
+	/**
+	 * Appends the encoded message to a stream
+	 * @param message
+	 * @param out
+	 */
+	public static void encode(Message message, ByteArrayOutputStream out) {
+		int flags = 0;
+		if (message.getCode() != 0) flags |= HAS_CODE;
+		if (message.ConversationID != null) flags |= HAS_ID;
+		if (!"".equals(message.User)) flags |= HAS_USER;
+		if (!"".equals(message.Status)) flags |= HAS_STATUS;
+		if (message.Friends == null || message.Friends.length > 0) flags |= HAS_FRIENDS;
+		if (message.Batch != null) flags |= HAS_BATCH;
+
+		out.write(VERSION);
+		out.write(tag(message.getType()));
+		out.write(flags);
+		if ((flags & HAS_CODE) != 0) writeVarint(out, zigzag(message.getCode()));
+		if ((flags & HAS_ID) != 0) writeVarint(out, zigzag(message.ConversationID));
+		if ((flags & HAS_USER) != 0) writeString(out, message.User);
+		if ((flags & HAS_STATUS) != 0) writeString(out, message.Status);
+		if ((flags & HAS_FRIENDS) != 0) {
+			if (message.Friends == null) {
+				writeVarint(out, 0);
+			}
+			else {
+				writeVarint(out, message.Friends.length + 1);
+				for (String friend:message.Friends)
+					writeString(out, friend);
+			}
+		}
+		if ((flags & HAS_BATCH) != 0) {
+			writeVarint(out, message.Batch.length);
+			for (Message part:message.Batch) {
+				byte[] body = encode(part);
+				writeVarint(out, body.length);
+				out.write(body, 0, body.length);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a message on it's own
+	 * @param message
+	 * @return the encoded message
+	 */
+	public static byte[] encode(Message message) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		encode(message, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a message
+	 * @param body: array holding the encoded message
+	 * @param offset: start of the encoded message
+	 * @param length: length of the encoded message
+	 * @return the decoded message
+	 * @throws IOException if the bytes are not a message of a known version
+	 */
+	public static Message decode(byte[] body, int offset, int length) throws IOException {
+		Reader in = new Reader(body, offset, length);
+		int version = in.readByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported codec version " + version);
+		Message message = new Message();
+		int tag = in.readByte();
+		if (tag != NO_TYPE) {
+			if (tag >= TAGS.length)
+				throw new IOException("Unknown message type " + tag);
+			message.setType(TAGS[tag]);
+		}
+		int flags = in.readByte();
+		if ((flags & HAS_CODE) != 0) message.setCode(unzigzag(in.readVarint()));
+		if ((flags & HAS_ID) != 0) message.setID(unzigzag(in.readVarint()));
+		if ((flags & HAS_USER) != 0) message.setUser(in.readString());
+		if ((flags & HAS_STATUS) != 0) message.setStatus(in.readString());
+		if ((flags & HAS_FRIENDS) != 0) {
+			int count = in.readVarint();
+			if (count == 0) {
+				message.setFriends(null);
+			}
+			else {
+				// Every friend takes at least a byte, which bounds the array by the frame
+				if (count - 1 > in.remaining())
+					throw new IOException("Bad friend count " + (count - 1));
+				String[] friends = new String[count - 1];
+				for (int i = 0; i < friends.length; i++)
+					friends[i] = in.readString();
+				message.setFriends(friends);
+			}
+		}
+		if ((flags & HAS_BATCH) != 0) {
+			int count = in.readVarint();
+			// Every message takes at least three bytes, which bounds the array by the frame
+			if (count < 0 || count > in.remaining() / 3)
+				throw new IOException("Bad batch count " + count);
+			Message[] batch = new Message[count];
+			for (int i = 0; i < count; i++) {
+				int size = in.readVarint();
+				if (size < 0 || size > in.remaining())
+					throw new IOException("Bad batch message length " + size);
+				batch[i] = decode(body, in.position, size);
+				in.position += size;
+			}
+			message.Batch = batch;
+		}
+		if (in.remaining() != 0)
+			throw new IOException("Trailing bytes after message");
+		return message;
+	}
+
+	private static int tag(Type type) {
+		if (type == null) return NO_TYPE;
+		for (int i = 0; i < TAGS.length; i++)
+			if (TAGS[i] == type) return i;
+		throw new IllegalArgumentException("No tag for type " + type);
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		if (value == null) {
+			writeVarint(out, 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length + 1);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Reads the fields of an encoded message, checking every read against the end of the message
+	 */
+	private static class Reader {
+		private final byte[] bytes;
+		private final int end;
+		private int position;
+
+		private Reader(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		private int remaining() {
+			return end - position;
+		}
+
+		private int readByte() throws IOException {
+			if (position >= end)
+				throw new IOException("Message is truncated");
+			return bytes[position++] & 0xFF;
+		}
+
+		private int readVarint() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return value;
+			}
+			throw new IOException("Varint is too long");
+		}
+
+		private String readString() throws IOException {
+			int length = readVarint();
+			if (length == 0) return null;
+			length--;
+			if (length < 0 || length > remaining())
+				throw new IOException("Bad string length " + length);
+			String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import main.Message.Type;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for MessageCodec
+ * @author Charles (cjfman)
+ */
+public class MessageCodecTest {
+
+	/**
+	 * Every field survives a round trip
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		Message message = new Message();
+		message.setType(Type.Start);
+		message.setID(300);
+		message.setUser("cjfman");
+		message.setCode(602);
+		message.setStatus("Hello World");
+		message.setFriends(new String[] {"dhrosa", "kemus"});
+		assertEquals(message.toString(), roundTrip(message).toString());
+	}
+
+	/**
+	 * Defaults are left out, and come back as the defaults of a new Message
+	 */
+	@Test
+	public void testDefaults() throws IOException {
+		Message message = new Message();
+		message.setType(Type.Logout);
+		byte[] bytes = MessageCodec.encode(message);
+		assertEquals(3, bytes.length);
+
+		Message decoded = MessageCodec.decode(bytes, 0, bytes.length);
+		assertEquals(Type.Logout, decoded.getType());
+		assertNull(decoded.ConversationID);
+		assertEquals("", decoded.getUser());
+		assertEquals(0, decoded.getCode());
+		assertEquals("", decoded.getStatus());
+		assertEquals(0, decoded.getFriends().length);
+	}
+
+	/**
+	 * Nulls, negative numbers and text outside of ASCII are kept
+	 */
+	@Test
+	public void testUnusualValues() throws IOException {
+		Message message = new Message();
+		message.setID(-5);
+		message.setCode(Integer.MIN_VALUE);
+		message.setUser(null);
+		message.setStatus("caf\u00e9 \u2603 \ud83d\ude00");
+		message.setFriends(null);
+		Message decoded = roundTrip(message);
+		assertNull(decoded.getType());
+		assertEquals(-5, decoded.getID());
+		assertEquals(Integer.MIN_VALUE, decoded.getCode());
+		assertNull(decoded.getUser());
+		assertEquals(message.getStatus(), decoded.getStatus());
+		assertNull(decoded.getFriends());
+	}
+
+	/**
+	 * A batch keeps every message in it, in order
+	 */
+	@Test
+	public void testBatch() throws IOException {
+		Message batch = new Message();
+		batch.setType(Type.Message);
+		batch.setCode(402);
+		batch.Batch = new Message[] {ServerConnection.textMessage(3, "cjfman", "Hello"),
+				ServerConnection.textMessage(7, "dhrosa", "World")};
+		Message decoded = roundTrip(batch);
+		assertEquals(402, decoded.getCode());
+		assertEquals(2, decoded.Batch.length);
+		assertEquals(batch.Batch[0].toString(), decoded.Batch[0].toString());
+		assertEquals(batch.Batch[1].toString(), decoded.Batch[1].toString());
+
+		batch.Batch = new Message[0];
+		assertEquals(0, roundTrip(batch).Batch.length);
+	}
+
+	/**
+	 * Truncated bodies and unknown versions are refused
+	 */
+	@Test
+	public void testBadInput() {
+		Message message = new Message();
+		message.setType(Type.Message);
+		message.setStatus("Hello World");
+		byte[] bytes = MessageCodec.encode(message);
+		try {
+			MessageCodec.decode(bytes, 0, bytes.length - 1);
+			fail("Truncated message was decoded");
+		} catch (IOException e) {
+		}
+		bytes[0] = (byte) (MessageCodec.VERSION + 1);
+		try {
+			MessageCodec.decode(bytes, 0, bytes.length);
+			fail("Unknown version was decoded");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Frames decode whichever body they were written with, and binary frames are smaller
+	 */
+	@Test
+	public void testFrames() throws IOException {
+		Message message = new Message();
+		message.setType(Type.Message);
+		message.setID(0);
+		message.setUser("cjfman");
+		message.setStatus("Hello World");
+
+		ByteBuffer serialized = MessageFrames.encode(message, false);
+		ByteBuffer binary = MessageFrames.encode(message, true);
+		assertEquals(message.toString(), decodeFrame(serialized).toString());
+		assertEquals(message.toString(), decodeFrame(binary).toString());
+		assertTrue(binary.limit() < serialized.limit());
+	}
+
+	private Message roundTrip(Message message) throws IOException {
+		byte[] bytes = MessageCodec.encode(message);
+		return MessageCodec.decode(bytes, 0, bytes.length);
+	}
+
+	private Message decodeFrame(ByteBuffer frame) throws IOException {
+		assertEquals(frame.limit() - MessageFrames.HEADER_LENGTH, frame.getInt(0));
+		return MessageFrames.decode(frame.array(), MessageFrames.HEADER_LENGTH, frame.limit() - MessageFrames.HEADER_LENGTH);
+	}
+}
@@ -0,0 +1,129 @@
+package main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Length prefixed framing for Messages. Every frame is a 4 byte big endian length
+ * followed by a Message serialized on its own. Unlike one long ObjectOutputStream, a
+ * frame can be decoded as soon as all of its bytes have arrived, which is what the
+ * nio server needs to read from non-blocking channels.
+ *
+ * The body is either a serialized Message or a Message in the binary format of
+ * MessageCodec. Decoding tells them apart by the first byte, so a reader accepts
+ * both no matter which one the other side writes.
+ * @author Charles (cjfman)
+ *
+ */
+public class MessageFrames {
+	public final static int HEADER_LENGTH = 4;
+	public final static int MAX_FRAME_LENGTH = 1 << 20;
+	private final static byte SERIALIZED = (byte) 0xAC;	// First byte of a Java serialization stream
+
+	/**
+	 * Encodes a message into a frame with a serialized body
+	 * @param message
+	 * @return a buffer holding the complete frame, ready to be written
+	 * @throws IOException
+	 */
+	public static ByteBuffer encode(Message message) throws IOException {
+		return encode(message, false);
+	}
+
+	/**
+	 * Encodes a message into a frame
+	 * @param message
+	 * @param binary: true for a MessageCodec body, false for a serialized body
+	 * @return a buffer holding the complete frame, ready to be written
+	 * @throws IOException
+	 */
+	public static ByteBuffer encode(Message message, boolean binary) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(binary ? 64 : 256);
+		bytes.write(new byte[HEADER_LENGTH]);
+		if (binary) {
+			MessageCodec.encode(message, bytes);
+		}
+		else {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(message);
+			out.close();
+		}
+
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.capacity() - HEADER_LENGTH);
+		return frame;
+	}
+
+	/**
+	 * Decodes the body of a frame
+	 * @param body: array holding the frame
+	 * @param offset: start of the body, just past the length header
+	 * @param length: length of the body
+	 * @return the decoded message
+	 * @throws IOException
+	 */
+	public static Message decode(byte[] body, int offset, int length) throws IOException {
+		if (length > 0 && body[offset] != SERIALIZED)
+			return MessageCodec.decode(body, offset, length);
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body, offset, length));
+		try {
+			return (Message) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Frame does not hold a Message", e);
+		} catch (ClassCastException e) {
+			throw new IOException("Frame does not hold a Message", e);
+		}
+	}
+
+	/**
+	 * Checks the length header of a frame
+	 * @param length
+	 * @throws IOException if the length is not acceptable
+	 */
+	public static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new IOException("Bad frame length " + length);
+	}
+
+	/**
+	 * Writes a frame with a serialized body to a blocking stream
+	 * @param out
+	 * @param message
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, Message message) throws IOException {
+		write(out, message, false);
+	}
+
+	/**
+	 * Writes a frame to a blocking stream
+	 * @param out
+	 * @param message
+	 * @param binary: true for a MessageCodec body, false for a serialized body
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, Message message, boolean binary) throws IOException {
+		ByteBuffer frame = encode(message, binary);
+		out.write(frame.array(), 0, frame.limit());
+	}
+
+	/**
+	 * Blocks until a whole frame has been read from a stream
+	 * @param in
+	 * @return the decoded message
+	 * @throws IOException
+	 */
+	public static Message read(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		checkLength(length);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decode(body, 0, length);
+	}
+}
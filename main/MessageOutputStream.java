@@ -0,0 +1,122 @@
+package main;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes Messages to one long object stream, the format of a server in thread mode.
+ *
+ * An ObjectOutputStream remembers every object it has written so that it can send a back
+ * reference when the object shows up again, and the ObjectInputStream on the other end does
+ * the same. On a connection that stays open for days both tables would keep every Message and
+ * String ever sent reachable. This stream resets the object stream after a number of messages
+ * or bytes, whichever comes first, which drops the tables on both ends. The cost of a reset is
+ * that class descriptors are sent again with the next message.
+ * @author Charles (cjfman)
+ *
+ */
+public class MessageOutputStream {
+	public final static int RESET_MESSAGES = 256;
+	public final static int RESET_BYTES = 64 * 1024;
+
+	private final CountingStream counter;
+	private final ObjectOutputStream out;
+	private final int reset_messages;
+	private final int reset_bytes;
+	private int messages = 0;	// Messages written since the last reset
+	private long mark = 0;		// Bytes written before the last reset
+
+	/**
+	 * Opens an object stream with the default reset policy
+	 * @param out
+	 * @throws IOException
+	 */
+	public MessageOutputStream(OutputStream out) throws IOException {
+		this(out, RESET_MESSAGES, RESET_BYTES);
+	}
+
+	/**
+	 * Opens an object stream
+	 * @param out
+	 * @param reset_messages: reset after this many messages, 1 resets after every message
+	 * @param reset_bytes: reset once this many bytes have been written since the last reset
+	 * @throws IOException
+	 */
+	public MessageOutputStream(OutputStream out, int reset_messages, int reset_bytes) throws IOException {
+		if (reset_messages < 1 || reset_bytes < 1)
+			throw new IllegalArgumentException("Reset thresholds must be positive");
+		this.counter = new CountingStream(out);
+		this.out = new ObjectOutputStream(counter);
+		this.reset_messages = reset_messages;
+		this.reset_bytes = reset_bytes;
+	}
+
+	/**
+	 * Writes a message and flushes it to the underlying stream
+	 * Resets the object stream once the policy says so
+	 * @param message
+	 * @throws IOException
+	 */
+	public void write(Message message) throws IOException {
+		append(message);
+		out.flush();
+	}
+
+	/**
+	 * Writes a message without flushing, so several messages can be sent with one flush
+	 * Resets the object stream once the policy says so
+	 * @param message
+	 * @throws IOException
+	 */
+	public void append(Message message) throws IOException {
+		out.writeObject(message);
+		messages++;
+		if (messages >= reset_messages || counter.count - mark >= reset_bytes) {
+			out.reset();
+			messages = 0;
+			mark = counter.count;
+		}
+	}
+
+	/**
+	 * Flushes the appended messages to the underlying stream
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * @return the number of bytes written to the underlying stream
+	 */
+	public long bytesWritten() {
+		return counter.count;
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Counts the bytes written through it
+	 */
+	private static class CountingStream extends FilterOutputStream {
+		private long count = 0;
+
+		private CountingStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+
+import main.Message.Type;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for MessageOutputStream
+ * @author Charles (cjfman)
+ */
+public class MessageOutputStreamTest {
+
+	/**
+	 * A plain ObjectInputStream reads everything back across resets
+	 */
+	@Test
+	public void testRoundTrip() throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MessageOutputStream out = new MessageOutputStream(bytes, 7, 1024);
+		Message shared = message(-1);
+		for (int i = 0; i < 1000; i++) {
+			out.write(message(i));
+			out.write(shared);
+		}
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(message(i).toString(), ((Message) in.readObject()).toString());
+			assertEquals(shared.toString(), ((Message) in.readObject()).toString());
+		}
+	}
+
+	/**
+	 * Soak test. The heap stays flat while a million messages are written to one stream
+	 */
+	@Test
+	public void testHeapStaysFlat() throws IOException {
+		MessageOutputStream out = new MessageOutputStream(new NullStream());
+		for (int i = 0; i < 100000; i++)
+			out.write(message(i));
+		long before = usedHeap();
+		for (int i = 100000; i < 1000000; i++)
+			out.write(message(i));
+		long after = usedHeap();
+		assertTrue(out.bytesWritten() > 0);
+		// Without resets the stream would hold on to 900000 more Messages, well over 100MB
+		assertTrue("Heap grew by " + (after - before) + " bytes", after - before < 4 * 1024 * 1024);
+	}
+
+	private static Message message(int i) {
+		Message message = new Message();
+		message.setType(Type.Message);
+		message.setID(i % 10);
+		message.setUser("user" + (i % 100));
+		message.setStatus("Hello number " + i);
+		return message;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Discards everything written to it
+	 */
+	private static class NullStream extends OutputStream {
+		public void write(int b) {}
+		public void write(byte[] b, int off, int len) {}
+	}
+}
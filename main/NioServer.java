@@ -0,0 +1,367 @@
+package main;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking front end for the chat server. Instead of a thread per connection, a small
+ * fixed set of event loops multiplex every client channel with a Selector. Each message read
+ * off a channel is handed to its ServerConnection as a callback on the loop thread, so an idle
+ * client costs a channel, a selection key and the connection's own state, but no thread or stack.
+ *
+ * Clients must speak the framed protocol of MessageFrames.
+ * @author Charles (cjfman)
+ *
+ */
+public class NioServer {
+	private final static int READ_BUFFER_SIZE = 64 * 1024;
+	private final static int PARTIAL_BUFFER_SIZE = 1024;	// Least size of the buffer of an incomplete frame
+
+	private final Server server;
+	private final ServerSocketChannel serverChannel;
+	private final EventLoop[] loops;
+	private int next_loop = 0;
+
+	/**
+	 * Starts the event loops
+	 * @param server: the server that owns the connections
+	 * @param serverChannel: the channel to accept clients on
+	 * @param num_loops: the number of event loop threads
+	 * @throws IOException
+	 */
+	public NioServer(Server server, ServerSocketChannel serverChannel, int num_loops) throws IOException {
+		this.server = server;
+		this.serverChannel = serverChannel;
+		this.loops = new EventLoop[Math.max(1, num_loops)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Accepts clients and spreads them across the event loops round robin
+	 * Blocks until the server channel is closed
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		while (true) {
+			SocketChannel channel = serverChannel.accept();
+			EventLoop loop = loops[next_loop];
+			NioTransport transport = new NioTransport(loop, channel, server.binaryFrames());
+			ServerConnection connection = server.openConnection(transport);
+			if (connection == null) {
+				// Too many connections. Close connection
+				channel.close();
+				continue;
+			}
+			next_loop = (next_loop + 1) % loops.length;
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			transport.open(connection);
+		}
+	}
+
+	/**
+	 * Stops every event loop
+	 */
+	public void close() {
+		for (EventLoop loop:loops) {
+			try {
+				loop.selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * A thread that owns a selector and every channel registered with it
+	 * All reads, writes and request handling for those channels happen on this thread
+	 */
+	private static class EventLoop extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<NioTransport> pending;	// Transports that need registering or flushing
+		private final ByteBuffer readBuffer;						// Shared by every channel of the loop
+
+		public EventLoop(int index) throws IOException {
+			super("nio-loop-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<NioTransport>();
+			readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		}
+
+		/**
+		 * Queues a transport to be registered or flushed by this loop
+		 * @param transport
+		 */
+		public void schedule(NioTransport transport) {
+			pending.add(transport);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (selector.isOpen()) {
+					selector.select();
+
+					// Register new channels and flush writes queued by other threads
+					NioTransport transport;
+					while ((transport = pending.poll()) != null) {
+						try {
+							transport.service(selector);
+						} catch (RuntimeException e) {
+							transport.fail(e);
+						}
+					}
+
+					// Handle ready channels
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						transport = (NioTransport) key.attachment();
+						if (!key.isValid()) continue;
+						try {
+							if (key.isWritable())
+								transport.flush();
+							if (key.isValid() && key.isReadable())
+								transport.read(readBuffer);
+						} catch (RuntimeException e) {
+							transport.fail(e);
+						}
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// The server has been shut down
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The transport of a single client channel
+	 * Other threads may send at any time; the bytes are queued and written by the owning loop
+	 * Like the QueuedTransport of the thread modes, at most QueuedTransport.MAX_QUEUED messages wait for a client
+	 */
+	private static class NioTransport implements ConnectionTransport {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final boolean binary;		// Write MessageCodec bodies instead of serialized ones
+		private final ConcurrentLinkedQueue<Broadcast> outbound;
+		private final AtomicInteger queued;		// Number of frames in the outbound queue
+		private ByteBuffer writing;			// The frame being written, null between frames
+		private final AtomicBoolean scheduled;
+		private ServerConnection connection;
+		private SelectionKey key;
+		private ByteBuffer partial;		// Holds an incomplete frame between reads, null when there is none
+
+		public NioTransport(EventLoop loop, SocketChannel channel, boolean binary) {
+			this.loop = loop;
+			this.channel = channel;
+			this.binary = binary;
+			this.outbound = new ConcurrentLinkedQueue<Broadcast>();
+			this.queued = new AtomicInteger(0);
+			this.scheduled = new AtomicBoolean(false);
+		}
+
+		/**
+		 * Attaches the connection and hands the channel to its loop
+		 * @param connection
+		 */
+		public void open(ServerConnection connection) {
+			this.connection = connection;
+			scheduled.set(true);
+			loop.schedule(this);
+			connection.welcome();
+		}
+
+		public void send(Message message) throws IOException {
+			send(new Broadcast(message));
+		}
+
+		/**
+		 * Queues the broadcast's frame, which is encoded once and shared by every recipient
+		 * The frame is encoded by the sender, so the loop only has to write it
+		 * @throws IOException if the connection is closed or too far behind
+		 */
+		public void send(Broadcast broadcast) throws IOException {
+			broadcast.frame(binary);	// Encode now, on the sender's thread
+			if (!channel.isOpen())
+				throw new IOException("Connection closed");
+			if (queued.incrementAndGet() > QueuedTransport.MAX_QUEUED) {
+				queued.decrementAndGet();
+				throw new IOException("Outbound queue full");
+			}
+			outbound.add(broadcast);
+			if (Thread.currentThread() == loop) {
+				if (key != null) flush();
+			}
+			else if (scheduled.compareAndSet(false, true)) {
+				loop.schedule(this);
+			}
+		}
+
+		public void close() throws IOException {
+			if (key != null) key.cancel();
+			channel.close();
+			outbound.clear();
+			writing = null;
+		}
+
+		public boolean isClosed() {
+			return !channel.isOpen();
+		}
+
+		/**
+		 * Called by the loop after this transport was scheduled
+		 * Registers the channel the first time, then flushes pending writes
+		 * @param selector
+		 */
+		public void service(Selector selector) {
+			scheduled.set(false);
+			if (!channel.isOpen()) return;
+			if (key == null) {
+				try {
+					key = channel.register(selector, SelectionKey.OP_READ, this);
+				} catch (IOException e) {
+					disconnect();
+					return;
+				}
+			}
+			flush();
+		}
+
+		/**
+		 * Writes as much of the outbound queue as the channel will take
+		 * Waits for the channel to become writable when the socket buffer is full
+		 * Messages that were superseded while they waited are skipped
+		 */
+		public void flush() {
+			try {
+				while (true) {
+					if (writing == null) {
+						Broadcast next = outbound.poll();
+						if (next == null) break;
+						queued.decrementAndGet();
+						if (next.isSuperseded()) continue;
+						writing = next.frame(binary);
+					}
+					channel.write(writing);
+					if (writing.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					writing = null;
+				}
+				if (key.isValid())
+					key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				disconnect();
+			}
+		}
+
+		/**
+		 * Reads whatever is available and handles every complete frame
+		 * @param shared: the loop's read buffer, used unless a frame is partially read
+		 */
+		public void read(ByteBuffer shared) {
+			ByteBuffer buffer = partial;
+			if (buffer == null) {
+				buffer = shared;
+				buffer.clear();
+			}
+			try {
+				if (channel.read(buffer) < 0) {
+					// Client closed the connection
+					disconnect();
+					return;
+				}
+				buffer.flip();
+
+				// Handle every complete frame in the buffer
+				while (buffer.remaining() >= MessageFrames.HEADER_LENGTH) {
+					int length = buffer.getInt(buffer.position());
+					MessageFrames.checkLength(length);
+					if (buffer.remaining() < MessageFrames.HEADER_LENGTH + length) break;
+					int start = buffer.arrayOffset() + buffer.position() + MessageFrames.HEADER_LENGTH;
+					buffer.position(buffer.position() + MessageFrames.HEADER_LENGTH + length);
+					Message message = MessageFrames.decode(buffer.array(), start, length);
+					try {
+						connection.handleMessage(message);
+					} catch (RuntimeException e) {
+						// A request the connection chokes on only costs it's own client
+						fail(e);
+						return;
+					}
+					if (!channel.isOpen()) return;
+				}
+
+				// Keep the start of an incomplete frame for the next read
+				partial = buffer.hasRemaining() ? retain(buffer) : null;
+			} catch (IOException e) {
+				disconnect();
+			}
+		}
+
+		/**
+		 * Copies the unread part of a buffer into a buffer with room for more of the frame it starts
+		 * The buffer grows with the bytes that have arrived, at most doubling each time, instead of
+		 * being sized up front from the length the client claims
+		 * @param buffer
+		 * @return the retained bytes, ready to be read into
+		 */
+		private ByteBuffer retain(ByteBuffer buffer) {
+			int needed = MessageFrames.HEADER_LENGTH;
+			if (buffer.remaining() >= MessageFrames.HEADER_LENGTH)
+				needed += buffer.getInt(buffer.position());
+			int size = Math.max(PARTIAL_BUFFER_SIZE, Math.min(needed, 2 * buffer.remaining()));
+			if (buffer == partial && buffer.capacity() >= size)
+				return buffer.compact();
+			ByteBuffer frame = ByteBuffer.allocate(size);
+			frame.put(buffer);
+			return frame;
+		}
+
+		/**
+		 * Disconnects the client after handling it threw, leaving the loop and it's other channels running
+		 * @param e
+		 */
+		private void fail(RuntimeException e) {
+			e.printStackTrace();
+			try {
+				disconnect();
+			} catch (RuntimeException e1) {
+				// The log off sequence failed too, drop the channel anyway
+				e1.printStackTrace();
+				try {
+					close();
+				} catch (IOException e2) {
+				}
+			}
+		}
+
+		/**
+		 * Runs the connection's log off sequence after the channel failed or was closed by the client
+		 */
+		private void disconnect() {
+			if (!channel.isOpen()) return;
+			connection.disconnected();
+			try {
+				close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
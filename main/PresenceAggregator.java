@@ -0,0 +1,144 @@
+package main;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.Message.Type;
+
+/**
+ * Coalesces the presence changes pushed to each client: friends logging on (700), logging
+ * off (701), and the friends found when the client logs in (305).
+ *
+ * The first change a client gets after a quiet period is pushed right away. Changes that
+ * follow within the window are collected, keeping only the latest state of every user, and
+ * pushed together when the window ends. A single remaining change is pushed as it was,
+ * several are pushed as one digest:
+ *   Type Event, Code 706, Friends: "+user" for every user now online, "-user" for every user now offline
+ * The window keeps being extended while changes keep coming, so during a reconnect storm a
+ * client gets a digest per window instead of a frame per change.
+ * @author Charles (cjfman)
+ *
+ */
+public class PresenceAggregator {
+	public final static int DIGEST = 706;
+
+	private final long window;	// Nanoseconds
+	private final ConcurrentHashMap<ServerConnection, Pending> pending;
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * @param window_ms: how long changes are collected before they are pushed
+	 * @param timer: runs the pushes at the end of the windows
+	 */
+	public PresenceAggregator(long window_ms, ScheduledExecutorService timer) {
+		this.window = TimeUnit.MILLISECONDS.toNanos(window_ms);
+		this.pending = new ConcurrentHashMap<ServerConnection, Pending>();
+		this.timer = timer;
+	}
+
+	/**
+	 * Pushes a presence change to a client, now or when it's window ends
+	 * @param recipient: the client to be told
+	 * @param user: the user whose presence changed
+	 * @param online: true if the user is now online
+	 * @param message: the message telling the recipient about the change. It may be shared with other recipients
+	 */
+	public void push(ServerConnection recipient, String user, boolean online, Broadcast message) {
+		Pending state = pending.get(recipient);
+		if (state == null) {
+			state = new Pending(recipient);
+			Pending current = pending.putIfAbsent(recipient, state);
+			if (current != null) state = current;
+		}
+		boolean now = false;
+		synchronized (state) {
+			long time = System.nanoTime();
+			if (state.changes.isEmpty() && time - state.quiet_from >= 0) {
+				// Nothing was pushed lately
+				state.quiet_from = time + window;
+				now = true;
+			}
+			else {
+				state.changes.remove(user);		// Keep the latest change last
+				state.changes.put(user, online);
+				state.last = message;
+				if (!state.scheduled) {
+					state.scheduled = true;
+					timer.schedule(state, Math.max(0, state.quiet_from - time), TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+		if (now) send(recipient, message);
+	}
+
+	/**
+	 * Drops whatever is collected for a client that has logged off
+	 * @param recipient
+	 */
+	public void remove(ServerConnection recipient) {
+		pending.remove(recipient);
+	}
+
+	/**
+	 * Builds the digest of several presence changes
+	 * @param changes: every user mapped to whether it is online
+	 * @return the digest message
+	 */
+	public static Message digest(Map<String, Boolean> changes) {
+		String[] users = new String[changes.size()];
+		int i = 0;
+		for (Map.Entry<String, Boolean> change:changes.entrySet())
+			users[i++] = (change.getValue() ? "+" : "-") + change.getKey();
+		Message message = new Message();
+		message.setType(Type.Event);
+		message.setCode(DIGEST);
+		message.setFriends(users);
+		return message;
+	}
+
+	private static void send(ServerConnection recipient, Broadcast message) {
+		try {
+			recipient.pushMessage(message);
+		} catch (IOException e) {
+			// Client is gone or too far behind
+		}
+	}
+
+	/**
+	 * The changes collected for one client
+	 * Run by the timer when it's window ends
+	 */
+	private class Pending implements Runnable {
+		private final ServerConnection recipient;
+		private final LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+		private Broadcast last;			// The message of the latest change
+		private long quiet_from;		// Changes before this time are collected
+		private boolean scheduled = false;
+
+		private Pending(ServerConnection recipient) {
+			this.recipient = recipient;
+			this.quiet_from = System.nanoTime();
+		}
+
+		public void run() {
+			Broadcast message;
+			synchronized (this) {
+				scheduled = false;
+				if (changes.isEmpty()) return;
+				if (changes.size() == 1)
+					message = last;
+				else
+					message = new Broadcast(digest(changes));
+				changes.clear();
+				last = null;
+				quiet_from = System.nanoTime() + window;
+			}
+			if (pending.get(recipient) == this)
+				send(recipient, message);
+		}
+	}
+}
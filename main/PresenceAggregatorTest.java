@@ -0,0 +1,93 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import main.Message.Type;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for PresenceAggregator
+ * @author Charles (cjfman)
+ */
+public class PresenceAggregatorTest {
+	private Server server;
+	private ScheduledThreadPoolExecutor timer;
+	private PresenceAggregator aggregator;
+	private RecordingTransport transport;
+	private ServerConnection recipient;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new Server(0);
+		timer = new ScheduledThreadPoolExecutor(1);
+		aggregator = new PresenceAggregator(200, timer);
+		transport = new RecordingTransport();
+		recipient = new ServerConnection(transport, 0, server);
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+		server.kill();
+	}
+
+	/**
+	 * The first change is pushed right away, a single later change is pushed as it was
+	 */
+	@Test
+	public void testSingleChanges() throws InterruptedException {
+		aggregator.push(recipient, "cjfman", true, event("cjfman", 700));
+		assertEquals(1, transport.size());
+		assertEquals(700, transport.getMessages().get(0).getCode());
+
+		aggregator.push(recipient, "dhrosa", true, event("dhrosa", 700));
+		assertEquals(1, transport.size());
+		Thread.sleep(400);
+		assertEquals(2, transport.size());
+		assertEquals("dhrosa", transport.getMessages().get(1).getUser());
+	}
+
+	/**
+	 * Changes within the window become one digest holding the latest state of every user
+	 */
+	@Test
+	public void testDigest() throws InterruptedException {
+		aggregator.push(recipient, "cjfman", true, event("cjfman", 700));
+		aggregator.push(recipient, "dhrosa", true, event("dhrosa", 700));
+		aggregator.push(recipient, "kemus", true, event("kemus", 700));
+		aggregator.push(recipient, "dhrosa", false, event("dhrosa", 701));
+		Thread.sleep(400);
+
+		assertEquals(2, transport.size());
+		Message digest = transport.getMessages().get(1);
+		assertEquals(Type.Event, digest.getType());
+		assertEquals(PresenceAggregator.DIGEST, digest.getCode());
+		assertArrayEquals(new String[] {"+kemus", "-dhrosa"}, digest.getFriends());
+	}
+
+	/**
+	 * Nothing collected for a recipient is pushed after it was removed
+	 */
+	@Test
+	public void testRemove() throws InterruptedException {
+		aggregator.push(recipient, "cjfman", true, event("cjfman", 700));
+		aggregator.push(recipient, "dhrosa", true, event("dhrosa", 700));
+		aggregator.remove(recipient);
+		Thread.sleep(400);
+		assertEquals(1, transport.size());
+	}
+
+	private static Broadcast event(String user, int code) {
+		Message message = new Message();
+		message.setType(Type.Event);
+		message.setUser(user);
+		message.setCode(code);
+		return new Broadcast(message);
+	}
+}
@@ -0,0 +1,87 @@
+package main;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Decouples senders from a slow client. Messages sent to the connection are put on a
+ * bounded queue and written to the socket by the connection's own writer thread, so
+ * relaying into a conversation never waits on the TCP window of one of it's members.
+ * When the queue is full the client is too far behind and the send fails.
+ * @author Charles (cjfman)
+ *
+ */
+public class QueuedTransport implements ConnectionTransport, Runnable {
+	public final static int MAX_QUEUED = 1024;
+	private final static Broadcast CLOSE = new Broadcast(new Message());	// Put on the queue to stop the writer
+
+	private final SocketTransport socket;
+	private final ArrayBlockingQueue<Broadcast> queue;	// Single messages are queued as a broadcast to one
+	private volatile boolean closed = false;
+
+	/**
+	 * Wraps a socket transport. The writer must be started by running this
+	 * transport on a thread of it's own
+	 * @param socket
+	 */
+	public QueuedTransport(SocketTransport socket) {
+		this.socket = socket;
+		this.queue = new ArrayBlockingQueue<Broadcast>(MAX_QUEUED);
+	}
+
+	/**
+	 * Queues a message for the writer and returns immediately
+	 */
+	public void send(Message message) throws IOException {
+		send(new Broadcast(message));
+	}
+
+	/**
+	 * Queues a shared message for the writer and returns immediately
+	 */
+	public void send(Broadcast broadcast) throws IOException {
+		if (closed)
+			throw new IOException("Connection closed");
+		if (!queue.offer(broadcast))
+			throw new IOException("Outbound queue full");
+	}
+
+	/**
+	 * Stops accepting messages. The writer closes the socket once everything
+	 * already queued has been written, or right away if the queue is full
+	 */
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		if (!queue.offer(CLOSE))
+			socket.close();
+	}
+
+	public boolean isClosed() {
+		return closed || socket.isClosed();
+	}
+
+	/**
+	 * The writer. Drains the queue onto the socket until closed
+	 */
+	public void run() {
+		try {
+			while (true) {
+				Broadcast message = queue.take();
+				if (message == CLOSE) break;
+				if (message.isSuperseded()) continue;	// A newer message took it's place while it waited
+				socket.send(message);
+			}
+		} catch (IOException e) {
+			// Client is gone. The reader notices the closed socket and logs off
+			closed = true;
+		} catch (InterruptedException e) {
+			closed = true;
+		}
+		queue.clear();
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for QueuedTransport
+ * @author Charles (cjfman)
+ */
+public class QueuedTransportTest {
+	private ServerSocket listener;
+	private Socket client;
+	private Socket accepted;
+
+	@Before
+	public void setUp() throws IOException {
+		listener = new ServerSocket(0);
+		client = new Socket("localhost", listener.getLocalPort());
+		accepted = listener.accept();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		client.close();
+		accepted.close();
+		listener.close();
+	}
+
+	/**
+	 * A member whose outbound queue is full is reported to the sender as a failed recipient
+	 */
+	@Test
+	public void testFullQueue() throws IOException {
+		Server server = new Server(0);
+		RecordingTransport sender = new RecordingTransport();
+		ServerConnection connection = sender.login(server, "cjfman");
+		// The writer is never started, so nothing leaves the queue
+		QueuedTransport queued = new QueuedTransport(new SocketTransport(accepted));
+		ServerConnection member = server.openConnection(queued);
+		member.handleMessage(ClientMessageSender.CreateLoginMessage("dhrosa"));
+		connection.handleMessage(ClientMessageSender.CreateStartMessage("dhrosa"));
+		int ID = sender.find(601).getID();
+
+		Broadcast filler = new Broadcast(ServerConnection.textMessage(ID, "kemus", "filler"));
+		int sent = 0;
+		try {
+			while (sent <= QueuedTransport.MAX_QUEUED) {
+				queued.send(filler);
+				sent++;
+			}
+			fail("The queue never filled up");
+		} catch (IOException e) {
+		}
+
+		connection.handleMessage(ClientMessageSender.CreateSentMessage(ID, "cjfman", "hello?"));
+		Message failed = sender.find(401);
+		assertEquals(ID, failed.getID());
+		assertArrayEquals(new String[] {"dhrosa"}, failed.getFriends());
+		server.kill();
+	}
+}
@@ -0,0 +1,282 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent lines relayed to every conversation in memory, so pages of history for
+ * busy conversations are served without reading the HistoryStore.
+ *
+ * Every conversation keeps up to max_lines of it's latest lines in a ring indexed by sequence
+ * number, so lines that are added out of order by concurrent senders land in their place. The
+ * rings grow as lines come in. The conversations are kept in least recently used order, and
+ * when the lines of all of them take more than the byte budget, the least recently used
+ * conversations are evicted until they fit again.
+ *
+ * Sequence numbers come from the HistoryStore, or from the conversation in the SessionRegistry
+ * when no store is kept, so they keep counting up after a conversation was evicted.
+ * A read is a hit when every line asked for is in memory, either because the lines are in the
+ * ring or because the ring goes back to the first line of the conversation.
+ * @author Charles (cjfman)
+ *
+ */
+public class RecentCache {
+	public final static long DEFAULT_BYTES = 32 << 20;
+	private final static int MIN_RING = 16;
+	private final static int LINE_OVERHEAD = 96;	// Estimated bytes of a Message and it's strings, before the characters
+	private final static int RING_OVERHEAD = 16;	// Bytes of a slot in a ring
+
+	private final long max_bytes;
+	private final int max_lines;
+	private final LinkedHashMap<Integer, Ring> rings;	// Least recently used first, guarded by itself
+	private final AtomicLong bytes = new AtomicLong(0);
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	/**
+	 * @param max_bytes: the estimated bytes the lines of all conversations may take
+	 * @param max_lines: the most lines kept for a conversation
+	 */
+	public RecentCache(long max_bytes, int max_lines) {
+		if (max_lines < 1)
+			throw new IllegalArgumentException("At least one line must be kept");
+		this.max_bytes = max_bytes;
+		this.max_lines = max_lines;
+		this.rings = new LinkedHashMap<Integer, Ring>(16, 0.75f, true);
+	}
+
+	/**
+	 * Keeps a line that was just relayed
+	 * @param ID: the conversation
+	 * @param sequence: the line's sequence number, lines without one are not kept
+	 * @param message: the line, must not be changed afterwards
+	 */
+	public void add(int ID, long sequence, Message message) {
+		if (sequence <= 0)
+			return;
+		Ring ring = ring(ID);
+		synchronized (ring) {
+			ring.put(sequence, message);
+		}
+		evict(ring);
+	}
+
+	/**
+	 * Reads lines of a conversation that came before a sequence number
+	 * @param ID
+	 * @param before: only lines with a lower sequence number are read
+	 * @param count: the most lines to read
+	 * @param partial: true to return the lines in memory even if they are not all that were asked for
+	 * @return the lines, oldest first, or null if not all of them are in memory and partial is false
+	 */
+	public ArrayList<HistoryStore.Record> read(int ID, long before, int count, boolean partial) {
+		Ring ring;
+		synchronized (rings) {
+			ring = rings.get(ID);
+		}
+		ArrayList<HistoryStore.Record> lines = new ArrayList<HistoryStore.Record>();
+		boolean complete = false;
+		if (ring != null) {
+			synchronized (ring) {
+				long sequence = Math.min(before - 1, ring.newest);
+				while (lines.size() < count && sequence >= 1) {
+					Message line = ring.get(sequence);
+					if (line == null)
+						break;
+					lines.add(new HistoryStore.Record(sequence, line));
+					sequence--;
+				}
+				complete = lines.size() == count || sequence < 1;
+			}
+		}
+		if (complete) {
+			hits.incrementAndGet();
+		}
+		else {
+			misses.incrementAndGet();
+			if (!partial)
+				return null;
+		}
+		Collections.reverse(lines);
+		return lines;
+	}
+
+	/**
+	 * Forgets a conversation that was closed
+	 * @param ID
+	 */
+	public void remove(int ID) {
+		Ring ring;
+		synchronized (rings) {
+			ring = rings.remove(ID);
+		}
+		if (ring != null)
+			release(ring);
+	}
+
+	/**
+	 * @return the estimated bytes the kept lines take
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the number of conversations kept
+	 */
+	public int size() {
+		synchronized (rings) {
+			return rings.size();
+		}
+	}
+
+	/**
+	 * @return the number of reads served from memory
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of reads that needed lines that are not in memory
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of conversations evicted to stay within the byte budget
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Looks up a conversation's ring, creating it if needed, and marks it as the most recently used
+	 */
+	private Ring ring(int ID) {
+		synchronized (rings) {
+			Ring ring = rings.get(ID);
+			if (ring == null) {
+				ring = new Ring();
+				rings.put(ID, ring);
+			}
+			return ring;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used conversations until the lines fit in the budget
+	 * @param keep: the conversation that was just added to, it is not evicted
+	 */
+	private void evict(Ring keep) {
+		if (bytes.get() <= max_bytes)
+			return;
+		ArrayList<Ring> evicted = new ArrayList<Ring>();
+		synchronized (rings) {
+			long remaining = bytes.get();
+			Iterator<Ring> iterator = rings.values().iterator();
+			while (remaining > max_bytes && iterator.hasNext()) {
+				Ring ring = iterator.next();
+				if (ring == keep)
+					continue;
+				iterator.remove();
+				evicted.add(ring);
+				remaining -= ring.bytes;
+			}
+		}
+		for (Ring ring:evicted) {
+			release(ring);
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void release(Ring ring) {
+		synchronized (ring) {
+			bytes.addAndGet(-ring.bytes);
+			ring.bytes = 0;
+			ring.lines = new Message[0];
+			ring.sequences = new long[0];
+			ring.released = true;
+		}
+	}
+
+	private static int size(Message message) {
+		return LINE_OVERHEAD + 2 * (message.getStatus().length() + message.getUser().length());
+	}
+
+	/**
+	 * The latest lines of one conversation, each in the slot of it's sequence number
+	 */
+	private class Ring {
+		private Message[] lines = new Message[0];
+		private long[] sequences = new long[0];
+		private long newest = 0;		// Highest sequence number kept
+		private long oldest = 0;		// Lowest sequence number kept since the ring was created
+		private long bytes = 0;			// Estimated bytes of the lines and slots
+		private boolean released = false;
+
+		/**
+		 * Keeps a line, dropping the line whose slot it takes. Must hold the monitor
+		 */
+		private void put(long sequence, Message message) {
+			if (released || sequence <= newest - max_lines)
+				return;		// Evicted, or older than anything kept
+			if (sequence > newest)
+				newest = sequence;
+			if (oldest == 0 || sequence < oldest)
+				oldest = sequence;
+			while (lines.length < max_lines && newest - oldest >= lines.length)
+				grow();
+			int slot = (int) (sequence % lines.length);
+			long change = size(message);
+			if (lines[slot] != null)
+				change -= size(lines[slot]);
+			lines[slot] = message;
+			sequences[slot] = sequence;
+			this.bytes += change;
+			RecentCache.this.bytes.addAndGet(change);
+		}
+
+		/**
+		 * @return the line with a sequence number, or null if it is not kept. Must hold the monitor
+		 */
+		private Message get(long sequence) {
+			if (lines.length == 0)
+				return null;
+			int slot = (int) (sequence % lines.length);
+			return sequences[slot] == sequence ? lines[slot] : null;
+		}
+
+		/**
+		 * Doubles the ring, up to max_lines slots, moving every line to it's new slot. Must hold the monitor
+		 */
+		private void grow() {
+			int capacity = Math.min(max_lines, Math.max(MIN_RING, lines.length * 2));
+			Message[] old_lines = lines;
+			long[] old_sequences = sequences;
+			lines = new Message[capacity];
+			sequences = new long[capacity];
+			long change = (long) (capacity - old_lines.length) * RING_OVERHEAD;
+			for (int i = 0; i < old_lines.length; i++) {
+				if (old_lines[i] == null)
+					continue;
+				if (old_sequences[i] > newest - capacity) {
+					int slot = (int) (old_sequences[i] % capacity);
+					lines[slot] = old_lines[i];
+					sequences[slot] = old_sequences[i];
+				}
+				else {
+					change -= size(old_lines[i]);		// Too old for the new ring
+				}
+			}
+			this.bytes += change;
+			RecentCache.this.bytes.addAndGet(change);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for RecentCache
+ * @author Charles (cjfman)
+ */
+public class RecentCacheTest {
+
+	/**
+	 * Pages within the kept lines are hits, pages reaching past them are misses
+	 */
+	@Test
+	public void testReadPages() {
+		RecentCache cache = new RecentCache(1 << 20, 100);
+		for (int i = 1; i <= 250; i++)
+			cache.add(1, i, line(1, "line " + i));
+
+		ArrayList<HistoryStore.Record> last = cache.read(1, Long.MAX_VALUE, 10, false);
+		assertEquals(10, last.size());
+		assertEquals(241, last.get(0).sequence);
+		assertEquals("line 250", last.get(9).message.getStatus());
+
+		ArrayList<HistoryStore.Record> page = cache.read(1, 210, 50, false);
+		assertEquals(160, page.get(0).sequence);
+		assertEquals(209, page.get(49).sequence);
+		assertEquals(2, cache.getHits());
+
+		// Only the last 100 lines are kept
+		assertNull(cache.read(1, 160, 20, false));
+		assertEquals(9, cache.read(1, 160, 20, true).size());
+		assertNull(cache.read(2, Long.MAX_VALUE, 10, false));
+		assertEquals(3, cache.getMisses());
+	}
+
+	/**
+	 * A short conversation is all in memory, and lines added out of order land in their place
+	 */
+	@Test
+	public void testOutOfOrder() {
+		RecentCache cache = new RecentCache(1 << 20, 500);
+		for (int i = 40; i >= 1; i--)
+			cache.add(3, i, line(3, "line " + i));
+		cache.add(3, -1, line(3, "dropped"));
+
+		ArrayList<HistoryStore.Record> all = cache.read(3, Long.MAX_VALUE, 100, false);
+		assertEquals(40, all.size());
+		for (int i = 0; i < 40; i++)
+			assertEquals("line " + (i + 1), all.get(i).message.getStatus());
+		assertEquals(1, cache.getHits());
+	}
+
+	/**
+	 * The least recently used conversations are evicted to stay within the budget
+	 */
+	@Test
+	public void testEviction() {
+		RecentCache cache = new RecentCache(64 * 1024, 100);
+		for (int i = 1; i <= 50; i++)
+			cache.add(1, i, line(1, "hot " + i));
+		for (int ID = 2; ID < 200; ID++) {
+			for (int i = 1; i <= 50; i++)
+				cache.add(ID, i, line(ID, "cold " + i));
+			cache.read(1, Long.MAX_VALUE, 10, false);		// Keeps the hot conversation in use
+		}
+		assertTrue(cache.getBytes() <= 64 * 1024);
+		assertTrue(cache.getEvictions() > 100);
+		assertEquals(50, cache.read(1, Long.MAX_VALUE, 50, false).size());
+		assertNull(cache.read(2, Long.MAX_VALUE, 10, false));
+
+		cache.remove(1);
+		assertNull(cache.read(1, Long.MAX_VALUE, 10, false));
+	}
+
+	/**
+	 * Without a store, lines are numbered by the conversation, so an evicted conversation goes on
+	 * counting from where it was and it's old page cursors are not answered with newer lines
+	 */
+	@Test
+	public void testNumberingAfterEviction() {
+		SessionRegistry registry = new SessionRegistry();
+		registry.openConversation(1, "cjfman");
+		RecentCache cache = new RecentCache(1 << 20, 100);
+		for (int i = 1; i <= 30; i++)
+			cache.add(1, registry.nextLine(1), line(1, "line " + i));
+		cache.remove(1);
+
+		long sequence = registry.nextLine(1);
+		assertEquals(31, sequence);
+		cache.add(1, sequence, line(1, "line 31"));
+		assertEquals(1, cache.read(1, Long.MAX_VALUE, 1, false).size());
+		assertNull(cache.read(1, 31, 10, false));
+		assertEquals(0, cache.read(1, 31, 10, true).size());
+		assertEquals(0, registry.nextLine(2));
+	}
+
+	/**
+	 * Lines that no longer fit when a ring grows past a gap are taken off the byte count
+	 */
+	@Test
+	public void testGrowAccounting() {
+		RecentCache gap = new RecentCache(1 << 20, 100);
+		for (int i = 1; i <= 16; i++)
+			gap.add(1, i, line(1, "line"));
+		gap.add(1, 40, line(1, "line"));		// Lines 1 to 8 fall out of the grown ring
+
+		// What a line and a slot cost, from rings of 16 slots holding one and two lines
+		RecentCache one = new RecentCache(1 << 20, 100);
+		one.add(1, 1, line(1, "line"));
+		RecentCache two = new RecentCache(1 << 20, 100);
+		two.add(1, 1, line(1, "line"));
+		two.add(1, 2, line(1, "line"));
+		long line = two.getBytes() - one.getBytes();
+		long slot = (one.getBytes() - line) / 16;
+
+		// The ring grew to 32 slots dropping lines 1 to 8, then to 64 as it spans lines 1 to 40
+		assertEquals(64 * slot + 9 * line, gap.getBytes());
+	}
+
+	private static Message line(int ID, String text) {
+		return ServerConnection.textMessage(ID, "cjfman", text);
+	}
+}
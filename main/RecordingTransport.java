@@ -0,0 +1,81 @@
+package main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A transport that keeps every message sent to it instead of writing it to a client, so tests
+ * and benchmarks can drive a Server without sockets and look at what it sent
+ * @author Charles (cjfman)
+ *
+ */
+public class RecordingTransport implements ConnectionTransport {
+	private final ArrayList<Message> messages = new ArrayList<Message>();
+
+	public synchronized void send(Message message) {
+		messages.add(message);
+	}
+
+	public synchronized void send(Broadcast broadcast) {
+		messages.add(broadcast.getMessage());
+	}
+
+	public void close() {}
+
+	public boolean isClosed() {
+		return false;
+	}
+
+	/**
+	 * Opens a connection on this transport and logs a user in on it
+	 * @param server
+	 * @param user
+	 * @return the connection
+	 * @throws IOException
+	 */
+	public ServerConnection login(Server server, String user) throws IOException {
+		ServerConnection connection = server.openConnection(this);
+		connection.handleMessage(ClientMessageSender.CreateLoginMessage(user));
+		return connection;
+	}
+
+	/**
+	 * @return the messages sent so far, oldest first
+	 */
+	public synchronized ArrayList<Message> getMessages() {
+		return new ArrayList<Message>(messages);
+	}
+
+	/**
+	 * @return the number of messages sent so far
+	 */
+	public synchronized int size() {
+		return messages.size();
+	}
+
+	/**
+	 * Forgets the messages sent so far
+	 */
+	public synchronized void clear() {
+		messages.clear();
+	}
+
+	/**
+	 * @return the number of messages with a code
+	 */
+	public synchronized int count(int code) {
+		int count = 0;
+		for (Message message:messages)
+			if (message.getCode() == code) count++;
+		return count;
+	}
+
+	/**
+	 * @return the first message with a code, or null if none was sent
+	 */
+	public synchronized Message find(int code) {
+		for (Message message:messages)
+			if (message.getCode() == code) return message;
+		return null;
+	}
+}
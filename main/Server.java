@@ -1,11 +1,22 @@
 package main;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import main.Message.Type;
 
@@ -16,18 +27,50 @@ import main.Message.Type;
  *
  */
 public class Server extends Thread {
+	/**
+	 * How connections are run. THREADS gives every connection a platform thread,
+	 * VIRTUAL_THREADS a virtual thread, and NIO serves every connection from a few event loops
+	 */
+	public enum Mode {THREADS, VIRTUAL_THREADS, NIO};
+	
 	private static Server server;
 	private final static int PORT = 4444;
+	private ServerSocketChannel serverChannel;
 	private ServerSocket serverSocket;
-	private final static int max_connections = 500;
-	private final static Integer max_conversations = 0x7FFFFFFF;
-	private Integer num_connections = 0;
+	private NioServer nioServer;
+	private final static int max_connections = 500;				// When every connection has a platform thread
+	private final static int max_light_connections = 100000;	// When connections are virtual threads or nio
+	private final static int max_conversations = 1 << 20;		// Open at the same time
+	public final static int HISTORY_PAGE = 403;		// Code of history fetches and the pages answering them
+	public final static int MAX_HISTORY_PAGE = 500;
+	private final AtomicInteger num_connections = new AtomicInteger(0);
 	private static boolean debug_mode;
 	private static boolean all_users_mode;
+	private final static long friends_interval = 10000;	// Milliseconds between saves of the friend graph
+	private final ServerConfig config;
+	private Mode mode;		// As configured, unless virtual threads turn out to be missing
 	
-	private HashMap<Integer, HashSet<String>> conversations;	// Maps a conversation ID to a list of people
-	private HashMap<Integer, ServerConnection> connections; 	// Maps a connection ID to the thread running that connection
-	private HashMap<String, Integer> usernames;					// Maps a username to a connection ID
+	private final SessionRegistry registry = new SessionRegistry();	// Connections, users and conversations
+	private final FriendIndex friendIndex = new FriendIndex();		// Who has friended whom, for the logged in users
+	private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "server-timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final PresenceAggregator presence;	// Null when every presence change is pushed on it's own
+	private final TypingAggregator typing;		// Null when every typing event is pushed
+	private final IdAllocator connectionIDs = new IdAllocator(max_light_connections);
+	private final IdAllocator conversationIDs = new IdAllocator(max_conversations);
+	private HistoryStore history;	// Null when no history is kept
+	private final RecentCache recent;	// Null when no recent lines are kept in memory
+	private Mailbox mailbox;		// Null when undelivered messages are dropped
+	private FriendGraph friendGraph;	// Every user's friend list, kept after they log off
+	private StateLog log;			// Null when changes are not logged
+	private File snapshot;			// Where the state is snapshot, when changes are logged
+	private ScheduledThreadPoolExecutor snapshots;	// Takes the snapshots, apart from the timer so that presence is not held up
+	private final ConcurrentHashMap<String, Integer[]> recovered = new ConcurrentHashMap<String, Integer[]>();	// Conversations replayed from the log, by member, until the member logs in
 	
 	/**
 	 * Initialize a server instance on the specified port
@@ -35,10 +78,26 @@ public class Server extends Thread {
 	 * @throws IOException
 	 */
 	public Server(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        conversations = new HashMap<Integer, HashSet<String>>();
-        connections = new HashMap<Integer, ServerConnection>();
-        usernames = new HashMap<String, Integer>();
+		this(port, new ServerConfig());
+	}
+	
+	/**
+	 * Initialize a server instance on the specified port and configuration
+	 * @param port
+	 * @param config: how the server is set up, it must not be changed afterwards
+	 * @throws IOException
+	 */
+	public Server(int port, ServerConfig config) throws IOException {
+		this.config = config;
+		this.mode = config.mode;
+		presence = config.presence_window > 0 ? new PresenceAggregator(config.presence_window, timer) : null;
+		typing = config.typing_interval > 0 ? new TypingAggregator(this, config.typing_interval, timer) : null;
+		recent = config.cache_bytes > 0 ? new RecentCache(config.cache_bytes, MAX_HISTORY_PAGE) : null;
+        openSocket(port);
+        openHistory();
+        openMailbox();
+        openFriends();
+        openStateLog();
 	}
 	
 	/**
@@ -47,11 +106,251 @@ public class Server extends Thread {
 	 * @throws IOException
 	 */
 	public Server(int port, boolean debug) throws IOException {
-        serverSocket = new ServerSocket(port);
+		this(port, new ServerConfig());
         debug_mode = debug;
-        conversations = new HashMap<Integer, HashSet<String>>();
-        connections = new HashMap<Integer, ServerConnection>();
-        usernames = new HashMap<String, Integer>();
+	}
+	
+	/**
+	 * Initialize a server instance on the specified port, debug mode and connection mode
+	 * @param port
+	 * @param debug
+	 * @param connectionMode: how connections are run
+	 * @throws IOException
+	 */
+	public Server(int port, boolean debug, Mode connectionMode) throws IOException {
+		this(port, debug, connectionMode, false);
+	}
+	
+	/**
+	 * Initialize a server instance on the specified port, debug mode, connection mode and wire format
+	 * @param port
+	 * @param debug
+	 * @param connectionMode: how connections are run
+	 * @param binary: true to talk in MessageCodec frames
+	 * @throws IOException
+	 */
+	public Server(int port, boolean debug, Mode connectionMode, boolean binary) throws IOException {
+		this(port, config(connectionMode, binary));
+		debug_mode = debug;
+	}
+	
+	private static ServerConfig config(Mode connectionMode, boolean binary) {
+		ServerConfig config = new ServerConfig();
+		config.setMode(connectionMode);
+		config.setBinaryFrames(binary);
+		return config;
+	}
+	
+	/**
+	 * Binds the listening socket. It is backed by a channel so that the
+	 * same socket can be served by either the blocking or the nio server
+	 * @param port
+	 * @throws IOException
+	 */
+	private void openSocket(int port) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverChannel.bind(new InetSocketAddress(port));
+		serverSocket = serverChannel.socket();
+	}
+	
+	/**
+	 * Opens the history store if one is configured
+	 * @throws IOException
+	 */
+	private void openHistory() throws IOException {
+		if (config.history_dir != null)
+			history = new HistoryStore(new File(config.history_dir));
+	}
+	
+	/**
+	 * Loads the friend graph, and saves it every friends_interval if it is kept in a file
+	 * @throws IOException
+	 */
+	private void openFriends() throws IOException {
+		if (config.friends_file == null && config.state_log == null) {
+			friendGraph = new FriendGraph();
+			return;
+		}
+		if (config.friends_file == null) {
+			// Saved with the snapshots of the state
+			friendGraph = new FriendGraph(new File(config.state_log + ".graph"));
+			return;
+		}
+		friendGraph = new FriendGraph(new File(config.friends_file));
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				saveFriends();
+			}
+		}, friends_interval, friends_interval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Opens the state log if one is configured, and rebuilds the conversations and friends from
+	 * the latest snapshot and the changes logged after it began
+	 * Members of the rebuilt conversations get them back when they log in
+	 * @throws IOException
+	 */
+	private void openStateLog() throws IOException {
+		if (config.state_log == null)
+			return;
+		long time = System.nanoTime();
+		log = new StateLog(new File(config.state_log), config.durability);
+		snapshot = new File(config.state_log + ".snapshot");
+		final HashMap<Integer, String[]> conversations = new HashMap<Integer, String[]>();
+		if (snapshot.exists()) {
+			StateSnapshot.load(snapshot, new StateSnapshot.Listener() {
+				public void restored(int ID, String[] members) {
+					conversations.put(ID, members);
+				}
+			});
+		}
+		
+		// The log may repeat changes the snapshot already has, so a conversation is only closed
+		// if it is left empty once every change was replayed
+		final HashMap<Integer, LinkedHashSet<String>> changed = new HashMap<Integer, LinkedHashSet<String>>();
+		long count = log.replay(new StateLog.Listener() {
+			public void started(int ID, String user) {
+				members(ID).add(user);
+			}
+			public void added(int ID, String user) {
+				members(ID).add(user);
+			}
+			public void left(int ID, String user) {
+				members(ID).remove(user);
+			}
+			public void friended(String user, String friend) {
+				friendGraph.addFriend(user, friend);
+			}
+			private LinkedHashSet<String> members(int ID) {
+				LinkedHashSet<String> members = changed.get(ID);
+				if (members == null) {
+					members = new LinkedHashSet<String>();
+					String[] restored = conversations.get(ID);
+					if (restored != null)
+						members.addAll(Arrays.asList(restored));
+					changed.put(ID, members);
+				}
+				return members;
+			}
+		});
+		for (Integer ID:changed.keySet()) {
+			LinkedHashSet<String> members = changed.get(ID);
+			conversations.put(ID, members.toArray(new String[members.size()]));
+		}
+		
+		HashMap<String, ArrayList<Integer>> memberships = new HashMap<String, ArrayList<Integer>>();
+		for (Integer ID:conversations.keySet()) {
+			String[] members = conversations.get(ID);
+			if (members.length == 0 || !conversationIDs.claim(ID)) continue;
+			registry.restoreConversation(ID, members);
+			for (String member:members) {
+				ArrayList<Integer> IDs = memberships.get(member);
+				if (IDs == null) {
+					IDs = new ArrayList<Integer>(2);
+					memberships.put(member, IDs);
+				}
+				IDs.add(ID);
+			}
+		}
+		for (String user:memberships.keySet()) {
+			ArrayList<Integer> IDs = memberships.get(user);
+			recovered.put(user, IDs.toArray(new Integer[IDs.size()]));
+		}
+		registry.setLog(log);
+		logln(String.format("Restored %d conversations, %d changes replayed, in %d ms",
+				conversationIDs.size(), count, (System.nanoTime() - time) / 1000000));
+		
+		if (config.snapshot_interval > 0) {
+			snapshots = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "state-snapshot");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			snapshots.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						snapshot();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}, config.snapshot_interval, config.snapshot_interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the conversations and friends, then drops the changes logged before it began
+	 * The server keeps running while the snapshot is written
+	 * @return the number of conversations in the snapshot, or -1 if no state log is kept
+	 * @throws IOException
+	 */
+	public int snapshot() throws IOException {
+		if (log == null)
+			return -1;
+		synchronized (snapshot) {	// One snapshot at a time
+			long time = System.nanoTime();
+			log.roll();
+			friendGraph.save();
+			int count = StateSnapshot.write(snapshot, registry);
+			log.dropPrevious();
+			logln(String.format("Snapshot of %d conversations in %d ms", count, (System.nanoTime() - time) / 1000000));
+			return count;
+		}
+	}
+	
+	/**
+	 * Gives a user who logged in the conversations it was in before the server restarted
+	 * @param connection: the connection the user logged in on
+	 */
+	public void rejoinConversations(ServerConnection connection) {
+		String user = connection.getUser();
+		if (user == null || recovered.isEmpty()) return;
+		Integer[] IDs = recovered.remove(user);
+		if (IDs == null) return;
+		for (Integer ID:IDs) {
+			String[] members = registry.members(ID);
+			if (members == null || !Arrays.asList(members).contains(user)) continue;
+			// The lines said before the restart are sent along, the client starts the conversation empty
+			if (connection.addConversation(ID, members))
+				pushHistory(ID, connection);
+		}
+	}
+	
+	/**
+	 * Sends a member the latest page of a conversation's history, if it has any lines
+	 * @param ID: the conversation
+	 * @param connection: the member's connection
+	 */
+	private void pushHistory(int ID, ServerConnection connection) {
+		Message page = historyPage(ID, Long.MAX_VALUE);
+		if (page.Batch.length > 0) {
+			try {
+				connection.pushMessage(page);
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	private void saveFriends() {
+		try {
+			friendGraph.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Opens the mailbox if undelivered messages are kept
+	 * @throws IOException
+	 */
+	private void openMailbox() throws IOException {
+		if (!config.mailbox_enabled)
+			return;
+		File directory = config.mailbox_dir == null ? null : new File(config.mailbox_dir);
+		mailbox = new Mailbox(directory, Mailbox.SEGMENT_BYTES, Mailbox.MAX_SEGMENTS, config.mailbox_quota, config.mailbox_expiry);
 	}
 
 	/**
@@ -59,14 +358,49 @@ public class Server extends Thread {
      */
     public static void main(String[] args) {
     	logln("Starting Server...");
+    	ServerConfig config = new ServerConfig();
     	for (String arg:args) {
     		if (arg.equals("--debug"))
     			debug_mode = true;
     		else if (arg.equals("--all"))
     			all_users_mode = true;
+    		else if (arg.equals("--binary"))
+    			config.binary_frames = true;
+    		else if (arg.equals("--nio"))
+    			config.mode = Mode.NIO;
+    		else if (arg.equals("--virtual"))
+    			config.mode = Mode.VIRTUAL_THREADS;
+    		else if (arg.startsWith("--loops="))
+    			config.event_loops = Integer.parseInt(arg.substring("--loops=".length()));
+    		else if (arg.startsWith("--presence="))
+    			config.presence_window = Long.parseLong(arg.substring("--presence=".length()));
+    		else if (arg.startsWith("--typing="))
+    			config.typing_interval = Long.parseLong(arg.substring("--typing=".length()));
+    		else if (arg.startsWith("--history="))
+    			config.history_dir = arg.substring("--history=".length());
+    		else if (arg.startsWith("--page="))
+    			config.history_page = Integer.parseInt(arg.substring("--page=".length()));
+    		else if (arg.startsWith("--friends="))
+    			config.friends_file = arg.substring("--friends=".length());
+    		else if (arg.startsWith("--cache="))
+    			config.cache_bytes = Long.parseLong(arg.substring("--cache=".length()));
+    		else if (arg.equals("--mailbox=off"))
+    			config.mailbox_enabled = false;
+    		else if (arg.startsWith("--mailbox="))
+    			config.mailbox_dir = arg.substring("--mailbox=".length());
+    		else if (arg.startsWith("--quota="))
+    			config.mailbox_quota = Integer.parseInt(arg.substring("--quota=".length()));
+    		else if (arg.startsWith("--expiry="))
+    			config.mailbox_expiry = Long.parseLong(arg.substring("--expiry=".length()));
+    		else if (arg.startsWith("--wal="))
+    			config.state_log = arg.substring("--wal=".length());
+    		else if (arg.startsWith("--durability="))
+    			config.durability = StateLog.Durability.valueOf(arg.substring("--durability=".length()).toUpperCase().replace('-', '_'));
+    		else if (arg.startsWith("--snapshot="))
+    			config.snapshot_interval = Long.parseLong(arg.substring("--snapshot=".length()));
     	}
     	try {
-			server = new Server(PORT);
+			server = new Server(PORT, config);
 			server.start();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -91,45 +425,111 @@ public class Server extends Thread {
     
     /**
      * Listens on the specified port for connection requests
-     * Spins off new connections in their own threads
+     * Spins off new connections in their own platform or virtual threads,
+     * or hands them to the event loops when running in nio mode
      * @throws IOException
      */
 	private void serve() throws IOException {
     	logln("Server Started");
+    	if (mode == Mode.NIO) {
+    		logln(String.format("Serving from %d event loops", config.event_loops));
+    		nioServer = new NioServer(this, serverChannel, config.event_loops);
+    		nioServer.serve();
+    		return;
+    	}
+    	if (mode == Mode.VIRTUAL_THREADS && !VirtualThreads.available()) {
+    		System.err.println("Virtual threads are not supported by this JVM. Using platform threads");
+    		// Platform threads are limited to max_connections, as in thread mode
+    		mode = Mode.THREADS;
+    	}
         while (true) {
             // Block until a client connects
             Socket socket = serverSocket.accept();
-            if (num_connections >= max_connections) {
+            Integer ID = newConnectionID();
+            if (ID == null) {
             	// Too many connections. Close connection
             	socket.close();
-            	logln("Max connections reached");
             	continue;
             }
             
+            // Messages are written in several small pieces, don't let Nagle hold them back
+            socket.setTcpNoDelay(true);
+            
             // Start a new connection with an unique ID
-            int ID = unusedID();
             ServerConnection connection = new ServerConnection(socket, ID, this);
-            synchronized (connections) { connections.put(ID, connection); }
-            connection.start();
-            synchronized (num_connections) { num_connections++; }
-            log(String.format("New Connection ID %d\n", ID));
+            addConnection(ID, connection);
+            newThread(connection).start();
         }
     }
 	
 	/**
-	 * Looks for an ID that is not being used in the range of acceptable ID's
-	 * Acceptable ID's range from 0 to max_connections
-	 * @return an unused ID
+	 * Creates an unstarted thread of the kind the connection mode uses
+	 * @param task
+	 * @return a virtual thread in virtual thread mode, otherwise a platform thread
 	 */
-	private int unusedID() {
-		int res;
-		synchronized (connections) {
-			// Look for first unused ID in the connections HashMap
-			for (res = 0; res < max_connections; res++) {
-				if (!connections.containsKey(res)) break;
-			}
+	Thread newThread(Runnable task) {
+		if (mode == Mode.VIRTUAL_THREADS)
+			return VirtualThreads.newThread(task);
+		return new Thread(task);
+	}
+	
+	/**
+	 * Reserves a slot for a newly accepted connection and picks it's ID
+	 * Must only be called from the accepting thread
+	 * @return an unused ID, or null if the maximum number of connections has been reached
+	 */
+	Integer newConnectionID() {
+		if (num_connections.get() >= maxConnections()) {
+			logln("Max connections reached");
+			return null;
+		}
+		int ID = connectionIDs.allocate();
+		if (ID < 0) {
+			logln("Max connections reached");
+			return null;
 		}
-		return res;
+		num_connections.incrementAndGet();
+		return ID;
+	}
+	
+	/**
+	 * Frees the ID and slot of a connection that has been removed
+	 * @param ID
+	 */
+	private void releaseConnection(int ID) {
+		connectionIDs.release(ID);
+		num_connections.decrementAndGet();
+	}
+	
+	/**
+	 * @return the maximum number of connections for the connection mode
+	 */
+	private int maxConnections() {
+		return mode == Mode.THREADS ? max_connections : max_light_connections;
+	}
+	
+	/**
+	 * Opens a connection whose messages are delivered by the caller through handleMessage
+	 * Must only be called from the accepting thread
+	 * @param transport: the transport the connection sends through
+	 * @return the registered connection, or null if the maximum number of connections has been reached
+	 */
+	public ServerConnection openConnection(ConnectionTransport transport) {
+		Integer ID = newConnectionID();
+		if (ID == null) return null;
+		ServerConnection connection = new ServerConnection(transport, ID, this);
+		addConnection(ID, connection);
+		return connection;
+	}
+	
+	/**
+	 * Registers a new connection under the ID returned by newConnectionID
+	 * @param ID
+	 * @param connection
+	 */
+	void addConnection(int ID, ServerConnection connection) {
+		registry.addConnection(connection);
+		log(String.format("New Connection ID %d\n", ID));
 	}
 	
 	/**
@@ -140,13 +540,8 @@ public class Server extends Thread {
 	 * Returns true if the log in was successful, otherwise false
 	 */
 	public boolean login(int ID, String username) {
-		synchronized (usernames) {
-			if (usernames.containsValue(ID)) return false;	// ID is already associated with username
-			if (usernames.containsKey(username)) {
-				return usernames.get(username).equals(ID); 	// Returns false if username is registered with different ID
-			}
-			usernames.put(username, ID);	// Register user
-		}
+		if (!registry.login(ID, username))
+			return false;	// Connection or username is already registered to someone else
 		logln(String.format("Connection ID %d logged in as " + username, ID));
 		return true;
 	}
@@ -159,12 +554,13 @@ public class Server extends Thread {
 	public void logoff(ServerConnection user) {
 		String username = user.getUser();
 		int ID = user.getID();
-		synchronized (usernames) {
-			usernames.remove(username);
-		}
-		synchronized (connections) {
-			connections.remove(ID);
-		}
+		if (username != null)
+			friendIndex.removeFriends(username, user.getFriends());
+		if (presence != null)
+			presence.remove(user);
+		registry.logoff(username, user);
+		if (registry.removeConnection(ID) != null)
+			releaseConnection(ID);
 		logln(username + " logged off");
 	}
 	
@@ -174,18 +570,14 @@ public class Server extends Thread {
 	 * @param username
 	 */
 	public void logoff(String username) {
-		Integer ID = null;
-		synchronized (usernames) {
-			if (usernames.containsKey(username)) {
-				ID = usernames.get(username);
-				usernames.remove(ID);
-			}
-		}
-		if (ID == null)
+		ServerConnection connection = registry.logoff(username);
+		if (connection == null)
 			return;
-		synchronized (connections) {
-			connections.remove(ID);
-		}
+		friendIndex.removeFriends(username, connection.getFriends());
+		if (presence != null)
+			presence.remove(connection);
+		if (registry.removeConnection(connection.getID()) != null)
+			releaseConnection(connection.getID());
 		logln(username + " logged off");
 	}
 	
@@ -195,9 +587,7 @@ public class Server extends Thread {
 	 * @return returns true if the user is logged on
 	 */
 	public boolean loggedOn(String username) {
-		synchronized (usernames) {
-			return usernames.containsKey(username);
-		}
+		return registry.loggedOn(username);
 	}
 	
 	/**
@@ -207,23 +597,16 @@ public class Server extends Thread {
 	 * Returns the ID of the newly created conversation, or NULL if a conversation could not be created
 	 */
 	public Integer startConversation(String username) {
-		int ID;
-		synchronized (conversations) {
-			// Search for first unused conversation ID
-			// Acceptable range is 0 to max_conversations
-			logln(conversations.toString());
-
-			for (ID = 0; ID < max_conversations; ID++)
-				if (!conversations.containsKey(ID)) break;
-			if (ID == max_conversations) {
-				logln("Max conversations reached");
-				return null;
-			}
-			// Create new recipient list with username
-			HashSet<String> conversation = new HashSet<String>();
-			conversation.add(username);
-			conversations.put(ID, conversation);
+		// Take an unused conversation ID. Acceptable range is 0 to max_conversations,
+		// tagged with a generation so that a recycled ID never matches an old conversation
+		int ID = conversationIDs.allocate();
+		if (ID < 0) {
+			logln("Max conversations reached");
+			return null;
 		}
+		
+		// Create new recipient list with username
+		registry.openConversation(ID, username);
 		logln(String.format("New conversation ID %d", ID));
 		return ID;
 	}
@@ -234,18 +617,20 @@ public class Server extends Thread {
 	 * @param username: user to be removed
 	 */
 	public void leaveConversation(int ID, String username) {
-		HashSet<String> conversation;
-		synchronized (conversations) { conversation = conversations.get(ID); }
-		if (conversation == null) return;	// Conversation does not exist
-		synchronized (conversation)	 {
-			if (conversation.contains(username))
-				conversation.remove(username);
-			logln(String.format("%s has left conversation ID %d", username, ID));
-			// Destroy the conversation when it's recipient list is empty
-			if (conversation.size() == 0) {
-				synchronized (conversations) { conversations.remove(ID); }
-				logln(String.format("Conversation ID %d closed", ID));
-			}
+		boolean closed = registry.removeMember(ID, username);
+		logln(String.format("%s has left conversation ID %d", username, ID));
+		if (typing != null)
+			typing.remove(ID, username);
+		// The conversation is destroyed when it's recipient list is empty
+		if (closed) {
+			if (typing != null)
+				typing.removeConversation(ID);
+			if (history != null)
+				history.remove(ID);
+			if (recent != null)
+				recent.remove(ID);
+			conversationIDs.release(ID);
+			logln(String.format("Conversation ID %d closed", ID));
 		}
 	}
 	
@@ -257,43 +642,24 @@ public class Server extends Thread {
 	 */
 	public boolean addToConversation(int ID, String username) {
 		
-		// Get conversation
-		HashSet<String> conversation;
-		synchronized (conversations) {
-			conversation = conversations.get(ID);
-			if (conversation == null) return false;	// Conversation does not exist
-		}
-		
 		// Add user to conversation
-		String members[];
-		synchronized(conversation) {
-			members = conversation.toArray(new String[conversation.size()]);
-			conversation.add(username);
-			logln(String.format(username + " has been added conversation ID %d", ID));
-		}
+		String members[] = registry.addMember(ID, username);
+		if (members == null) return false;	// Conversation does not exist
+		logln(String.format(username + " has been added conversation ID %d", ID));
 			
 		// Add conversation ID to connection
-		Integer id;
-		synchronized (usernames) { id = usernames.get(username); };
-		ServerConnection user;
-		if (id != null)
-		{
-			// Look up the connection
-			synchronized (connections) { user = connections.get(id); }
-			if (user != null) {
-				boolean success;
-				synchronized (user) { success = user.addConversation(ID, members); }
-				if (success) {
-					Message message = new Message();
-					message.setID(ID);
-					message.setType(Type.Add);
-					message.setCode(601);
-					message.setUser(username);
-					pushMessage(message, members);
-				}
-			}
+		ServerConnection user = registry.lookup(username);
+		if (user != null && user.addConversation(ID, members)) {
+			// The new member gets the latest lines said before they joined
+			pushHistory(ID, user);
+			
+			Message message = new Message();
+			message.setID(ID);
+			message.setType(Type.Add);
+			message.setCode(601);
+			message.setUser(username);
+			pushMessage(message, members);
 		}
-		
 
 		return true;
 	}
@@ -303,13 +669,10 @@ public class Server extends Thread {
 	 * @param ID, the specified conversation
 	 * @return the members of the conversation
 	 */
-	@SuppressWarnings("unchecked")
 	public HashSet<String> getConversationMembers(Integer ID) {
-		synchronized (conversations) {
-			HashSet<String> conversation = conversations.get(ID);
-			if (conversation == null) return null;	// Conversation does not exist
-			return (HashSet<String>) conversation.clone();
-		}
+		String[] members = registry.members(ID);
+		if (members == null) return null;	// Conversation does not exist
+		return new HashSet<String>(Arrays.asList(members));
 	}
     
 	/**
@@ -318,11 +681,8 @@ public class Server extends Thread {
 	 */
     public void connectionClosed(int ID) {
         logln(String.format("Connection ID %d closed", ID));
-		synchronized (connections) { connections.remove(ID); }
-		synchronized (usernames) {
-			if (usernames.containsKey(ID)) usernames.remove(ID);
-		}
-		synchronized (num_connections) { num_connections--; }
+		if (registry.removeConnection(ID) != null)
+			releaseConnection(ID);
     }
     
     /**
@@ -339,48 +699,40 @@ public class Server extends Thread {
     	ArrayList<String> failed = new ArrayList<String>();	// A list of users who did not receive the message
 		
     	// Look up the conversation
-    	HashSet<String> conversation;
-    	synchronized (conversations) {
-	    	if (!conversations.containsKey(ID)) {
-	    		logln(String.format("Conversation ID %d does not exist", ID));
-	    		return null;
-	    	}
-	    	conversation = conversations.get(ID);
-		}
+    	String[] members = registry.members(ID);
+    	if (members == null) {
+    		logln(String.format("Conversation ID %d does not exist", ID));
+    		return null;
+    	}
+    	
+    	// Every member gets the same message, so it is only built and encoded once
+    	Broadcast broadcast = new Broadcast(ServerConnection.textMessage(ID, user, text));
+    	// The recent lines are kept in memory as well, to serve history pages without reading the store
+    	if (history != null) {
+    		long sequence = history.append(ID, broadcast.getMessage());	// Written in the background
+    		if (recent != null)
+    			recent.add(ID, sequence, broadcast.getMessage());
+    	}
+    	else if (recent != null) {
+    		recent.add(ID, registry.nextLine(ID), broadcast.getMessage());
+    	}
     	
     	// Loop through each person in the conversation
-		synchronized (conversation) {
-			for (String contact:conversation) {
-				if (contact.equals(user)) continue;	// Do not send message to the original sender
-				int user_ID;
-				synchronized (usernames) {
-					if (!usernames.containsKey(contact)) {
-						// Username not registered
-						failed.add(contact);
-						continue;
-					}
-					user_ID = usernames.get(contact); 
-				}
-				ServerConnection receiver;
-				synchronized (connections) { 
-					if (!connections.containsKey(user_ID)) {
-						// Connection is missing
-						logoff(contact); // Log off the user
-						failed.add(contact);
-						continue;
-					}
-					receiver = connections.get(user_ID); 
-				}
-				// Attempt to send the message
-				synchronized (receiver) { 
-					try {
-						receiver.receiveMessage(ID, user, text);
-						logln(String.format("Message sent from %s to %s through ID %d", user, contact, ID));
-					} catch (IOException e) {
-						// Message send failed
-						failed.add(contact);
-					} 
-				}
+		for (String contact:members) {
+			if (contact.equals(user)) continue;	// Do not send message to the original sender
+			ServerConnection receiver = registry.lookup(contact);
+			if (receiver == null) {
+				// Username not registered
+				failed.add(contact);
+				continue;
+			}
+			// Attempt to send the message
+			try {
+				receiver.pushMessage(broadcast);
+				logln(String.format("Message sent from %s to %s through ID %d", user, contact, ID));
+			} catch (IOException e) {
+				// Message send failed
+				failed.add(contact);
 			}
 		}
 		
@@ -389,6 +741,12 @@ public class Server extends Thread {
 		else
 			logln("Failed to deliver message to the following recipients: " + failed);
 		
+		// Whoever was missed gets the message when they log in again
+		if (mailbox != null) {
+			for (String contact:failed)
+				mailbox.deposit(contact, broadcast);
+		}
+		
     	return failed;
     }
     
@@ -398,96 +756,119 @@ public class Server extends Thread {
      * @param friend: the user to be added
      */
     public void addFriend(String user, String friend) {
-    	Integer ID = null;
-    	
-    	// Look up user ID
-    	synchronized(usernames) {
-    		if (usernames.containsKey(user))
-    			ID = usernames.get(user);
-    	}
-    	
-    	if (ID == null) return;
-    	
     	// Look up connection
-    	ServerConnection connection = null;
-    	synchronized(connections) {
-    		if (connections.containsKey(ID))
-    			connection = connections.get(ID);
-    	}
+    	ServerConnection connection = registry.lookup(user);
     	
     	// Add friend
-    	synchronized(connection) { connection.addFriend(friend); }
+    	if (connection != null)
+    		connection.addFriend(friend);
+    }
+    
+    /**
+     * Records that a logged in user has added a friend
+     * The friend is kept in the friend graph after the user logs off
+     * @param user
+     * @param friend
+     */
+    public void indexFriend(String user, String friend) {
+    	friendIndex.addFriend(user, friend);
+    	if (friendGraph.addFriend(user, friend) && log != null)
+    		log.append(StateLog.FRIEND, 0, user, friend);
+    }
+    
+    /**
+     * @param user
+     * @return every friend the user has added, in this or an earlier session
+     */
+    public String[] savedFriends(String user) {
+    	return friendGraph.getFriends(user);
+    }
+    
+    /**
+     * @return the friend graph
+     */
+    public FriendGraph getFriendGraph() {
+    	return friendGraph;
     }
     
     /**
      * Finds every user who has friended the specified user
+     * Only the users in the friend index are checked, unless every user is everyone's friend
      * @param user: the user to search for
      * @return a list of users who have friended the specified user
      */
     public ArrayList<String> findFriends(String user) {
     	logln("Finding friends for " + user);
     	ArrayList<String> friends = new ArrayList<String>();
-    	synchronized (connections) {
-    		// Loop through every connection
-	    	for (Integer ID:connections.keySet()) {
-	    		ServerConnection connection = connections.get(ID);
-	    		synchronized (connection) {
-	    			// Add username of connection if friend
-	    			String friend = connection.getUser();
-	    			if (friend == null) continue;
-	    			if (friend.equals(user)) continue;
-	    			if (connection.isFriend(user)) {
-	    				friends.add(friend);
-	    				logln("Found " + friend);
-	    			}
-	    		}
-	    	}
+    	if (!all_users_mode) {
+    		for (String friend:friendIndex.friendedBy(user)) {
+    			if (friend.equals(user)) continue;
+    			ServerConnection connection = registry.lookup(friend);
+    			if (connection != null && connection.isFriend(user)) {
+    				friends.add(friend);
+    				logln("Found " + friend);
+    			}
+    			else {
+    				// Left behind by a friend who was added while logging off
+    				friendIndex.removeFriend(friend, user);
+    			}
+    		}
+    		return friends;
+    	}
+    	
+    	// Loop through every connection
+    	for (ServerConnection connection:registry.connections()) {
+    		// Add username of connection if friend
+    		String friend = connection.getUser();
+    		if (friend == null) continue;
+    		if (friend.equals(user)) continue;
+    		if (connection.isFriend(user)) {
+    			friends.add(friend);
+    			logln("Found " + friend);
+    		}
     	}
     	return friends;
     }
     
     /**
      * Pushes a message to a list of users
-     * @param message: The message to be pushed
+     * @param message: The message to be pushed. It is shared by the recipients and must not be changed afterwards
      * @param users: The list of users to forward the message to
      * @return A list of users who failed to receive the message
      */
     public ArrayList<String> pushMessage(Message message, String[] users) {
-    	String log = "Push message to { ";
-    	for (String user:users) {
-    		log += user + ", ";
+    	return pushMessage(new Broadcast(message), users);	// Encoded once for every recipient
+    }
+    
+    /**
+     * Pushes a message that may already be shared to a list of users
+     * @param broadcast: The message to be pushed
+     * @param users: The list of users to forward the message to
+     * @return A list of users who failed to receive the message
+     */
+    public ArrayList<String> pushMessage(Broadcast broadcast, String[] users) {
+    	if (debug_mode) {
+	    	String log = "Push message to { ";
+	    	for (String user:users) {
+	    		log += user + ", ";
+	    	}
+	    	logln(log + "}");
     	}
-    	logln(log + "}");
     	
     	ArrayList<String> failed = new ArrayList<String>();	// A list of failed recipients
     	
     	// Loop through every user in the list
     	for (String user:users) {
-    		Integer ID = null;
-    		
-    		// Look up the user ID
-        	synchronized(usernames) {
-        		if (usernames.containsKey(user))
-        			ID = usernames.get(user);
-        	}
-        	
-        	if (ID == null) continue;
-        	
-        	// Lookup the connection
-        	ServerConnection connection = null;
-        	synchronized(connections) {
-        		if (connections.containsKey(ID))
-        			connection = connections.get(ID);
-        	}
+    		// Lookup the connection
+        	ServerConnection connection = registry.lookup(user);
+        	if (connection == null) continue;
         	
         	// Push the message
-        	synchronized(connection) { 
-        		try {
-					connection.pushMessage(message);
-				} catch (IOException e) {
-					failed.add(user);
-				} 
-        	}
+        	try {
+				connection.pushMessage(broadcast);
+			} catch (IOException e) {
+				failed.add(user);
+			}
     	}
     	return failed;
     }
@@ -498,23 +879,216 @@ public class Server extends Thread {
 			serverSocket.close();
 		} catch (IOException e) {
 		}
+    	if (nioServer != null)
+    		nioServer.close();
+    	timer.shutdownNow();
+    	if (history != null)
+    		history.close();
+    	if (mailbox != null)
+    		mailbox.close();
+    	saveFriends();
+    	if (snapshots != null)
+    		snapshots.shutdownNow();
+    	if (log != null)
+    		log.close();
+    	// The channel is only released once the accepting thread leaves accept, so let it unwind first
+    	if (Thread.currentThread() != this) {
+    		try {
+    			this.join(1000);
+    		} catch (InterruptedException e) {
+    		}
+    	}
     	this.stop();
     }
     
+    /**
+     * Pushes a change of a user's presence to a list of users
+     * Changes that come in quick succession are coalesced by the PresenceAggregator
+     * @param user: the user whose presence changed
+     * @param online: true if the user is now online
+     * @param message: the message telling about the change. It is shared by the recipients and must not be changed afterwards
+     * @param users: the users to tell
+     */
+    public void pushPresence(String user, boolean online, Message message, String[] users) {
+    	if (presence == null) {
+    		pushMessage(message, users);
+    		return;
+    	}
+    	Broadcast broadcast = new Broadcast(message);
+    	for (String recipient:users) {
+    		ServerConnection connection = registry.lookup(recipient);
+    		if (connection != null)
+    			presence.push(connection, user, online, broadcast);
+    	}
+    }
+    
+    /**
+     * Pushes a change of a user's presence to a single connection
+     * @param recipient: the connection to tell
+     * @param user: the user whose presence changed
+     * @param online: true if the user is now online
+     * @param message: the message telling about the change
+     */
+    public void pushPresence(ServerConnection recipient, String user, boolean online, Message message) {
+    	Broadcast broadcast = new Broadcast(message);
+    	if (presence != null) {
+    		presence.push(recipient, user, online, broadcast);
+    		return;
+    	}
+    	try {
+    		recipient.pushMessage(broadcast);
+    	} catch (IOException e) {
+    	}
+    }
+    
     /**
      * Pushes a message to a conversation
      */
     public ArrayList<String> pushMessageToConversation(Integer ID, Message message) {
-    	String[] conversation;
-    	
+    	return pushMessageToConversation(ID, new Broadcast(message));
+    }
+    
+    /**
+     * Pushes a message that may already be shared to a conversation
+     */
+    public ArrayList<String> pushMessageToConversation(Integer ID, Broadcast broadcast) {
     	// Look up members of conversation
-    	synchronized (conversations) {
-    		if (!conversations.containsKey(ID))
-    			return null;
-    		HashSet<String> temp = conversations.get(ID);
-    		conversation = temp.toArray(new String[temp.size()]);
+    	String[] conversation = registry.members(ID);
+    	if (conversation == null)
+    		return null;
+    	return pushMessage(broadcast, conversation);
+    }
+    
+    /**
+     * Pushes a typing event (702, 703 or 705) to a conversation
+     * Events of a user that come in quick succession are throttled by the TypingAggregator
+     * @param ID: the conversation
+     * @param message: the event, with it's user set. It must not be changed afterwards
+     */
+    public void pushTyping(int ID, Message message) {
+    	if (typing == null)
+    		pushMessageToConversation(ID, message);
+    	else
+    		typing.push(ID, message);
+    }
+    
+    /**
+     * @return the typing event throttle and it's counters, or null if typing events are not throttled
+     */
+    public TypingAggregator getTyping() {
+    	return typing;
+    }
+    
+    /**
+     * @return the conversation history, or null if none is kept
+     */
+    public HistoryStore getHistory() {
+    	return history;
+    }
+    
+    /**
+     * Reads a page of a conversation's history, from the recent lines in memory if they are all there
+     * Without a history store, only the lines in memory are read
+     * @param ID: the conversation
+     * @param before: only lines with a lower sequence number are read, Long.MAX_VALUE reads the latest lines
+     * @return the page, a Message of code HISTORY_PAGE holding the lines oldest first in it's Batch,
+     * with the sequence number of the oldest line as it's status. A page with no lines has no status
+     */
+    public Message historyPage(int ID, long before) {
+    	Message page = new Message();
+    	page.setType(Type.Message);
+    	page.setCode(HISTORY_PAGE);
+    	page.setID(ID);
+    	page.Batch = new Message[0];
+    	if ((history == null && recent == null) || config.history_page <= 0)
+    		return page;
+    	int count = Math.min(config.history_page, MAX_HISTORY_PAGE);
+    	ArrayList<HistoryStore.Record> records = null;
+    	if (recent != null)
+    		records = recent.read(ID, before, count, history == null);
+    	if (records == null) {
+    		try {
+    			records = history.read(ID, before, count);
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    			return page;
+    		}
+    		// Lines read from the store are kept, so the next page of this conversation is served from memory
+    		if (recent != null) {
+    			for (HistoryStore.Record record:records)
+    				recent.add(ID, record.sequence, record.message);
+    		}
+    	}
+    	
+    	// The newest lines are kept if the page would not fit in a frame
+    	int first = records.size();
+    	int bytes = 0;
+    	while (first > 0) {
+    		Message line = records.get(first - 1).message;
+    		bytes += line.getStatus().length() * 3 + line.getUser().length() * 3 + 16;
+    		if (bytes > MessageFrames.MAX_FRAME_LENGTH / 2)
+    			break;
+    		first--;
+    	}
+    	page.Batch = new Message[records.size() - first];
+    	for (int i = first; i < records.size(); i++)
+    		page.Batch[i - first] = records.get(i).message;
+    	if (page.Batch.length > 0)
+    		page.setStatus(Long.toString(records.get(first).sequence));
+    	return page;
+    }
+    
+    /**
+     * @return the recent lines of conversations kept in memory and their counters, or null if none are kept
+     */
+    public RecentCache getRecent() {
+    	return recent;
+    }
+    
+    /**
+     * Pushes the messages kept for a user while they were away, in as few frames as possible
+     * If a push fails, the messages that were not pushed are kept again
+     * @param connection: the connection the user just logged in on
+     */
+    public void deliverMail(ServerConnection connection) {
+    	if (mailbox == null)
+    		return;
+    	String username = connection.getUser();
+    	ArrayList<Message> frames = mailbox.drain(username);
+    	for (int i = 0; i < frames.size(); i++) {
+    		try {
+    			connection.pushMessage(frames.get(i));
+    		} catch (IOException e) {
+    			for (Message frame:frames.subList(i, frames.size()))
+    				for (Message message:frame.Batch)
+    					mailbox.deposit(username, new Broadcast(message));
+    			return;
+    		}
     	}
-    	return pushMessage(message, conversation);
+    	if (!frames.isEmpty())
+    		logln(String.format("Delivered %d mailbox frames to %s", frames.size(), username));
+    }
+    
+    /**
+     * @return the log of changes to conversations and friends, or null if none is kept
+     */
+    public StateLog getStateLog() {
+    	return log;
+    }
+    
+    /**
+     * @return the mailbox of undelivered messages, or null if they are dropped
+     */
+    public Mailbox getMailbox() {
+    	return mailbox;
+    }
+    
+    /**
+     * Getter for binary_frames
+     * @return true if clients are sent MessageCodec frames
+     */
+    public boolean binaryFrames() {
+    	return config.binary_frames;
     }
     
     /**
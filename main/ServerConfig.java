@@ -0,0 +1,138 @@
+package main;
+
+/**
+ * How a server is set up: how connections are run and talked to, how presence and typing are
+ * pushed, and what is kept of history, friends, undelivered messages and the server's state.
+ * A server is handed it's config when it is created and keeps reading it while it runs, so a
+ * config is not changed once a server has it. Every setting starts at it's default.
+ * @author Charles (cjfman)
+ *
+ */
+public class ServerConfig {
+	Server.Mode mode = Server.Mode.THREADS;
+	boolean binary_frames = false;	// Talk in MessageCodec frames instead of serialized Messages
+	int event_loops = Runtime.getRuntime().availableProcessors();
+	long presence_window = 100;		// Milliseconds presence changes are collected for, 0 pushes every change on it's own
+	long typing_interval = 250;		// Least milliseconds between two typing events of a user, 0 pushes every event
+	String history_dir = null;		// Where conversation history is kept, null keeps none
+	int history_page = 50;			// Lines in a page of history, the last page is sent to members who join
+	String friends_file = null;		// Where the friend graph is saved, null keeps it in memory only
+	long cache_bytes = RecentCache.DEFAULT_BYTES;	// Memory for the recent lines of conversations, 0 keeps none
+	boolean mailbox_enabled = true;	// Keep undelivered messages until their users log in
+	String mailbox_dir = null;		// Where the mailbox segments are mapped, null keeps them in direct buffers
+	int mailbox_quota = Mailbox.DEFAULT_QUOTA;		// Most messages kept for a user
+	long mailbox_expiry = Mailbox.DEFAULT_EXPIRY;	// Milliseconds a message is kept
+	String state_log = null;		// Where changes to conversations and friends are logged, null logs none
+	StateLog.Durability durability = StateLog.Durability.BATCHED;	// When logged changes are forced to disk, see ServerConnection.handleMessage
+	long snapshot_interval = 60000;	// Milliseconds between snapshots of the state, 0 takes none
+
+	/**
+	 * Sets how connections are run
+	 * @param mode
+	 */
+	public void setMode(Server.Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Sets the wire format
+	 * @param binary: true to talk in MessageCodec frames, false for serialized Messages
+	 */
+	public void setBinaryFrames(boolean binary) {
+		binary_frames = binary;
+	}
+
+	/**
+	 * Sets how many event loops serve the connections in nio mode
+	 * @param loops
+	 */
+	public void setEventLoops(int loops) {
+		event_loops = loops;
+	}
+
+	/**
+	 * Sets how long presence changes are collected before they are pushed
+	 * @param window_ms: the window in milliseconds, 0 pushes every change on it's own
+	 */
+	public void setPresenceWindow(long window_ms) {
+		presence_window = window_ms;
+	}
+
+	/**
+	 * Sets the least time between two typing events of a user that are pushed
+	 * @param interval_ms: the interval in milliseconds, 0 pushes every event
+	 */
+	public void setTypingInterval(long interval_ms) {
+		typing_interval = interval_ms;
+	}
+
+	/**
+	 * Sets where conversation history is kept
+	 * @param directory: the directory of the history segments, null keeps no history
+	 */
+	public void setHistoryDirectory(String directory) {
+		history_dir = directory;
+	}
+
+	/**
+	 * Sets how many lines are in a page of history, and sent to members who join a conversation
+	 * @param lines: the lines in a page, at most Server.MAX_HISTORY_PAGE. 0 sends no history
+	 */
+	public void setHistoryPage(int lines) {
+		history_page = lines;
+	}
+
+	/**
+	 * Sets how much memory is used to keep the recent lines of conversations
+	 * @param bytes: the estimated bytes of all the lines kept, 0 keeps none
+	 */
+	public void setCacheBytes(long bytes) {
+		cache_bytes = bytes;
+	}
+
+	/**
+	 * Sets where the friend graph is saved
+	 * @param file: the file of the graph, null keeps it in memory only
+	 */
+	public void setFriendsFile(String file) {
+		friends_file = file;
+	}
+
+	/**
+	 * Sets whether undelivered messages are kept and where
+	 * @param enabled: false drops undelivered messages
+	 * @param directory: the directory the mailbox segments are mapped in, null keeps them in direct buffers
+	 */
+	public void setMailbox(boolean enabled, String directory) {
+		mailbox_enabled = enabled;
+		mailbox_dir = directory;
+	}
+
+	/**
+	 * Sets how many undelivered messages are kept for a user, and for how long
+	 * @param quota: the most messages kept for a user, the oldest are dropped first
+	 * @param expiry_ms: how long a message is kept in milliseconds
+	 */
+	public void setMailboxLimits(int quota, long expiry_ms) {
+		mailbox_quota = quota;
+		mailbox_expiry = expiry_ms;
+	}
+
+	/**
+	 * Sets where changes to conversations and friends are logged, and how durable they are
+	 * @param file: the log, which is replayed when the server starts. Null logs nothing
+	 * @param mode: when logged changes are forced to disk
+	 */
+	public void setStateLog(String file, StateLog.Durability mode) {
+		state_log = file;
+		durability = mode;
+	}
+
+	/**
+	 * Sets how often the state is snapshot when changes are logged
+	 * @param interval_ms: milliseconds between snapshots, 0 takes none
+	 */
+	public void setSnapshotInterval(long interval_ms) {
+		snapshot_interval = interval_ms;
+	}
+}
@@ -1,28 +1,30 @@
 package main;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 import main.Message.Type;
 
 /**
- * This class handles a single connection to the server as it's own thread
+ * This class handles a single connection to the server. In the thread modes it runs on it's own platform
+ * or virtual thread, in nio mode an event loop of the NioServer calls handleMessage for every message the client sends
  * @author Charles (cjfman)
  *
  */
-public class ServerConnection extends Thread {
-	private enum State {BEGIN, IDLE, LOGOFF, FRIENDS};
+public class ServerConnection implements Runnable {
+	private enum State {BEGIN, IDLE, LOGOFF, FRIENDS, CLOSED};
 	
 	private final Socket socket;
 	private final int id;
 	private final Server server;
 	private State state;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private ConnectionTransport transport;
+	private int holding = 0;				// Requests whose changes are not durable yet, messages are held while there are any. Guarded by the connection
+	private ArrayList<Object> held = null;	// The held Messages and Broadcasts, in the order they were sent
+	private boolean closing = false;		// The transport is closed once the held messages are sent
 	
 	private String user;
 	private HashSet<String> friends;
@@ -33,7 +35,7 @@ public class ServerConnection extends Thread {
 	private int max_user_length = 16;
 
 	/**
-	 * 
+	 * Creates a connection that runs on it's own thread and blocks on the socket
 	 * @param socket
 	 * @param id
 	 * @param server
@@ -48,72 +50,136 @@ public class ServerConnection extends Thread {
 		conversations = new HashSet<Integer>();
 	}
 	
+	/**
+	 * Creates a connection whose messages are delivered by the caller through handleMessage
+	 * @param transport
+	 * @param id
+	 * @param server
+	 */
+	public ServerConnection(ConnectionTransport transport, int id, Server server) {
+		this.socket = null;
+		this.transport = transport;
+		this.id = id;
+		this.server = server;
+		this.state = State.BEGIN;
+		this.all_users_mode = server.allUsersMode();
+		friends = new HashSet<String>();
+		conversations = new HashSet<Integer>();
+	}
+	
 	public void run() {
 		// Handle the client
-		// Send Welcome Message
-		Message message = new Message();
-		message.setType(Type.Response);
-		message.setCode(100);
-		message.setStatus("Welcome");
-		synchronized (socket) {
+		SocketTransport socketTransport;
+		try {
+			socketTransport = new SocketTransport(socket, server.binaryFrames());
+		} catch (IOException e) {
+			//e.printStackTrace();
+			disconnected();
 			try {
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.writeObject(message);
-		        in = new ObjectInputStream(socket.getInputStream());
-			} catch (IOException e) {
-				//e.printStackTrace();
+				socket.close();
+			} catch (IOException e1) {
 			}
-        }
+			return;
+		}
+		// Replies and pushes are written by a writer of their own, so other connections never wait on this client
+		QueuedTransport queuedTransport = new QueuedTransport(socketTransport);
+		server.newThread(queuedTransport).start();
+		transport = queuedTransport;
+		welcome();
 		
 		// Keep connection open
-		while (!socket.isClosed()) {
+		while (!transport.isClosed()) {
 	        try {
-	        	if (state == State.FRIENDS) {
-	        		findFriends();
-	        		state = State.IDLE;
-	        	}
-	            handleConnection();
-	            if (state == State.LOGOFF) logoff();
+	            handleConnection(socketTransport);
 	        } catch (IOException e1) {
         		e1.printStackTrace();
-        		try {
-            		logoff();
-	        	} catch (IOException e2) {
-	        		//e2.printStackTrace();
-	        	}
+        		disconnected();
 	        } catch (Exception e3) {
 	        	e3.printStackTrace();
 	        }
 		}
+		
+		// The writer closes the transport when it fails, which can end the loop between two reads
+		disconnected();
+	}
+	
+	/**
+	 * Sends the welcome message to a newly connected client
+	 */
+	public void welcome() {
+		Message message = new Message();
+		message.setType(Type.Response);
+		message.setCode(100);
+		message.setStatus("Welcome");
+		try {
+			send(message);
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Runs the logoff sequence after the connection to the client was lost
+	 */
+	public void disconnected() {
+		if (state == State.CLOSED) return;
+		state = State.LOGOFF;
+		try {
+			logoff();
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
 	}
 	
 	/**
 	 * This function gets called by other threads who want to send messages to this user
+	 * The message is queued for the client and the call returns without waiting for it to be written
 	 * @param ID: The conversation ID
 	 * @param user: The sender
 	 * @param text: The message
 	 * @throws IOException
 	 */
 	public void receiveMessage(int ID, String user, String text) throws IOException {
+		send(textMessage(ID, user, text));
+	}
+	
+	/**
+	 * Builds the message that relays a line of text to the members of a conversation
+	 * @param ID: The conversation ID
+	 * @param user: The sender
+	 * @param text: The message
+	 * @return the message
+	 */
+	public static Message textMessage(int ID, String user, String text) {
 		Message message = new Message();
 		message.setType(Type.Message);
 		message.setUser(user);
 		message.setID(ID);
 		message.setStatus(text);
-		synchronized (socket) {
-	        out.writeObject(message);
-		}
+		return message;
 	}
 	
 	/**
 	 * Pushes a message to the client
+	 * The message is queued for the client and the call returns without waiting for it to be written
 	 * @param message: the message to be pushed
-	 * @throws IOException
+	 * @throws IOException if the client's outbound queue is full or the connection is closed
 	 */
 	public void pushMessage(Message message) throws IOException {
-		synchronized (socket) {
-	        out.writeObject(message);
-		}
+		send(message);
+	}
+	
+	/**
+	 * Pushes a message that is sent to other clients as well
+	 * The message is queued for the client and the call returns without waiting for it to be written
+	 * @param broadcast: the shared message
+	 * @throws IOException if the client's outbound queue is full or the connection is closed
+	 */
+	public void pushMessage(Broadcast broadcast) throws IOException {
+		if (transport == null)
+			throw new IOException("Connection not open");
+		if (hold(broadcast)) return;
+		transport.send(broadcast);
 	}
 	
 	/**
@@ -122,17 +188,47 @@ public class ServerConnection extends Thread {
 	 * @param username: the friend to be added
 	 */
 	public void addFriend(String username) {
-		synchronized(friends) { friends.add(username); }
+		indexFriend(username);
+		try {
+			send(friendMessage(username));
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Builds the message that tells the client an online user was added to it's friends list
+	 * @param username: the friend
+	 * @return the message
+	 */
+	private Message friendMessage(String username) {
 		Message message = new Message();
 		message.setType(Type.Friends);
 		message.setCode(305);
 		message.setUser(username);
-		synchronized (socket) {
-	        try {
-				out.writeObject(message);
-			} catch (IOException e) {
-				//e.printStackTrace();
-			}
+		return message;
+	}
+	
+	/**
+	 * Adds a friend to the friends list and to the server's friend index
+	 * @param friend
+	 * @return true if the friend was not on the list yet
+	 */
+	private boolean indexFriend(String friend) {
+		synchronized (friends) {
+			if (!friends.add(friend)) return false;
+		}
+		if (user != null && state != State.CLOSED)
+			server.indexFriend(user, friend);
+		return true;
+	}
+	
+	/**
+	 * @return a copy of this user's friends list
+	 */
+	public String[] getFriends() {
+		synchronized (friends) {
+			return friends.toArray(new String[friends.size()]);
 		}
 	}
 	
@@ -162,12 +258,10 @@ public class ServerConnection extends Thread {
 		message.setType(Type.Start);
 		message.setFriends(members);
 		message.setCode(602);
-		synchronized (socket) {
-	        try {
-				out.writeObject(message);
-			} catch (IOException e) {
-				return false;
-			}
+		try {
+			send(message);
+		} catch (IOException e) {
+			return false;
 		}
 		return true;
 	}
@@ -200,25 +294,137 @@ public class ServerConnection extends Thread {
 	}
 	
 	/**
-	 * Handles incoming messages from the client
+	 * Reads the next message from the client and handles it
+	 * @param socketTransport: the transport of this connection's socket
 	 * @throws IOException
 	 */
-	private void handleConnection() throws IOException {		
+	private void handleConnection(SocketTransport socketTransport) throws IOException {		
         Message message = null;
          
         // Try and read message
         try {
-			message = (Message) in.readObject();
+			message = socketTransport.read();
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
 			return;
 		} catch (Exception e2) {
 			state = State.LOGOFF;
-			return;
 		}
         
-        if (message == null) return;
-                
+        handleMessage(message);
+	}
+	
+	/**
+	 * Handles a message from the client and sends back the response
+	 * Then runs the friend lookup, rejoins conversations kept over a restart and delivers the mailbox after a log in, or the log off sequence if one was requested
+	 *
+	 * When the server logs it's state, everything sent to the client while the request is handled
+	 * is held until the changes it made are durable, so the client never hears of a change that
+	 * could be lost. While an earlier request still waits, the messages of both are held until
+	 * the changes of both are durable. The thread handling the request does not wait for that:
+	 * the log sends the held messages once it has forced the changes, so an nio event loop is
+	 * never held up by a force, and a request costs at most one wait for the group commit
+	 * however many changes it made.
+	 * @param message: the received message, or null if nothing was received
+	 * @throws IOException
+	 */
+	public void handleMessage(Message message) throws IOException {
+		StateLog log = server.getStateLog();
+		long from = 0;
+		if (log != null) {
+			from = log.ticket();
+			synchronized (this) {
+				holding++;
+			}
+		}
+		try {
+			if (message != null)
+				respond(message);
+			if (state == State.FRIENDS) {
+				findFriends();
+				server.rejoinConversations(this);
+				server.deliverMail(this);
+				state = State.IDLE;
+			}
+			if (state == State.LOGOFF) logoff();
+		} finally {
+			if (log != null) {
+				long to = log.ticket();
+				if (to == from) {
+					release(true);
+				}
+				else {
+					log.whenDurable(from, to, new StateLog.Callback() {
+						public void done(boolean durable) {
+							release(durable);
+						}
+					});
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Holds a message while the changes of a request are not durable yet
+	 * @param message: a Message or Broadcast
+	 * @return true if the message was held
+	 */
+	private synchronized boolean hold(Object message) {
+		if (holding == 0) return false;
+		if (held == null) held = new ArrayList<Object>();
+		held.add(message);
+		return true;
+	}
+	
+	/**
+	 * Called once the changes of a request were made durable
+	 * The held messages are sent when no other request is waiting for it's changes, as messages
+	 * held for a later request may follow from an earlier one
+	 * @param durable: false if the changes could not be made durable
+	 */
+	private synchronized void release(boolean durable) {
+		if (!durable)
+			System.err.println("Changes made by " + user + " could not be written to the state log");
+		if (--holding > 0) return;
+		if (held != null) {
+			for (Object message:held) {
+				try {
+					if (message instanceof Broadcast)
+						transport.send((Broadcast) message);
+					else
+						transport.send((Message) message);
+				} catch (IOException e) {
+					// The client is gone, the rest can't be sent either
+					break;
+				}
+			}
+			held = null;
+		}
+		if (closing) {
+			try {
+				transport.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Closes the transport, after the held messages if there are any
+	 * @throws IOException
+	 */
+	private synchronized void closeTransport() throws IOException {
+		if (holding > 0)
+			closing = true;
+		else
+			transport.close();
+	}
+	
+	/**
+	 * Handles incoming messages from the client
+	 * @param message
+	 * @throws IOException
+	 */
+	private void respond(Message message) throws IOException {
         // Handle the message. Switch based on it's type
         switch(message.getType()) {
         case Login:
@@ -234,7 +440,10 @@ public class ServerConnection extends Thread {
         	message = startConversation(message);
         	break;
         case Message:
-        	message = sendMessage(message);
+        	if (message.getCode() == Server.HISTORY_PAGE)
+        		message = fetchHistory(message);
+        	else
+        		message = sendMessage(message);
         	break;
         case Add:
         	message = addToConversation(message);
@@ -254,11 +463,21 @@ public class ServerConnection extends Thread {
         
         // Send back the response message
         if (message == null) return;
-        synchronized (socket) {
-	        out.writeObject(message);
-        }
+        send(message);
     }
 	
+	/**
+	 * Sends a message to the client
+	 * @param message
+	 * @throws IOException
+	 */
+	private void send(Message message) throws IOException {
+		if (transport == null)
+			throw new IOException("Connection not open");
+		if (hold(message)) return;
+		transport.send(message);
+	}
+	
 	/**
 	 * Handles a login request
 	 * @param message
@@ -344,13 +563,10 @@ public class ServerConnection extends Thread {
 		if (message.getUser() != null && message.getUser().length() > 0) {
 			res.setType(Type.Friends);
 			String friend = message.getUser();
-			synchronized(friends) {
-				if (friends.contains(friend)) {
-					res.setStatus("0 friends added");
-					res.setCode(300);
-					return res;
-				}
-				friends.add(friend);
+			if (!indexFriend(friend)) {
+				res.setStatus("0 friends added");
+				res.setCode(300);
+				return res;
 			}
 			server.addFriend(message.getUser(), user);
 			res.setStatus("1 friend added");
@@ -373,11 +589,8 @@ public class ServerConnection extends Thread {
 			
 			// Loop through every friend in the list
 			for (int i = 0; i < f.length; i++) {
-				synchronized(friends) {
-					if (friends.contains(f[i])) continue;
-					friends.add(f[i]);
-					added++;
-				}
+				if (!indexFriend(f[i])) continue;
+				added++;
 				server.addFriend(f[i], user);
 				
 				// Check to see if user is logged on
@@ -467,7 +680,7 @@ public class ServerConnection extends Thread {
 		
 		// Push failed list to client
 		if (failed.size() > 0) {
-			res.setFriends((String[])failed.toArray());
+			res.setFriends(failed.toArray(new String[failed.size()]));
 			res.setStatus("Failed to deliver message to the following recipients");
 			res.setType(Type.Message);
 			res.setCode(401);
@@ -483,6 +696,34 @@ public class ServerConnection extends Thread {
 		return res;
 	}
 	
+	/**
+	 * Handles a request for a page of a conversation's history
+	 * The status holds the sequence number the lines must be older than, an empty status asks for the latest lines
+	 * @param message
+	 * @return the page, or an error
+	 */
+	private Message fetchHistory(Message message) {
+		Message error = checkState();
+		if (error != null)
+			return error;
+		
+		int ID = message.getID();
+		error = checkConversation(ID);
+		if (error != null)
+			return error;
+		
+		long before = Long.MAX_VALUE;
+		String status = message.getStatus();
+		if (status != null && status.length() > 0) {
+			try {
+				before = Long.parseLong(status);
+			} catch (NumberFormatException e) {
+				return missingError();
+			}
+		}
+		return server.historyPage(ID, before);
+	}
+	
 	/**
 	 * Handles add to conversation requests
 	 * @param message
@@ -528,7 +769,11 @@ public class ServerConnection extends Thread {
 				return error;
 			
 			// Push the message to the members of the conversation
-			server.pushMessageToConversation(ID, message);
+			// Typing events are throttled, the others are pushed right away
+			if (code == 702 || code == 703 || code == 705)
+				server.pushTyping(ID, message);
+			else
+				server.pushMessageToConversation(ID, message);
 			
 			// If requested, remove the user from the conversation
 			if (code == 704) {
@@ -542,7 +787,7 @@ public class ServerConnection extends Thread {
 		}
 		
 		// All other messages get forwarded to friends
-		server.pushMessage(message, friends.toArray(new String[friends.size()]));
+		server.pushMessage(message, getFriends());
 		return message;
 	}
 	
@@ -550,16 +795,41 @@ public class ServerConnection extends Thread {
 	 * Finds people who have friended this user and adds them to the friends list
 	 */
 	private void findFriends() {
-		for (String friend:server.findFriends(user))
-			addFriend(friend);
+		// The friends saved by the server come back in one message, whether they are online or not
+		String[] saved = server.savedFriends(user);
+		for (String friend:saved)
+			indexFriend(friend);
+		if (saved.length > 0) {
+			Message message = new Message();
+			message.setType(Type.Friends);
+			message.setCode(302);
+			message.setFriends(saved);
+			message.setStatus(String.format("%d friends added", saved.length));
+			try {
+				send(message);
+			} catch (IOException e) {
+			}
+		}
+		
+		// Friends found at log in are presence changes, so a popular user gets them coalesced
+		ArrayList<String> followers = server.findFriends(user);
+		LinkedHashSet<String> online = new LinkedHashSet<String>(followers);
+		for (String friend:saved) {
+			if (server.loggedOn(friend))
+				online.add(friend);
+		}
+		for (String friend:online) {
+			indexFriend(friend);
+			server.pushPresence(this, friend, true, friendMessage(friend));
+		}
 		
-		// Send Logged in message
+		// Send Logged in message to the users who have friended this one
 		Message message = new Message();
 		message.setType(Type.Event);
 		message.setUser(user);
 		message.setCode(700);
 		message.setStatus(user + " has logged on");
-		server.pushMessage(message, friends.toArray(new String[friends.size()]));
+		server.pushPresence(user, true, message, followers.toArray(new String[followers.size()]));
 	}
 	
 	/**
@@ -567,30 +837,37 @@ public class ServerConnection extends Thread {
 	 * @throws IOException
 	 */
 	private void logoff() throws IOException {
+		if (state == State.CLOSED) return;
+		state = State.CLOSED;
 		
 		// Remove user from every conversation they are in
+		// The list is copied so that no lock is held while pushing
+		Integer[] IDs;
 		synchronized (conversations) {
-			for (Integer ID:conversations) {
-				Message message = new Message();
-				message.setType(Type.Event);
-				message.setCode(704);
-				message.setUser(user);
-				message.setID(ID);
-				server.pushMessageToConversation(ID, message);
-				server.leaveConversation(ID, user);
-			}
+			IDs = conversations.toArray(new Integer[conversations.size()]);
+		}
+		for (Integer ID:IDs) {
+			Message message = new Message();
+			message.setType(Type.Event);
+			message.setCode(704);
+			message.setUser(user);
+			message.setID(ID);
+			server.pushMessageToConversation(ID, message);
+			server.leaveConversation(ID, user);
 		}
 		
-		// Push logoff message to friends
+		// Push logoff message to the users who have friended this one
 		Message message = new Message();
 		message.setType(Type.Event);
 		message.setUser(user);
 		message.setCode(701);
 		message.setStatus(user + " has logged off");
-		server.pushMessage(message, friends.toArray(new String[friends.size()]));
+		ArrayList<String> followers = server.findFriends(user);
+		server.pushPresence(user, false, message, followers.toArray(new String[followers.size()]));
 		
 		server.logoff(this);
-		socket.close();
+		if (transport != null)
+			closeTransport();
 	}
 	
 	/**
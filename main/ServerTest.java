@@ -1,9 +1,15 @@
 package main;
 
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -505,6 +511,98 @@ public class ServerTest {
 		}
 	}
 	
+	/**
+	 * In nio mode a request that makes the server throw disconnects only the client that sent it
+	 * -Two users connect to a server with a single event loop and log in
+	 * -User1 starts a conversation without naming anyone
+	 * -User1 is disconnected
+	 * -User2, served by the same loop, still gets answered
+	 * @throws IOException
+	 */
+	@Test
+	public void testNioBadRequest() throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.setMode(Server.Mode.NIO);
+		config.setEventLoops(1);
+		Server server = new Server(4445, config);
+		server.start();
+		
+		String address = "localhost";
+		
+		// Connect and login both users
+		Socket user1 = new Socket(address, 4445);
+		user1.setSoTimeout(5000);
+		DataInputStream in1 = new DataInputStream(user1.getInputStream());
+		DataOutputStream out1 = new DataOutputStream(user1.getOutputStream());
+		assertEquals(100, MessageFrames.read(in1).getCode());
+		MessageFrames.write(out1, ClientMessageSender.CreateLoginMessage("cjfman"));
+		assertEquals(101, MessageFrames.read(in1).getCode());
+		
+		Socket user2 = new Socket(address, 4445);
+		user2.setSoTimeout(5000);
+		DataInputStream in2 = new DataInputStream(user2.getInputStream());
+		DataOutputStream out2 = new DataOutputStream(user2.getOutputStream());
+		assertEquals(100, MessageFrames.read(in2).getCode());
+		MessageFrames.write(out2, ClientMessageSender.CreateLoginMessage("dhrosa"));
+		assertEquals(101, MessageFrames.read(in2).getCode());
+		
+		// Start a conversation with a null user
+		Message message = new Message();
+		message.setType(Type.Start);
+		message.setUser(null);
+		MessageFrames.write(out1, message);
+		try {
+			while (true)
+				MessageFrames.read(in1);
+		} catch (EOFException e) {
+			// User1 was disconnected
+		}
+		
+		// The event loop is still serving user2
+		MessageFrames.write(out2, ClientMessageSender.CreateStartMessage("kemus"));
+		assertEquals(506, MessageFrames.read(in2).getCode());
+		
+		user1.close();
+		user2.close();
+		server.kill();
+	}
+	
+	/**
+	 * In nio mode a frame much bigger than the read buffer arrives in pieces and is still handled
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testNioLargeFrame() throws IOException, InterruptedException {
+		ServerConfig config = new ServerConfig();
+		config.setMode(Server.Mode.NIO);
+		config.setEventLoops(1);
+		Server server = new Server(4445, config);
+		server.start();
+		
+		Socket user1 = new Socket("localhost", 4445);
+		user1.setSoTimeout(5000);
+		DataInputStream in1 = new DataInputStream(user1.getInputStream());
+		DataOutputStream out1 = new DataOutputStream(user1.getOutputStream());
+		assertEquals(100, MessageFrames.read(in1).getCode());
+		
+		// A login carrying a 300KB status, written in three pieces
+		Message message = ClientMessageSender.CreateLoginMessage("cjfman");
+		message.setStatus(new String(new char[300 * 1024]).replace('\0', 'x'));
+		ByteBuffer frame = MessageFrames.encode(message);
+		int third = frame.limit() / 3;
+		for (int i = 0; i < 3; i++) {
+			int end = i == 2 ? frame.limit() : (i + 1) * third;
+			out1.write(frame.array(), i * third, end - i * third);
+			out1.flush();
+			Thread.sleep(50);
+		}
+		assertEquals(101, MessageFrames.read(in1).getCode());
+		
+		user1.close();
+		server.kill();
+	}
+	
 	private boolean checkMessage(Message message, String check) {
 		if (debug) System.out.println(message);
 		return message.toString().equals(check);
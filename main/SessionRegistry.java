@@ -0,0 +1,241 @@
+package main;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the open connections, the logged in users and the conversations of the server.
+ *
+ * Everything is kept in ConcurrentHashMaps, so lookups never take a lock and updates only lock
+ * the bin of the key being changed. Usernames map straight to their connection, so relaying to
+ * a user is a single lookup. Conversation members are published as an immutable array that is
+ * replaced on every membership change; relays read it without locking, and changes only lock
+ * the conversation being changed.
+ * @author Charles (cjfman)
+ *
+ */
+public class SessionRegistry {
+	private final ConcurrentHashMap<Integer, ServerConnection> connections;	// Maps a connection ID to it's connection
+	private final ConcurrentHashMap<String, ServerConnection> sessions;		// Maps a username to it's connection
+	private final ConcurrentHashMap<Integer, Conversation> conversations;		// Maps a conversation ID to it's members
+	private volatile StateLog log;		// Told about every membership change, null if there is no log
+
+	public SessionRegistry() {
+		connections = new ConcurrentHashMap<Integer, ServerConnection>();
+		sessions = new ConcurrentHashMap<String, ServerConnection>();
+		conversations = new ConcurrentHashMap<Integer, Conversation>();
+	}
+
+	/**
+	 * Registers a connection under it's ID
+	 * @param connection
+	 */
+	public void addConnection(ServerConnection connection) {
+		connections.put(connection.getID(), connection);
+	}
+
+	/**
+	 * Removes a connection, and it's user if it has logged in
+	 * @param ID
+	 * @return the removed connection, or null if there was none
+	 */
+	public ServerConnection removeConnection(int ID) {
+		ServerConnection connection = connections.remove(ID);
+		if (connection != null && connection.getUser() != null)
+			sessions.remove(connection.getUser(), connection);
+		return connection;
+	}
+
+	/**
+	 * @return a live view of the open connections
+	 */
+	public Collection<ServerConnection> connections() {
+		return connections.values();
+	}
+
+	/**
+	 * Logs in the connection with the given ID under username
+	 * @param ID
+	 * @param username
+	 * @return true if the username is now registered to that connection
+	 */
+	public boolean login(int ID, String username) {
+		ServerConnection connection = connections.get(ID);
+		if (connection == null) return false;
+		if (connection.getUser() != null && !connection.getUser().equals(username))
+			return false;	// Connection is already logged in as someone else
+		ServerConnection current = sessions.putIfAbsent(username, connection);
+		return current == null || current == connection;	// False if username is registered to a different connection
+	}
+
+	/**
+	 * Logs off a user, if it is still registered to the given connection
+	 * @param username
+	 * @param connection
+	 */
+	public void logoff(String username, ServerConnection connection) {
+		if (username != null)
+			sessions.remove(username, connection);
+	}
+
+	/**
+	 * Logs off a user, whatever connection it is registered to
+	 * @param username
+	 * @return the connection the user was registered to, or null
+	 */
+	public ServerConnection logoff(String username) {
+		return sessions.remove(username);
+	}
+
+	/**
+	 * Looks up the connection of a logged in user
+	 * @param username
+	 * @return the user's connection, or null if the user is not logged in
+	 */
+	public ServerConnection lookup(String username) {
+		return sessions.get(username);
+	}
+
+	/**
+	 * @param username
+	 * @return true if the user is logged in
+	 */
+	public boolean loggedOn(String username) {
+		return sessions.containsKey(username);
+	}
+
+	/**
+	 * Sets the log that membership changes are appended to
+	 * Changes are appended while holding the conversation's monitor, so the log has them in the order they were made
+	 * @param log: null appends nothing
+	 */
+	public void setLog(StateLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Opens a new conversation
+	 * @param ID: the conversation ID, which must not be in use
+	 * @param username: the first member
+	 */
+	public void openConversation(int ID, String username) {
+		Conversation conversation = new Conversation();
+		synchronized (conversation) {
+			// Logged after it is in the map, so that a snapshot begun after the change sees it
+			conversation.add(username);
+			conversations.put(ID, conversation);
+			StateLog log = this.log;
+			if (log != null)
+				log.append(StateLog.START, ID, username, null);
+		}
+	}
+
+	/**
+	 * Puts back a conversation kept over a restart. Nothing is logged
+	 * @param ID: the conversation ID, which must not be in use
+	 * @param members: at least one member
+	 */
+	public void restoreConversation(int ID, String[] members) {
+		Conversation conversation = new Conversation();
+		for (String member:members)
+			conversation.set.add(member);
+		conversation.members = conversation.set.toArray(new String[conversation.set.size()]);
+		conversations.put(ID, conversation);
+	}
+
+	/**
+	 * @return a live view of the IDs of the open conversations
+	 */
+	public Collection<Integer> conversations() {
+		return conversations.keySet();
+	}
+
+	/**
+	 * @param ID
+	 * @return the members of a conversation, or null if it does not exist. The array must not be modified
+	 */
+	public String[] members(int ID) {
+		Conversation conversation = conversations.get(ID);
+		if (conversation == null) return null;
+		return conversation.members;
+	}
+
+	/**
+	 * Numbers a line said in a conversation, when no HistoryStore numbers them
+	 * The numbers are kept with the conversation, so they go on counting up whatever the RecentCache evicts
+	 * @param ID
+	 * @return the line's sequence number, counting from 1, or 0 if the conversation does not exist
+	 */
+	public long nextLine(int ID) {
+		Conversation conversation = conversations.get(ID);
+		if (conversation == null) return 0;
+		synchronized (conversation) {
+			if (conversation.closed) return 0;
+			return ++conversation.lines;
+		}
+	}
+
+	/**
+	 * Adds a member to a conversation
+	 * @param ID
+	 * @param username
+	 * @return the members before the user was added, or null if the conversation does not exist
+	 */
+	public String[] addMember(int ID, String username) {
+		Conversation conversation = conversations.get(ID);
+		if (conversation == null) return null;
+		synchronized (conversation) {
+			if (conversation.closed) return null;	// Closed after it was looked up
+			String[] members = conversation.members;
+			conversation.add(username);
+			StateLog log = this.log;
+			if (log != null)
+				log.append(StateLog.ADD, ID, username, null);
+			return members;
+		}
+	}
+
+	/**
+	 * Removes a member from a conversation, and closes the conversation if it is left empty
+	 * @param ID
+	 * @param username
+	 * @return true if the conversation was closed
+	 */
+	public boolean removeMember(int ID, String username) {
+		Conversation conversation = conversations.get(ID);
+		if (conversation == null) return false;
+		synchronized (conversation) {
+			if (conversation.closed) return false;
+			conversation.remove(username);
+			StateLog log = this.log;
+			if (log != null)
+				log.append(StateLog.LEAVE, ID, username, null);
+			if (conversation.members.length > 0) return false;
+			conversation.closed = true;
+			conversations.remove(ID, conversation);
+			return true;
+		}
+	}
+
+	/**
+	 * The members of a conversation, and the number of lines said in it
+	 * Changes are made while holding the conversation's monitor
+	 */
+	private static class Conversation {
+		private final HashSet<String> set = new HashSet<String>();
+		private volatile String[] members = new String[0];
+		private boolean closed = false;
+		private long lines = 0;		// Lines said so far, when no HistoryStore numbers them
+
+		private void add(String username) {
+			if (set.add(username))
+				members = set.toArray(new String[set.size()]);
+		}
+
+		private void remove(String username) {
+			if (set.remove(username))
+				members = set.toArray(new String[set.size()]);
+		}
+	}
+}
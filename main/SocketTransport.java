@@ -0,0 +1,107 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking transport that reads and writes Messages directly on a socket.
+ * Used by the thread per connection server. Messages are either written to one long
+ * object stream that is reset now and then, or as binary frames when the server runs with --binary.
+ * Writes are guarded by a ReentrantLock rather than a monitor, so a virtual
+ * thread blocked on a slow client does not pin it's carrier
+ * @author Charles (cjfman)
+ *
+ */
+public class SocketTransport implements ConnectionTransport {
+	private final Socket socket;
+	private final boolean binary;
+	private ObjectInputStream in;
+	private MessageOutputStream out;
+	private DataInputStream framedIn;
+	private OutputStream framedOut;
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * Opens the object output stream of the socket
+	 * @param socket
+	 * @throws IOException
+	 */
+	public SocketTransport(Socket socket) throws IOException {
+		this(socket, false);
+	}
+
+	/**
+	 * Opens the output stream of the socket
+	 * The input stream is opened on the first read, so that the client
+	 * does not have to send anything before it receives the welcome message
+	 * @param socket
+	 * @param binary: true to talk in binary frames instead of an object stream
+	 * @throws IOException
+	 */
+	public SocketTransport(Socket socket, boolean binary) throws IOException {
+		this.socket = socket;
+		this.binary = binary;
+		if (binary)
+			framedOut = socket.getOutputStream();
+		else
+			out = new MessageOutputStream(socket.getOutputStream());
+	}
+
+	/**
+	 * Blocks until the next message is received from the client
+	 * @return the received message
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public Message read() throws IOException, ClassNotFoundException {
+		if (binary) {
+			if (framedIn == null)
+				framedIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			return MessageFrames.read(framedIn);
+		}
+		if (in == null)
+			in = new ObjectInputStream(socket.getInputStream());
+		return (Message) in.readObject();
+	}
+
+	public void send(Message message) throws IOException {
+		writeLock.lock();
+		try {
+			if (binary) {
+				// Each frame goes out in a single write
+				framedOut.write(MessageFrames.encode(message, true).array());
+			}
+			else
+				out.write(message);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void send(Broadcast broadcast) throws IOException {
+		if (!binary) {
+			// The object stream has to serialize every message itself, but the Message is shared
+			send(broadcast.getMessage());
+			return;
+		}
+		writeLock.lock();
+		try {
+			broadcast.write(framedOut, true);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+}
@@ -0,0 +1,176 @@
+package main;
+
+import java.util.Random;
+
+/**
+ * A sorted set of names that also knows the position of every name, so a Swing list can show
+ * it in order. Adding, removing, finding the index of a name and getting the name at an index
+ * all take O(log n). It is a treap where every node counts the nodes below it.
+ * @author Andres
+ *
+ */
+public class SortedNameSet {
+    private final Random random = new Random();
+    private Node root = null;
+    
+    private static class Node {
+        private final String name;
+        private final int priority;
+        private Node left, right;
+        private int size = 1; // Nodes in this subtree
+        
+        private Node(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+    }
+    
+    /**
+     * @return the number of names in the set
+     */
+    public int size() {
+        return size(root);
+    }
+    
+    /**
+     * @param index
+     * @return the name at a position in sorted order
+     */
+    public String get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        Node node = root;
+        while (true) {
+            int left = size(node.left);
+            if (index < left) {
+                node = node.left;
+            }
+            else if (index == left) {
+                return node.name;
+            }
+            else {
+                index -= left + 1;
+                node = node.right;
+            }
+        }
+    }
+    
+    /**
+     * @param name
+     * @return the position of a name in sorted order, or -1 if it is not in the set
+     */
+    public int indexOf(String name) {
+        Node node = root;
+        int index = 0;
+        while (node != null) {
+            int compare = name.compareTo(node.name);
+            if (compare < 0) {
+                node = node.left;
+            }
+            else if (compare == 0) {
+                return index + size(node.left);
+            }
+            else {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Adds a name
+     * @param name
+     * @return the position it was added at, or -1 if it was already in the set
+     */
+    public int add(String name) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            return -1;
+        }
+        root = insert(root, name, random.nextInt());
+        return indexOf(name);
+    }
+    
+    /**
+     * Removes a name
+     * @param name
+     * @return the position it was removed from, or -1 if it was not in the set
+     */
+    public int remove(String name) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            root = delete(root, name);
+        }
+        return index;
+    }
+    
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+    
+    private static Node update(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+        return node;
+    }
+    
+    private static Node insert(Node node, String name, int priority) {
+        if (node == null) {
+            return new Node(name, priority);
+        }
+        if (name.compareTo(node.name) < 0) {
+            node.left = insert(node.left, name, priority);
+            if (node.left.priority > node.priority) {
+                // Rotate right
+                Node top = node.left;
+                node.left = top.right;
+                top.right = update(node);
+                return update(top);
+            }
+        }
+        else {
+            node.right = insert(node.right, name, priority);
+            if (node.right.priority > node.priority) {
+                // Rotate left
+                Node top = node.right;
+                node.right = top.left;
+                top.left = update(node);
+                return update(top);
+            }
+        }
+        return update(node);
+    }
+    
+    private static Node delete(Node node, String name) {
+        int compare = name.compareTo(node.name);
+        if (compare < 0) {
+            node.left = delete(node.left, name);
+        }
+        else if (compare > 0) {
+            node.right = delete(node.right, name);
+        }
+        else {
+            return merge(node.left, node.right);
+        }
+        return update(node);
+    }
+    
+    /**
+     * Joins two treaps where every name of the first sorts before every name of the second
+     */
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+}
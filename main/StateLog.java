@@ -0,0 +1,541 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Write ahead log of the changes to the server's state: conversations started, members added
+ * and removed, and friends added. After a crash the state is rebuilt by replaying the log.
+ *
+ * Changes are appended to a queue in the order they are made, and a single writer thread writes
+ * whatever is queued in one go. How durable a change is when sync returns depends on the mode:
+ *   NONE: the writer never forces the log to disk, nothing waits for it
+ *   BATCHED: the writer forces every batch once, and sync waits for the batch holding the caller's
+ *            last change, so concurrent connections share one fsync (group commit)
+ *   PER_OP: the writer forces after every change, and sync waits for it
+ * A caller that must not block, like an nio event loop, asks for a callback with whenDurable
+ * instead of calling sync. The writer runs the callback once the changes were forced.
+ *
+ * If a write or force fails, the changes in it are reported as not durable to whoever waits for
+ * them, the log is cut back to the end of the last good write, and the writer goes on.
+ *
+ * A record is laid out as:
+ *   int length, int CRC32 of the body, body: byte operation, int ID, then one or two usernames
+ *   as a short of the UTF-8 length and the bytes
+ * Replay stops at the first record that is torn or does not match it's CRC, and the log is cut there.
+ *
+ * The log is rolled when a snapshot of the state is taken: the file is renamed to the previous
+ * log and a new one is started. Once the snapshot is written the previous log is dropped, so
+ * the log only holds the changes made since the last snapshot began.
+ * @author Charles (cjfman)
+ *
+ */
+public class StateLog {
+	public enum Durability {NONE, BATCHED, PER_OP};
+
+	public final static byte START = 1;		// ID, user: a conversation was started by user
+	public final static byte ADD = 2;		// ID, user: user was added to a conversation
+	public final static byte LEAVE = 3;		// ID, user: user left a conversation
+	public final static byte FRIEND = 4;	// user, friend: user has friended friend
+	private final static int MAX_RECORD = 1 << 16;
+	private final static byte[] WAKE = new byte[0];		// Queued by close to wake the writer
+	private final static byte[] ROLL = new byte[0];		// Queued by roll to have the writer start a new file
+
+	/**
+	 * Is told when changes are durable, or could not be made so
+	 */
+	public interface Callback {
+		void done(boolean durable);
+	}
+
+	/**
+	 * Is told about every change in the log, in the order they were made
+	 */
+	public interface Listener {
+		void started(int ID, String user);
+		void added(int ID, String user);
+		void left(int ID, String user);
+		void friended(String user, String friend);
+	}
+
+	private final File file;
+	private final File previous;		// The log before the last roll, until a snapshot covers it
+	private FileChannel channel;		// Only used by the writer once replay returned
+	private final Durability durability;
+	private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+	private final Thread writer;
+	private final ThreadLocal<long[]> last = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[2];		// The thread's last ticket, and the last one it synced
+		}
+	};
+	private long appended = 0;			// Records queued, guarded by the queue
+	private long written = 0;			// Records written, and forced unless the durability is NONE. Guarded by the log
+	private long rolls = 0;				// Times the log was rolled, guarded by the log
+	private final ArrayList<long[]> failures = new ArrayList<long[]>();		// First and last ticket of every failed write, guarded by the log
+	private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();	// Callbacks by ticket, guarded by the log
+	private long end = 0;				// End of the last good write, only used by the writer
+	private volatile boolean closed = false;
+
+	private final AtomicLong forces = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+
+	/**
+	 * Opens a log, creating it if needed. Call replay before appending to an existing log
+	 * @param file
+	 * @param durability: when changes are forced to disk
+	 * @throws IOException
+	 */
+	public StateLog(File file, Durability durability) throws IOException {
+		this.file = file;
+		this.previous = new File(file.getPath() + ".old");
+		this.durability = durability;
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Can not create " + parent);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		end = channel.size();
+		channel.position(end);
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "state-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Reads back every change in the previous log and the log, then cuts off a torn record at the log's end
+	 * @param listener: is told about every change
+	 * @return the number of changes replayed
+	 * @throws IOException
+	 */
+	public long replay(Listener listener) throws IOException {
+		long count = 0;
+		if (previous.exists()) {
+			FileChannel old = new RandomAccessFile(previous, "r").getChannel();
+			try {
+				count += replay(old, listener, false);
+			} finally {
+				old.close();
+			}
+		}
+		count += replay(channel, listener, true);
+		end = channel.position();
+		return count;
+	}
+
+	/**
+	 * Reads back the changes in one file
+	 * @param truncate: true to cut off a torn record, and leave the channel positioned after the last whole one
+	 */
+	private static long replay(FileChannel channel, Listener listener, boolean truncate) throws IOException {
+		long count = 0;
+		long position = 0;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(8);
+		ByteBuffer body = ByteBuffer.allocate(MAX_RECORD);
+		CRC32 crc = new CRC32();
+		while (position + 8 <= size) {
+			header.clear();
+			channel.read(header, position);
+			int length = header.getInt(0);
+			if (length <= 0 || length > MAX_RECORD || position + 8 + length > size)
+				break;
+			body.clear();
+			body.limit(length);
+			channel.read(body, position + 8);
+			crc.reset();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != header.getInt(4))
+				break;
+			body.flip();
+			apply(body, listener);
+			position += 8 + length;
+			count++;
+		}
+		if (truncate) {
+			if (position < size)
+				channel.truncate(position);
+			channel.position(position);
+		}
+		return count;
+	}
+
+	/**
+	 * Queues a change, to be made durable by the next call to sync on the same thread, or waited for with whenDurable
+	 * @param operation: START, ADD, LEAVE or FRIEND
+	 * @param ID: the conversation, ignored for FRIEND
+	 * @param user
+	 * @param friend: the friend for FRIEND, null otherwise
+	 */
+	public void append(byte operation, int ID, String user, String friend) {
+		byte[] name = user.getBytes(StandardCharsets.UTF_8);
+		byte[] other = friend == null ? null : friend.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + 4 + 2 + name.length + (other == null ? 0 : 2 + other.length);
+		ByteBuffer record = ByteBuffer.allocate(8 + length);
+		record.putInt(length);
+		record.putInt(0);
+		record.put(operation);
+		record.putInt(ID);
+		record.putShort((short) name.length);
+		record.put(name);
+		if (other != null) {
+			record.putShort((short) other.length);
+			record.put(other);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, length);
+		record.putInt(4, (int) crc.getValue());
+
+		long ticket;
+		synchronized (queue) {
+			// Records are numbered in the order they are queued
+			ticket = ++appended;
+			queue.add(record.array());
+		}
+		last.get()[0] = ticket;
+	}
+
+	/**
+	 * Waits until the changes this thread appended since it last synced are as durable as the log's mode makes them
+	 * @return false if any of them could not be written or forced, or the log was closed first
+	 */
+	public boolean sync() {
+		long[] mine = last.get();
+		long from = mine[1];
+		long to = mine[0];
+		mine[1] = to;
+		if (durability == Durability.NONE)
+			return true;
+		synchronized (this) {
+			while (written < to && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return durable(from, to);
+		}
+	}
+
+	/**
+	 * @return the ticket of the last change this thread appended. Changes are numbered from 1 in the order they were queued
+	 */
+	public long ticket() {
+		return last.get()[0];
+	}
+
+	/**
+	 * Calls back once changes are as durable as the log's mode makes them, without waiting for them
+	 * The callback runs on the writer thread, or on the caller's if the changes are already durable
+	 * @param from: changes after this ticket are waited for
+	 * @param to: the last change waited for
+	 * @param callback
+	 */
+	public void whenDurable(long from, long to, Callback callback) {
+		boolean durable;
+		synchronized (this) {
+			if (durability != Durability.NONE && written < to && !closed) {
+				waiters.add(new Waiter(from, to, callback));
+				return;
+			}
+			durable = durability == Durability.NONE || durable(from, to);
+		}
+		callback.done(durable);
+	}
+
+	/**
+	 * Starts a new log. Every change appended before this call is in the previous log, every change after in the new one
+	 * Nothing is rolled while a previous log is kept, as it is still needed until a snapshot covers it
+	 * @return true if the log was rolled
+	 */
+	public boolean roll() {
+		if (previous.exists())
+			return false;
+		long rolled;
+		synchronized (this) {
+			rolled = rolls;
+		}
+		queue.add(ROLL);
+		synchronized (this) {
+			while (rolls == rolled && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return previous.exists();
+	}
+
+	/**
+	 * Drops the previous log, once a snapshot taken after the roll was written
+	 */
+	public void dropPrevious() {
+		previous.delete();
+	}
+
+	/**
+	 * @return the number of changes appended
+	 */
+	public long getAppended() {
+		synchronized (queue) {
+			return appended;
+		}
+	}
+
+	/**
+	 * @return the number of times the log was forced to disk
+	 */
+	public long getForces() {
+		return forces.get();
+	}
+
+	/**
+	 * @return the number of batches written
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * @return the log file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes whatever is queued, forces it to disk and stops the writer
+	 */
+	public void close() {
+		// The writer is woken rather than interrupted, an interrupt would close the channel under it.
+		// It is waited for until it's done, so the channel is not closed under it either
+		closed = true;
+		queue.add(WAKE);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException e) {
+		}
+		ArrayList<Waiter> ready = new ArrayList<Waiter>();
+		synchronized (this) {
+			while (!waiters.isEmpty()) {
+				Waiter waiter = waiters.poll();
+				waiter.durable = durable(waiter.from, waiter.to);
+				ready.add(waiter);
+			}
+			notifyAll();
+		}
+		call(ready);
+	}
+
+	/**
+	 * The writer thread: writes every queued record, forcing them as the durability asks
+	 */
+	private void write() {
+		ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch);
+			int done = 0;
+			for (byte[] record:batch) {
+				if (record == WAKE)
+					continue;
+				if (record == ROLL) {
+					done = flush(buffer, done);
+					rotate();
+					continue;
+				}
+				if (buffer.remaining() < record.length)
+					done = flush(buffer, done);
+				buffer.put(record);
+				done++;
+				if (durability == Durability.PER_OP)
+					done = flush(buffer, done);
+			}
+			flush(buffer, done);
+			batches.incrementAndGet();
+			batch.clear();
+			if (closed && queue.isEmpty())
+				return;
+		}
+	}
+
+	/**
+	 * Forces the log, renames it to the previous log and opens a new one in it's place
+	 * Whoever waits in roll is woken even if this fails
+	 */
+	private void rotate() {
+		try {
+			channel.force(false);
+			channel.close();
+			if (file.renameTo(previous))
+				end = 0;
+			else
+				System.err.println("Can not roll " + file + ", appending to it");
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			channel.position(end);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				rolls++;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffered records, forces them unless the durability is NONE, and wakes whoever waits for them
+	 * If that fails, the records are reported as not durable and the log is cut back to the last good write
+	 * @param count: the number of records in the buffer
+	 * @return 0, the records left in the buffer
+	 */
+	private int flush(ByteBuffer buffer, int count) {
+		if (count == 0)
+			return 0;
+		boolean durable = true;
+		try {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			if (durability != Durability.NONE) {
+				channel.force(false);
+				forces.incrementAndGet();
+			}
+			end = channel.position();
+		} catch (IOException e) {
+			e.printStackTrace();
+			durable = false;
+			recover();
+		}
+		buffer.clear();
+
+		ArrayList<Waiter> ready = new ArrayList<Waiter>();
+		synchronized (this) {
+			if (!durable)
+				failures.add(new long[] {written + 1, written + count});
+			written += count;
+			while (!waiters.isEmpty() && waiters.peek().to <= written) {
+				Waiter waiter = waiters.poll();
+				waiter.durable = durable(waiter.from, waiter.to);
+				ready.add(waiter);
+			}
+			notifyAll();
+		}
+		call(ready);
+		return 0;
+	}
+
+	/**
+	 * Cuts off whatever part of a failed write made it to the log, so the next records follow the last good one
+	 */
+	private void recover() {
+		try {
+			if (!channel.isOpen())
+				channel = new RandomAccessFile(file, "rw").getChannel();
+			if (channel.size() > end)
+				channel.truncate(end);
+			channel.position(end);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return true if no change after from and up to to was in a failed write, and all of them were written. Must hold the monitor
+	 */
+	private boolean durable(long from, long to) {
+		if (written < to)
+			return false;
+		for (long[] failure:failures)
+			if (failure[0] <= to && failure[1] > from)
+				return false;
+		return true;
+	}
+
+	private static void call(ArrayList<Waiter> ready) {
+		for (Waiter waiter:ready) {
+			try {
+				waiter.callback.done(waiter.durable);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * A callback waiting for the changes after one ticket up to another
+	 */
+	private static class Waiter implements Comparable<Waiter> {
+		private final long from;
+		private final long to;
+		private final Callback callback;
+		private boolean durable;
+
+		private Waiter(long from, long to, Callback callback) {
+			this.from = from;
+			this.to = to;
+			this.callback = callback;
+		}
+
+		public int compareTo(Waiter other) {
+			return Long.compare(to, other.to);
+		}
+	}
+
+	private static void apply(ByteBuffer body, Listener listener) throws IOException {
+		byte operation = body.get();
+		int ID = body.getInt();
+		String user = readString(body);
+		switch (operation) {
+		case START:
+			listener.started(ID, user);
+			break;
+		case ADD:
+			listener.added(ID, user);
+			break;
+		case LEAVE:
+			listener.left(ID, user);
+			break;
+		case FRIEND:
+			listener.friended(user, readString(body));
+			break;
+		default:
+			throw new IOException("Unknown log operation " + operation);
+		}
+	}
+
+	private static String readString(ByteBuffer body) {
+		int length = body.getShort() & 0xFFFF;
+		String value = new String(body.array(), body.position(), length, StandardCharsets.UTF_8);
+		body.position(body.position() + length);
+		return value;
+	}
+}
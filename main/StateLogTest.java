@@ -0,0 +1,253 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for StateLog
+ * @author Charles (cjfman)
+ */
+public class StateLogTest {
+	private File directory;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("state").toFile();
+		file = new File(directory, "state.log");
+	}
+
+	@After
+	public void tearDown() {
+		for (File file:directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Changes are replayed in the order they were appended, in every durability mode
+	 */
+	@Test
+	public void testReplay() throws IOException {
+		for (StateLog.Durability durability:StateLog.Durability.values()) {
+			file.delete();
+			StateLog log = new StateLog(file, durability);
+			assertEquals(0, log.replay(new RecordingListener()));
+			log.append(StateLog.START, 7, "cjfman", null);
+			log.append(StateLog.ADD, 7, "dhrosa", null);
+			log.append(StateLog.FRIEND, 0, "cjfman", "kemus");
+			log.append(StateLog.LEAVE, 7, "cjfman", null);
+			log.sync();
+			log.close();
+
+			RecordingListener listener = new RecordingListener();
+			log = new StateLog(file, durability);
+			assertEquals(4, log.replay(listener));
+			log.close();
+			assertEquals("[started 7 cjfman, added 7 dhrosa, friended cjfman kemus, left 7 cjfman]", listener.changes.toString());
+		}
+	}
+
+	/**
+	 * A record torn by a crash is cut off, and the log is appended to after the last whole record
+	 */
+	@Test
+	public void testTornTail() throws IOException {
+		StateLog log = new StateLog(file, StateLog.Durability.PER_OP);
+		log.append(StateLog.START, 1, "cjfman", null);
+		log.append(StateLog.ADD, 1, "dhrosa", null);
+		log.sync();
+		log.close();
+		long whole = file.length();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(whole - 3);
+		raf.close();
+
+		log = new StateLog(file, StateLog.Durability.PER_OP);
+		RecordingListener listener = new RecordingListener();
+		assertEquals(1, log.replay(listener));
+		log.append(StateLog.ADD, 1, "kemus", null);
+		log.sync();
+		log.close();
+
+		listener = new RecordingListener();
+		log = new StateLog(file, StateLog.Durability.PER_OP);
+		assertEquals(2, log.replay(listener));
+		log.close();
+		assertEquals("[started 1 cjfman, added 1 kemus]", listener.changes.toString());
+	}
+
+	/**
+	 * Conversations and friends outlive a server that is not shut down, and members get their conversations back at log in
+	 */
+	@Test
+	public void testRestart() throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.setStateLog(file.getPath(), StateLog.Durability.BATCHED);
+		Server server = new Server(0, config);
+		ServerConnection connection = new RecordingTransport().login(server, "cjfman");
+		connection.handleMessage(ClientMessageSender.CreateFriendAddMessage("dhrosa"));
+		int ID = server.startConversation("cjfman");
+		assertTrue(server.addToConversation(ID, "dhrosa"));
+		int closed = server.startConversation("kemus");
+		server.leaveConversation(closed, "kemus");
+		assertTrue(server.getStateLog().sync());
+		// Dropped without kill, as if it crashed
+		server = new Server(0, config);
+
+		assertEquals(2, server.getConversationMembers(ID).size());
+		assertNull(server.getConversationMembers(closed));
+		assertArrayEquals(new String[] {"dhrosa"}, server.savedFriends("cjfman"));
+		RecordingTransport transport = new RecordingTransport();
+		transport.login(server, "dhrosa");
+		Message start = transport.find(602);
+		assertEquals(ID, start.getID());
+		assertEquals(2, start.getFriends().length);
+
+		// A new conversation does not reuse the ID of a replayed one
+		assertNotEquals(ID, (int) server.startConversation("kemus"));
+		server.kill();
+	}
+
+	/**
+	 * A message to a replayed conversation whose other members have not logged back in is
+	 * answered with the members it missed
+	 */
+	@Test
+	public void testRestartOffline() throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.setStateLog(file.getPath(), StateLog.Durability.BATCHED);
+		Server server = new Server(0, config);
+		int ID = server.startConversation("cjfman");
+		server.addToConversation(ID, "dhrosa");
+		server.addToConversation(ID, "kemus");
+		server.kill();
+
+		server = new Server(0, config);
+		RecordingTransport transport = new RecordingTransport();
+		ServerConnection connection = transport.login(server, "cjfman");
+		connection.handleMessage(ClientMessageSender.CreateSentMessage(ID, "cjfman", "anyone there?"));
+		Message failed = transport.find(401);
+		assertEquals(ID, failed.getID());
+		String[] missed = failed.getFriends();
+		Arrays.sort(missed);
+		assertArrayEquals(new String[] {"dhrosa", "kemus"}, missed);
+		server.kill();
+	}
+
+	/**
+	 * A caller that must not block is called back once it's changes are forced, and the
+	 * responses of a connection are held until then
+	 */
+	@Test
+	public void testWhenDurable() throws Exception {
+		StateLog log = new StateLog(file, StateLog.Durability.BATCHED);
+		log.replay(new RecordingListener());
+		long from = log.ticket();
+		log.append(StateLog.START, 1, "cjfman", null);
+		log.append(StateLog.ADD, 1, "dhrosa", null);
+		final boolean[] result = new boolean[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		log.whenDurable(from, log.ticket(), new StateLog.Callback() {
+			public void done(boolean durable) {
+				result[0] = durable;
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(result[0]);
+		log.close();
+
+		ServerConfig config = new ServerConfig();
+		config.setStateLog(file.getPath(), StateLog.Durability.PER_OP);
+		Server server = new Server(0, config);
+		RecordingTransport transport = new RecordingTransport();
+		ServerConnection connection = transport.login(server, "cjfman");
+		connection.handleMessage(ClientMessageSender.CreateFriendAddMessage("dhrosa"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (transport.count(301) == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(1, transport.count(301));
+		server.kill();
+	}
+
+	/**
+	 * Responses to a request that changed nothing don't release those of an earlier request
+	 * whose changes are not durable yet
+	 */
+	@Test
+	public void testBackToBack() throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.setStateLog(file.getPath(), StateLog.Durability.PER_OP);
+		Server server = new Server(0, config);
+		RecordingTransport transport = new RecordingTransport();
+		ServerConnection connection = transport.login(server, "cjfman");
+		int before = transport.size();
+
+		// Holding the log keeps the writer from marking anything durable
+		StateLog log = server.getStateLog();
+		synchronized (log) {
+			connection.handleMessage(ClientMessageSender.CreateFriendAddMessage("dhrosa"));
+			connection.handleMessage(ClientMessageSender.CreateLoginMessage("cjfman"));
+			assertEquals(before, transport.size());
+		}
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (transport.count(502) == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(1, transport.count(301));
+		assertEquals(1, transport.count(502));
+		server.kill();
+	}
+
+	/**
+	 * Changes in a write that fails are reported as not durable, and nobody is left waiting for them
+	 */
+	@Test
+	public void testWriteFailure() throws Exception {
+		File full = new File("/dev/full");		// Every write fails with no space left
+		if (!full.exists())
+			return;
+		StateLog log = new StateLog(full, StateLog.Durability.PER_OP);
+		log.append(StateLog.START, 1, "cjfman", null);
+		assertFalse(log.sync());
+		log.append(StateLog.ADD, 1, "dhrosa", null);
+		log.append(StateLog.ADD, 1, "kemus", null);
+		assertFalse(log.sync());
+
+		final boolean[] result = {true};
+		final CountDownLatch done = new CountDownLatch(1);
+		log.whenDurable(0, log.ticket(), new StateLog.Callback() {
+			public void done(boolean durable) {
+				result[0] = durable;
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertFalse(result[0]);
+		log.close();
+	}
+
+	/**
+	 * Keeps every change it is told about
+	 */
+	private static class RecordingListener implements StateLog.Listener {
+		private final ArrayList<String> changes = new ArrayList<String>();
+		public void started(int ID, String user) { changes.add("started " + ID + " " + user); }
+		public void added(int ID, String user) { changes.add("added " + ID + " " + user); }
+		public void left(int ID, String user) { changes.add("left " + ID + " " + user); }
+		public void friended(String user, String friend) { changes.add("friended " + user + " " + friend); }
+	}
+}
@@ -0,0 +1,135 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A snapshot of the open conversations and their members, so that a restarted server only
+ * replays the changes logged after it instead of the whole StateLog.
+ *
+ * The snapshot is taken while the server keeps running. Member arrays are replaced rather than
+ * changed, so every conversation is read as it was at one moment without taking it's lock, but
+ * different conversations may be read at different moments. That is safe as long as the log is
+ * rolled before the snapshot begins: every change logged before the roll was already applied and
+ * is seen, and the changes after it are replayed on top. Replaying a change again leaves the
+ * same membership, so a conversation that was read after some of them ends up the same.
+ *
+ * The file is laid out as:
+ *   int MAGIC, int users, int conversations, then every username as a short of it's UTF-8 length
+ *   and the bytes, then every conversation as int ID, int members and the members' indexes in the names
+ * It is written to a temporary file that then takes the place of the old one, and is memory
+ * mapped when it is loaded.
+ * @author Charles (cjfman)
+ *
+ */
+public class StateSnapshot {
+	public final static int MAGIC = 0x534e4150;		// "SNAP"
+
+	/**
+	 * Is told about every conversation in a snapshot
+	 */
+	public interface Listener {
+		void restored(int ID, String[] members);
+	}
+
+	/**
+	 * Writes the open conversations of a registry to a file
+	 * @param file
+	 * @param registry
+	 * @return the number of conversations written
+	 * @throws IOException
+	 */
+	public static int write(File file, SessionRegistry registry) throws IOException {
+		// Every member array is taken once, so the size and the contents agree
+		ArrayList<Integer> IDs = new ArrayList<Integer>();
+		ArrayList<String[]> conversations = new ArrayList<String[]>();
+		HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		ArrayList<byte[]> names = new ArrayList<byte[]>();
+		long size = 4 + 4 + 4;
+		for (Integer ID:registry.conversations()) {
+			String[] members = registry.members(ID);
+			if (members == null || members.length == 0) continue;	// Closed while it was being read
+			IDs.add(ID);
+			conversations.add(members);
+			size += 4 + 4 + 4L * members.length;
+			for (String member:members) {
+				if (ids.containsKey(member)) continue;
+				byte[] name = member.getBytes(StandardCharsets.UTF_8);
+				ids.put(member, names.size());
+				names.add(name);
+				size += 2 + name.length;
+			}
+		}
+
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+		try {
+			raf.setLength(size);
+			MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			out.putInt(MAGIC);
+			out.putInt(names.size());
+			out.putInt(IDs.size());
+			for (byte[] name:names) {
+				out.putShort((short) name.length);
+				out.put(name);
+			}
+			for (int i = 0; i < IDs.size(); i++) {
+				String[] members = conversations.get(i);
+				out.putInt(IDs.get(i));
+				out.putInt(members.length);
+				for (String member:members)
+					out.putInt(ids.get(member));
+			}
+			out.force();
+		} finally {
+			raf.close();
+		}
+		if (!temporary.renameTo(file))
+			throw new IOException("Can not replace " + file);
+		return IDs.size();
+	}
+
+	/**
+	 * Reads back every conversation in a snapshot
+	 * @param file
+	 * @param listener: is told about every conversation. Members who are in several share one String
+	 * @return the number of conversations read
+	 * @throws IOException if the file is not a snapshot
+	 */
+	public static int load(File file, Listener listener) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer in;
+		try {
+			in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (in.remaining() < 12 || in.getInt() != MAGIC)
+			throw new IOException(file + " is not a state snapshot");
+		String[] names = new String[in.getInt()];
+		int conversations = in.getInt();
+		byte[] name = new byte[256];
+		for (int i = 0; i < names.length; i++) {
+			int length = in.getShort() & 0xFFFF;
+			if (name.length < length)
+				name = new byte[length];
+			in.get(name, 0, length);
+			names[i] = new String(name, 0, length, StandardCharsets.UTF_8);
+		}
+		for (int c = 0; c < conversations; c++) {
+			int ID = in.getInt();
+			String[] members = new String[in.getInt()];
+			for (int m = 0; m < members.length; m++)
+				members[m] = names[in.getInt()];
+			listener.restored(ID, members);
+		}
+		return conversations;
+	}
+}
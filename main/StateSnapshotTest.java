@@ -0,0 +1,129 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for StateSnapshot
+ * @author Charles (cjfman)
+ */
+public class StateSnapshotTest {
+	private File directory;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("state").toFile();
+		file = new File(directory, "state.log");
+	}
+
+	@After
+	public void tearDown() {
+		for (File file:directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Open conversations are read back with their members, closed ones are left out
+	 */
+	@Test
+	public void testWriteAndLoad() throws IOException {
+		SessionRegistry registry = new SessionRegistry();
+		registry.openConversation(1, "cjfman");
+		registry.addMember(1, "dhrosa");
+		registry.openConversation(2, "kemus");
+		registry.addMember(2, "cjfman");
+		registry.openConversation(3, "dhrosa");
+		registry.removeMember(3, "dhrosa");
+		File snapshot = new File(directory, "state.snapshot");
+		assertEquals(2, StateSnapshot.write(snapshot, registry));
+
+		final HashMap<Integer, String[]> loaded = new HashMap<Integer, String[]>();
+		assertEquals(2, StateSnapshot.load(snapshot, new StateSnapshot.Listener() {
+			public void restored(int ID, String[] members) {
+				loaded.put(ID, members);
+			}
+		}));
+		assertEquals(new HashSet<String>(Arrays.asList("cjfman", "dhrosa")), new HashSet<String>(Arrays.asList(loaded.get(1))));
+		assertEquals(new HashSet<String>(Arrays.asList("kemus", "cjfman")), new HashSet<String>(Arrays.asList(loaded.get(2))));
+		assertSame(loaded.get(1)[0].equals("cjfman") ? loaded.get(1)[0] : loaded.get(1)[1],
+				loaded.get(2)[0].equals("cjfman") ? loaded.get(2)[0] : loaded.get(2)[1]);
+	}
+
+	/**
+	 * A restart loads the snapshot and the changes logged after it, and a snapshot drops the log before it
+	 */
+	@Test
+	public void testRestart() throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.setStateLog(file.getPath(), StateLog.Durability.BATCHED);
+		config.setSnapshotInterval(0);
+		Server server = new Server(0, config);
+		int before = server.startConversation("cjfman");
+		server.addToConversation(before, "dhrosa");
+		server.indexFriend("cjfman", "dhrosa");
+		assertEquals(1, server.snapshot());
+		assertFalse(new File(file.getPath() + ".old").exists());
+		assertEquals(0, file.length());
+
+		int after = server.startConversation("kemus");
+		server.addToConversation(after, "cjfman");
+		server.leaveConversation(before, "dhrosa");
+		server.kill();
+
+		server = new Server(0, config);
+		assertEquals(new HashSet<String>(Arrays.asList("cjfman")), server.getConversationMembers(before));
+		assertEquals(new HashSet<String>(Arrays.asList("kemus", "cjfman")), server.getConversationMembers(after));
+		assertArrayEquals(new String[] {"dhrosa"}, server.savedFriends("cjfman"));
+		server.kill();
+	}
+
+	/**
+	 * A snapshot that already has some of the changes logged after it began restores the same
+	 * conversations, even where replaying them one at a time would leave a conversation empty
+	 */
+	@Test
+	public void testChangesDuringSnapshot() throws IOException {
+		// When the log was rolled, conversation 5 had cjfman and dhrosa. The snapshot was read after all the changes below
+		SessionRegistry registry = new SessionRegistry();
+		registry.restoreConversation(5, new String[] {"cjfman"});
+		StateSnapshot.write(new File(file.getPath() + ".snapshot"), registry);
+		StateLog log = new StateLog(file, StateLog.Durability.PER_OP);
+		log.replay(new StateLogListener());
+		log.append(StateLog.LEAVE, 5, "cjfman", null);
+		log.append(StateLog.ADD, 5, "cjfman", null);
+		log.append(StateLog.LEAVE, 5, "dhrosa", null);
+		log.append(StateLog.START, 9, "kemus", null);
+		log.append(StateLog.LEAVE, 9, "kemus", null);
+		log.sync();
+		log.close();
+
+		ServerConfig config = new ServerConfig();
+		config.setStateLog(file.getPath(), StateLog.Durability.BATCHED);
+		Server server = new Server(0, config);
+		assertEquals(new HashSet<String>(Arrays.asList("cjfman")), server.getConversationMembers(5));
+		assertNull(server.getConversationMembers(9));
+		server.kill();
+	}
+
+	/**
+	 * Ignores every change
+	 */
+	private static class StateLogListener implements StateLog.Listener {
+		public void started(int ID, String user) {}
+		public void added(int ID, String user) {}
+		public void left(int ID, String user) {}
+		public void friended(String user, String friend) {}
+	}
+}
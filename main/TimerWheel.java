@@ -0,0 +1,181 @@
+package main;
+
+/**
+ * A hashed timer wheel: one thread runs every timeout of the client, however many are pending.
+ * Time is cut into ticks and the wheel has a bucket per tick, so scheduling or cancelling a
+ * timeout only links or unlinks it from a bucket, which takes O(1). A timeout further away than
+ * one turn of the wheel waits in it's bucket for the turns in between.
+ * The thread waits without ticking while nothing is scheduled.
+ * Tasks run on the wheel's thread and should be short.
+ * @author Andres
+ *
+ */
+public class TimerWheel {
+    public static final long DEFAULT_TICK = 50; // Milliseconds
+    public static final int DEFAULT_SIZE = 256;
+    
+    private final long tick; // Nanoseconds
+    private final Timeout[] wheel; // Each bucket is a circular list with a placeholder head
+    private final long start;
+    private long ticks; // The last tick that was run
+    private int pending = 0;
+    private Thread thread = null;
+    
+    public TimerWheel() {
+        this(DEFAULT_TICK, DEFAULT_SIZE);
+    }
+    
+    /**
+     * @param tickMillis, how precise timeouts are
+     * @param size, the number of buckets, one turn of the wheel is size ticks
+     */
+    public TimerWheel(long tickMillis, int size) {
+        if (tickMillis < 1 || size < 1) {
+            throw new IllegalArgumentException("Tick and size must be positive");
+        }
+        this.tick = tickMillis * 1000000;
+        this.wheel = new Timeout[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Timeout(null, 0);
+        }
+        this.start = System.nanoTime();
+        this.ticks = 0;
+    }
+    
+    /**
+     * A task waiting to be run
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline; // The tick to run on
+        private Timeout previous = this;
+        private Timeout next = this;
+        private boolean linked = false;
+        
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Stops the task from running
+         * @return false if it has already run or been cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (!this.linked) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Runs a task once a delay has passed, rounded up to whole ticks
+     * @param task
+     * @param delayMillis
+     * @return the timeout, which can be cancelled
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        if (this.pending == 0) {
+            // The wheel was not turning, it starts from now
+            this.ticks = now();
+        }
+        long delay = Math.max(1, (delayMillis * 1000000 + this.tick - 1) / this.tick);
+        Timeout timeout = new Timeout(task, this.ticks + delay);
+        Timeout head = this.wheel[(int) (timeout.deadline % this.wheel.length)];
+        timeout.previous = head.previous;
+        timeout.next = head;
+        head.previous.next = timeout;
+        head.previous = timeout;
+        timeout.linked = true;
+        this.pending++;
+        if (this.thread == null) {
+            this.thread = new Thread(new Runnable() {
+                public void run() {
+                    turn();
+                }
+            }, "timer-wheel");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+        else if (this.pending == 1) {
+            notify();
+        }
+        return timeout;
+    }
+    
+    /**
+     * @return the number of timeouts waiting to run
+     */
+    public synchronized int pending() {
+        return this.pending;
+    }
+    
+    /**
+     * Runs the timeouts of every tick as it passes
+     */
+    private void turn() {
+        while (true) {
+            Timeout expired = null;
+            try {
+                synchronized (this) {
+                    while (this.pending == 0) {
+                        wait();
+                    }
+                    long wait = (this.ticks + 1) * this.tick - (System.nanoTime() - this.start);
+                    if (wait > 0) {
+                        wait(wait / 1000000, (int) (wait % 1000000));
+                        continue;
+                    }
+                    // Collect the timeouts of every tick that passed
+                    long now = now();
+                    while (this.ticks < now) {
+                        this.ticks++;
+                        Timeout head = this.wheel[(int) (this.ticks % this.wheel.length)];
+                        Timeout timeout = head.next;
+                        while (timeout != head) {
+                            Timeout next = timeout.next;
+                            if (timeout.deadline <= this.ticks) {
+                                unlink(timeout);
+                                timeout.next = expired;
+                                expired = timeout;
+                            }
+                            timeout = next;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (; expired != null; expired = expired.next) {
+                try {
+                    expired.task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Takes a timeout out of it's bucket. Must hold the lock
+     */
+    private void unlink(Timeout timeout) {
+        timeout.previous.next = timeout.next;
+        timeout.next.previous = timeout.previous;
+        timeout.previous = timeout;
+        timeout.next = timeout;
+        timeout.linked = false;
+        this.pending--;
+    }
+    
+    /**
+     * @return the number of whole ticks since the wheel was made
+     */
+    private long now() {
+        return (System.nanoTime() - this.start) / this.tick;
+    }
+}
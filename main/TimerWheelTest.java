@@ -0,0 +1,79 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for TimerWheel
+ * @author Andres
+ *
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void testOrder() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        // 250ms is more than one turn of the wheel
+        wheel.schedule(record(ran, "late"), 250);
+        wheel.schedule(record(ran, "soon"), 20);
+        wheel.schedule(record(ran, "later"), 100);
+        Thread.sleep(120);
+        assertEquals("[soon, later]", ran.toString());
+        Thread.sleep(250);
+        assertEquals("[soon, later, late]", ran.toString());
+        assertEquals(0, wheel.pending());
+    }
+    
+    @Test
+    public void testCancel() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        TimerWheel.Timeout timeout = wheel.schedule(record(ran, "cancelled"), 50);
+        wheel.schedule(record(ran, "kept"), 50);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(1, wheel.pending());
+        Thread.sleep(200);
+        assertEquals("[kept]", ran.toString());
+        
+        // The wheel starts again after being idle
+        wheel.schedule(record(ran, "again"), 30);
+        Thread.sleep(200);
+        assertEquals("[kept, again]", ran.toString());
+    }
+    
+    @Test
+    public void testManyTimeouts() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel();
+        int threads = Thread.activeCount();
+        // Like typing in many conversations: every key press moves the timeout
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[1000];
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        for (int key = 0; key < 20; key++) {
+            for (int i = 0; i < timeouts.length; i++) {
+                if (timeouts[i] != null) {
+                    timeouts[i].cancel();
+                }
+                timeouts[i] = wheel.schedule(record(ran, "typed"), 100);
+            }
+        }
+        assertEquals(1000, wheel.pending());
+        assertTrue(Thread.activeCount() <= threads + 1);
+        Thread.sleep(400);
+        assertEquals(1000, ran.size());
+    }
+    
+    private static Runnable record(final List<String> ran, final String name) {
+        return new Runnable() {
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+}
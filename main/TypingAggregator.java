@@ -0,0 +1,189 @@
+package main;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttles the typing events of conversations: entered text (702), typing (703) and cleared (705).
+ *
+ * Every user of a conversation may have one typing event pushed per interval. An event that
+ * comes in sooner is held back, and replaced by any newer event of the same user, until the
+ * interval is over. Events that repeat the state the members were last told about are dropped,
+ * and so is a held back event once the user is back in that state. When a new event is pushed,
+ * the previous one is superseded, so transports drop it if it is still waiting to be written.
+ *
+ * The counters tell how many events were received, how many were pushed to the conversation,
+ * and how many were suppressed without being pushed.
+ * @author Charles (cjfman)
+ *
+ */
+public class TypingAggregator {
+	private final Server server;
+	private final long interval;	// Nanoseconds
+	private final ScheduledExecutorService timer;
+	private final ConcurrentHashMap<Integer, HashMap<String, Typist>> conversations;
+
+	private final AtomicLong received = new AtomicLong(0);
+	private final AtomicLong delivered = new AtomicLong(0);
+	private final AtomicLong suppressed = new AtomicLong(0);
+
+	/**
+	 * @param server: pushes the events to the conversations
+	 * @param interval_ms: the least time between two events of a user that are pushed
+	 * @param timer: pushes held back events when their interval is over
+	 */
+	public TypingAggregator(Server server, long interval_ms, ScheduledExecutorService timer) {
+		this.server = server;
+		this.interval = TimeUnit.MILLISECONDS.toNanos(interval_ms);
+		this.timer = timer;
+		this.conversations = new ConcurrentHashMap<Integer, HashMap<String, Typist>>();
+	}
+
+	/**
+	 * Pushes a typing event to a conversation, now, later or not at all
+	 * @param ID: the conversation
+	 * @param message: the event. It's user must be set, and it must not be changed afterwards
+	 */
+	public void push(int ID, Message message) {
+		received.incrementAndGet();
+		Typist typist = typist(ID, message.getUser());
+		Broadcast now = null;
+		synchronized (typist) {
+			long time = System.nanoTime();
+			if (typist.held != null) {
+				// The held back event is out of date
+				suppressed.incrementAndGet();
+				typist.held = null;
+			}
+			if (message.getCode() == typist.state) {
+				// The members already know
+				suppressed.incrementAndGet();
+			}
+			else if (time - typist.next >= 0) {
+				now = typist.deliver(message, time);
+			}
+			else {
+				typist.held = message;
+				if (!typist.scheduled) {
+					typist.scheduled = true;
+					timer.schedule(typist, typist.next - time, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+		if (now != null) server.pushMessageToConversation(ID, now);
+	}
+
+	/**
+	 * Forgets a user that left a conversation. A held back event is dropped
+	 * @param ID
+	 * @param username
+	 */
+	public void remove(int ID, String username) {
+		HashMap<String, Typist> typists = conversations.get(ID);
+		if (typists == null) return;
+		synchronized (typists) {
+			Typist typist = typists.remove(username);
+			if (typist != null) typist.removed = true;
+		}
+	}
+
+	/**
+	 * Forgets a conversation that was closed
+	 * @param ID
+	 */
+	public void removeConversation(int ID) {
+		HashMap<String, Typist> typists = conversations.remove(ID);
+		if (typists == null) return;
+		synchronized (typists) {
+			for (Typist typist:typists.values())
+				typist.removed = true;
+		}
+	}
+
+	/**
+	 * @return the number of typing events received from clients
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * @return the number of typing events pushed to conversations
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return the number of typing events dropped without being pushed
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	/**
+	 * Looks up the typing state of a user, creating it if needed
+	 */
+	private Typist typist(int ID, String username) {
+		HashMap<String, Typist> typists = conversations.get(ID);
+		if (typists == null) {
+			typists = new HashMap<String, Typist>();
+			HashMap<String, Typist> current = conversations.putIfAbsent(ID, typists);
+			if (current != null) typists = current;
+		}
+		synchronized (typists) {
+			Typist typist = typists.get(username);
+			if (typist == null) {
+				typist = new Typist(ID);
+				typists.put(username, typist);
+			}
+			return typist;
+		}
+	}
+
+	/**
+	 * The typing state of one user in one conversation
+	 * Run by the timer when the interval of a held back event is over
+	 */
+	private class Typist implements Runnable {
+		private final int ID;
+		private int state = 0;				// Code of the last event pushed
+		private long next;					// When the next event may be pushed
+		private Message held;				// Event waiting for the interval to end
+		private Broadcast last;				// The last event pushed
+		private boolean scheduled = false;
+		private volatile boolean removed = false;
+
+		private Typist(int ID) {
+			this.ID = ID;
+			this.next = System.nanoTime();
+		}
+
+		/**
+		 * Makes message the state of this user. Must hold the monitor
+		 * @return the event to push
+		 */
+		private Broadcast deliver(Message message, long time) {
+			if (last != null) last.supersede();
+			last = new Broadcast(message);
+			state = message.getCode();
+			next = time + interval;
+			delivered.incrementAndGet();
+			return last;
+		}
+
+		public void run() {
+			Broadcast now = null;
+			synchronized (this) {
+				scheduled = false;
+				if (held != null && !removed)
+					now = deliver(held, System.nanoTime());
+				held = null;
+			}
+			if (now != null) server.pushMessageToConversation(ID, now);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package main;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import main.Message.Type;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for TypingAggregator
+ * @author Charles (cjfman)
+ */
+public class TypingAggregatorTest {
+	private Server server;
+	private ScheduledThreadPoolExecutor timer;
+	private TypingAggregator aggregator;
+	private RecordingTransport transport;
+	private int ID;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new Server(0);
+		timer = new ScheduledThreadPoolExecutor(1);
+		aggregator = new TypingAggregator(server, 200, timer);
+		transport = new RecordingTransport();
+		ServerConnection member = server.openConnection(transport);
+		Message login = new Message();
+		login.setType(Type.Login);
+		login.setUser("dhrosa");
+		member.handleMessage(login);
+		ID = server.startConversation("dhrosa");
+		transport.clear();
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+		server.kill();
+	}
+
+	/**
+	 * The first event is pushed right away, a burst within the interval is pushed as it's latest event
+	 */
+	@Test
+	public void testBurst() throws InterruptedException {
+		aggregator.push(ID, event("cjfman", 703));
+		assertEquals(1, transport.size());
+
+		aggregator.push(ID, event("cjfman", 702));
+		aggregator.push(ID, event("cjfman", 703));
+		aggregator.push(ID, event("cjfman", 702));
+		assertEquals(1, transport.size());
+		Thread.sleep(400);
+		assertEquals(2, transport.size());
+		assertEquals(702, transport.getMessages().get(1).getCode());
+
+		assertEquals(4, aggregator.getReceived());
+		assertEquals(2, aggregator.getDelivered());
+		assertEquals(2, aggregator.getSuppressed());
+	}
+
+	/**
+	 * Events repeating what the members were last told are dropped, and so is a held back
+	 * event once the user is back in that state
+	 */
+	@Test
+	public void testRepeats() throws InterruptedException {
+		aggregator.push(ID, event("cjfman", 703));
+		aggregator.push(ID, event("cjfman", 705));
+		aggregator.push(ID, event("cjfman", 703));
+		Thread.sleep(400);
+		aggregator.push(ID, event("cjfman", 703));
+		assertEquals(1, transport.size());
+		assertEquals(1, aggregator.getDelivered());
+		assertEquals(3, aggregator.getSuppressed());
+	}
+
+	/**
+	 * Every user has it's own interval
+	 */
+	@Test
+	public void testUsers() {
+		aggregator.push(ID, event("cjfman", 703));
+		aggregator.push(ID, event("kemus", 703));
+		assertEquals(2, transport.size());
+	}
+
+	/**
+	 * A held back event is not pushed once the user left the conversation
+	 */
+	@Test
+	public void testRemove() throws InterruptedException {
+		aggregator.push(ID, event("cjfman", 703));
+		aggregator.push(ID, event("cjfman", 705));
+		aggregator.remove(ID, "cjfman");
+		Thread.sleep(400);
+		assertEquals(1, transport.size());
+	}
+
+	private static Message event(String user, int code) {
+		Message message = new Message();
+		message.setType(Type.Event);
+		message.setUser(user);
+		message.setCode(code);
+		return message;
+	}
+}
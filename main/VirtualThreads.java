@@ -0,0 +1,52 @@
+package main;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads when the running JVM supports them (Java 21 and up).
+ * The builder is looked up reflectively so the server still builds and runs on older JVMs,
+ * where connections fall back to platform threads.
+ * @author Charles (cjfman)
+ *
+ */
+public class VirtualThreads {
+	private static final Object builder;
+	private static final Method unstarted;
+
+	static {
+		Object b = null;
+		Method m = null;
+		try {
+			b = Thread.class.getMethod("ofVirtual").invoke(null);
+			m = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			b = null;
+			m = null;
+		}
+		builder = b;
+		unstarted = m;
+	}
+
+	/**
+	 * @return true if this JVM can create virtual threads
+	 */
+	public static boolean available() {
+		return builder != null;
+	}
+
+	/**
+	 * Creates an unstarted thread for the task. The thread is virtual if available, otherwise a platform thread
+	 * @param task
+	 * @return the new thread
+	 */
+	public static Thread newThread(Runnable task) {
+		if (builder != null) {
+			try {
+				return (Thread) unstarted.invoke(builder, task);
+			} catch (Exception e) {
+				// Fall through to a platform thread
+			}
+		}
+		return new Thread(task);
+	}
+}